@@ -22,3 +22,8 @@
 
 -dontobfuscate
 -dontoptimize
+
+# The hidden BluetoothGattCallback.onConnectionUpdated() is implemented to confirm the connection priority changes
+-keepclassmembers class * extends android.bluetooth.BluetoothGattCallback {
+    public void onConnectionUpdated(android.bluetooth.BluetoothGatt, int, int, int, int);
+}
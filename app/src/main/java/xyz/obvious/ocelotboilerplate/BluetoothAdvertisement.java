@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The fields of a Bluetooth low energy advertisement that the App is interested in.  The raw advertisement and
+ * scan response bytes are parsed directly so that the same code is used with the old and new scan APIs.  The
+ * scan callbacks run on the main thread for every advertisement, so the bytes are only parsed the first time a
+ * field is read: a scan without filters whose list only shows the names never parses the records it passes on.
+ */
+class BluetoothAdvertisement {
+    /**
+     * The value returned when the advertisement does not include a TX power level
+     */
+    static final int TX_POWER_UNKNOWN = 127;
+    /**
+     * The value returned when the advertisement does not include manufacturer specific data
+     */
+    static final int MANUFACTURER_UNKNOWN = -1;
+
+    private static final int AD_TYPE_UUID16_PARTIAL = 0x02;
+    private static final int AD_TYPE_UUID16_COMPLETE = 0x03;
+    private static final int AD_TYPE_UUID32_PARTIAL = 0x04;
+    private static final int AD_TYPE_UUID32_COMPLETE = 0x05;
+    private static final int AD_TYPE_UUID128_PARTIAL = 0x06;
+    private static final int AD_TYPE_UUID128_COMPLETE = 0x07;
+    private static final int AD_TYPE_NAME_SHORT = 0x08;
+    private static final int AD_TYPE_NAME_COMPLETE = 0x09;
+    private static final int AD_TYPE_TX_POWER = 0x0A;
+    private static final int AD_TYPE_MANUFACTURER_DATA = 0xFF;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final String BASE_UUID_SUFFIX = "-0000-1000-8000-00805f9b34fb";
+
+    /**
+     * An advertisement with no fields, used when the scan did not provide the raw bytes
+     */
+    static final BluetoothAdvertisement EMPTY = new BluetoothAdvertisement(null);
+
+    private final byte[] scanRecord;
+    private boolean parsed = false;
+    private String name = null;
+    private int txPower = TX_POWER_UNKNOWN;
+    private List<String> serviceUuids = null;
+    private int manufacturerId = MANUFACTURER_UNKNOWN;
+    private byte[] manufacturerData = null;
+
+    private BluetoothAdvertisement(byte[] scanRecord) {
+        this.scanRecord = scanRecord;
+    }
+
+    /**
+     * Wrap the raw advertisement and scan response bytes.  They are parsed the first time a field is read,
+     * malformed data ends the parsing and the fields found before it are kept.
+     * @param scanRecord The raw bytes as returned by the OS scanner, they must not be changed afterwards.
+     * @return The advertisement.
+     */
+    static BluetoothAdvertisement parse(byte[] scanRecord) {
+        return (scanRecord != null ? new BluetoothAdvertisement(scanRecord) : EMPTY);
+    }
+
+    /**
+     * Parse the raw bytes the first time a field is read.
+     */
+    private synchronized void _parse() {
+        if (parsed) {
+            return;
+        }
+        parsed = true;
+        ArrayList<String> serviceUuids = new ArrayList<>();
+        this.serviceUuids = Collections.unmodifiableList(serviceUuids);
+        if (scanRecord == null) {
+            return;
+        }
+
+        int pos = 0;
+        while (pos < scanRecord.length) {
+            int length = scanRecord[pos] & 0xFF;
+            if (length == 0 || pos + length >= scanRecord.length) {
+                // The rest of the record is padding or truncated
+                break;
+            }
+            int type = scanRecord[pos + 1] & 0xFF;
+            int start = pos + 2;
+            int end = pos + 1 + length;
+            switch (type) {
+                case AD_TYPE_UUID16_PARTIAL:
+                case AD_TYPE_UUID16_COMPLETE:
+                    for (int i = start; i + 2 <= end; i += 2) {
+                        serviceUuids.add(_formatShortUuid(_readLittleEndian(scanRecord, i, 2)));
+                    }
+                    break;
+                case AD_TYPE_UUID32_PARTIAL:
+                case AD_TYPE_UUID32_COMPLETE:
+                    for (int i = start; i + 4 <= end; i += 4) {
+                        serviceUuids.add(_formatShortUuid(_readLittleEndian(scanRecord, i, 4)));
+                    }
+                    break;
+                case AD_TYPE_UUID128_PARTIAL:
+                case AD_TYPE_UUID128_COMPLETE:
+                    for (int i = start; i + 16 <= end; i += 16) {
+                        serviceUuids.add(_readUuid128(scanRecord, i));
+                    }
+                    break;
+                case AD_TYPE_NAME_SHORT:
+                case AD_TYPE_NAME_COMPLETE:
+                    if (name == null || type == AD_TYPE_NAME_COMPLETE) {
+                        name = new String(scanRecord, start, end - start, UTF8);
+                    }
+                    break;
+                case AD_TYPE_TX_POWER:
+                    if (end > start) {
+                        txPower = scanRecord[start];
+                    }
+                    break;
+                case AD_TYPE_MANUFACTURER_DATA:
+                    if (manufacturerId == MANUFACTURER_UNKNOWN && end - start >= 2) {
+                        manufacturerId = (int)_readLittleEndian(scanRecord, start, 2);
+                        manufacturerData = Arrays.copyOfRange(scanRecord, start + 2, end);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            pos = end;
+        }
+    }
+
+    /**
+     * Read an unsigned little endian value.
+     * @param data The raw bytes.
+     * @param offset The position of the first byte.
+     * @param size The number of bytes, at most 4.
+     * @return The value.
+     */
+    private static long _readLittleEndian(byte[] data, int offset, int size) {
+        long value = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Expand a 16 or 32-bit UUID with the Bluetooth base UUID.
+     * @param value The short UUID.
+     * @return The UUID string in the form used by the OS.
+     */
+    private static String _formatShortUuid(long value) {
+        char[] digits = new char[8];
+        for (int i = 7; i >= 0; i--) {
+            digits[i] = HEX_DIGITS[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+        return new String(digits) + BASE_UUID_SUFFIX;
+    }
+
+    /**
+     * Read a 128-bit UUID, stored little endian in the advertisement.
+     * @param data The raw bytes.
+     * @param offset The position of the first byte.
+     * @return The UUID string in the form used by the OS.
+     */
+    private static String _readUuid128(byte[] data, int offset) {
+        StringBuilder uuid = new StringBuilder(36);
+        for (int i = 15; i >= 0; i--) {
+            uuid.append(HEX_DIGITS[(data[offset + i] >> 4) & 0xF]).append(HEX_DIGITS[data[offset + i] & 0xF]);
+            if (i == 12 || i == 10 || i == 8 || i == 6) {
+                uuid.append('-');
+            }
+        }
+        return uuid.toString();
+    }
+
+    /**
+     * Get the advertised name.
+     * @return The complete or short local name, null if it was not advertised.
+     */
+    String getName() {
+        _parse();
+        return name;
+    }
+
+    /**
+     * Get the advertised TX power level.
+     * @return The TX power in dBm or TX_POWER_UNKNOWN.
+     */
+    int getTxPower() {
+        _parse();
+        return txPower;
+    }
+
+    /**
+     * Get the advertised service UUIDs.
+     * @return The UUID strings, this list cannot be modified.
+     */
+    List<String> getServiceUuids() {
+        _parse();
+        return serviceUuids;
+    }
+
+    /**
+     * Get the company identifier of the manufacturer specific data.
+     * @return The Bluetooth SIG company identifier or MANUFACTURER_UNKNOWN.
+     */
+    int getManufacturerId() {
+        _parse();
+        return manufacturerId;
+    }
+
+    /**
+     * Get the manufacturer specific data that follows the company identifier.
+     * @return A copy of the data, null if none was advertised.
+     */
+    byte[] getManufacturerData() {
+        _parse();
+        return (manufacturerData != null ? manufacturerData.clone() : null);
+    }
+}
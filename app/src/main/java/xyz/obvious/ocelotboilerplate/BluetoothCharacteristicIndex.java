@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class holds the characteristics discovered on a connection keyed by the service and characteristic UUID
+ * strings used by the Obvious SDK.  The index is built once after the service discovery so that reads and writes
+ * do not need to parse the UUID strings and walk the GATT services for every packet.  It is only used on the
+ * Bluetooth thread.
+ */
+class BluetoothCharacteristicIndex {
+    private final HashMap<String,HashMap<String,BluetoothGattCharacteristic>> _services = new HashMap<>();
+    private boolean _built = false;
+
+    /**
+     * Index all the characteristics of the discovered services.  When a service appears more than once, the first
+     * instance is used, matching the behaviour of BluetoothGatt.getService().
+     * @param services The services discovered on the connection.
+     */
+    void build(List<BluetoothGattService> services) {
+        _services.clear();
+        if (services != null) {
+            for (BluetoothGattService srv : services) {
+                String serviceUUID = srv.getUuid().toString();
+                if (_services.containsKey(serviceUUID)) {
+                    continue;
+                }
+                HashMap<String,BluetoothGattCharacteristic> charMap = new HashMap<>();
+                for (BluetoothGattCharacteristic gc : srv.getCharacteristics()) {
+                    String charUUID = gc.getUuid().toString();
+                    if (!charMap.containsKey(charUUID)) {
+                        charMap.put(charUUID, gc);
+                    }
+                }
+                _services.put(serviceUUID, charMap);
+            }
+        }
+        _built = true;
+    }
+
+    /**
+     * Whether the index holds the result of a service discovery.
+     * @return true if the index was built and has not been cleared since.
+     */
+    boolean isBuilt() {
+        return _built;
+    }
+
+    /**
+     * Look up a characteristic.
+     * @param service The UUID string of the service.
+     * @param characteristic The UUID string of the characteristic.
+     * @return The characteristic or null if it is not in the index.
+     */
+    BluetoothGattCharacteristic get(String service, String characteristic) {
+        HashMap<String,BluetoothGattCharacteristic> charMap = _services.get(service);
+        return (charMap != null ? charMap.get(characteristic) : null);
+    }
+
+    /**
+     * Add a characteristic under the given strings, used to remember lookups that were made with a different
+     * spelling of the UUIDs (e.g. upper case) than the one used by the OS.
+     * @param service The UUID string of the service.
+     * @param characteristic The UUID string of the characteristic.
+     * @param gc The characteristic to return for these strings.
+     */
+    void put(String service, String characteristic, BluetoothGattCharacteristic gc) {
+        HashMap<String,BluetoothGattCharacteristic> charMap = _services.get(service);
+        if (charMap == null) {
+            charMap = new HashMap<>();
+            _services.put(service, charMap);
+        }
+        charMap.put(characteristic, gc);
+    }
+
+    /**
+     * Drop all the characteristics, used when the connection is closed or the device services changed.
+     */
+    void clear() {
+        _services.clear();
+        _built = false;
+    }
+}
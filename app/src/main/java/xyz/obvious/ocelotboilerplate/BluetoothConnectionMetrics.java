@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * This class collects the connection timelines into one latency histogram per connection phase, so that the App
+ * can see where the connection time goes on a given phone.  The most recent timelines are kept as well and both
+ * can be exported as text.
+ */
+class BluetoothConnectionMetrics {
+    /**
+     * connectGatt to the link being connected, for the successful attempt
+     */
+    static final int LATENCY_CONNECT = 0;
+    /**
+     * Link connected to services discovered, including any quirk delay
+     */
+    static final int LATENCY_DISCOVERY = 1;
+    /**
+     * Services discovered to the MTU exchange
+     */
+    static final int LATENCY_MTU = 2;
+    /**
+     * Each CCCD write, measured from the previous setup event
+     */
+    static final int LATENCY_DESCRIPTOR_WRITE = 3;
+    /**
+     * Services discovered to the connection being ready
+     */
+    static final int LATENCY_SETUP = 4;
+    /**
+     * Connection requested to the connection being ready, including the retries
+     */
+    static final int LATENCY_TOTAL = 5;
+    /**
+     * Connection ready to the first data received
+     */
+    static final int LATENCY_FIRST_DATA = 6;
+    static final int LATENCY_COUNT = 7;
+
+    private static final String[] LATENCY_NAMES = {"connect", "discovery", "mtu", "cccd", "setup", "total", "first_data"};
+    /**
+     * The number of recent timelines kept for the export
+     */
+    private static final int RECENT_TIMELINES = 20;
+
+    private final BluetoothLatencyHistogram[] _histograms = new BluetoothLatencyHistogram[LATENCY_COUNT];
+    private final ArrayDeque<BluetoothConnectionTimeline> _recent = new ArrayDeque<>();
+
+    /**
+     * Create the metrics with empty histograms.
+     */
+    BluetoothConnectionMetrics() {
+        for (int i = 0; i < LATENCY_COUNT; i++) {
+            _histograms[i] = new BluetoothLatencyHistogram();
+        }
+    }
+
+    /**
+     * Get the histogram of a phase.
+     * @param latency One of the LATENCY_* constants.
+     * @return The histogram, values in milliseconds.
+     */
+    BluetoothLatencyHistogram getHistogram(int latency) {
+        return _histograms[latency];
+    }
+
+    /**
+     * Record the setup phases of a connection that is now ready.
+     * @param timeline The timeline of the connection.
+     */
+    void onReady(BluetoothConnectionTimeline timeline) {
+        _record(LATENCY_CONNECT, timeline.getInterval(BluetoothConnectionTimeline.PHASE_ATTEMPT_STARTED, BluetoothConnectionTimeline.PHASE_LINK_CONNECTED));
+        _record(LATENCY_DISCOVERY, timeline.getInterval(BluetoothConnectionTimeline.PHASE_LINK_CONNECTED, BluetoothConnectionTimeline.PHASE_SERVICES_DISCOVERED));
+        _record(LATENCY_MTU, timeline.getInterval(BluetoothConnectionTimeline.PHASE_SERVICES_DISCOVERED, BluetoothConnectionTimeline.PHASE_MTU_CHANGED));
+        _record(LATENCY_SETUP, timeline.getInterval(BluetoothConnectionTimeline.PHASE_SERVICES_DISCOVERED, BluetoothConnectionTimeline.PHASE_READY));
+        _record(LATENCY_TOTAL, timeline.getInterval(BluetoothConnectionTimeline.PHASE_REQUESTED, BluetoothConnectionTimeline.PHASE_READY));
+        synchronized (_recent) {
+            if (_recent.size() == RECENT_TIMELINES) {
+                _recent.removeFirst();
+            }
+            _recent.addLast(timeline);
+        }
+    }
+
+    /**
+     * Record a finished CCCD write.
+     * @param elapsed The time since the previous setup event in milliseconds.
+     */
+    void onDescriptorWritten(long elapsed) {
+        _record(LATENCY_DESCRIPTOR_WRITE, elapsed);
+    }
+
+    /**
+     * Record the first data received on a connection.
+     * @param timeline The timeline of the connection.
+     */
+    void onFirstData(BluetoothConnectionTimeline timeline) {
+        _record(LATENCY_FIRST_DATA, timeline.getInterval(BluetoothConnectionTimeline.PHASE_READY, BluetoothConnectionTimeline.PHASE_FIRST_DATA));
+    }
+
+    /**
+     * Forget everything recorded.
+     */
+    void reset() {
+        for (BluetoothLatencyHistogram histogram : _histograms) {
+            histogram.reset();
+        }
+        synchronized (_recent) {
+            _recent.clear();
+        }
+    }
+
+    /**
+     * Export the histograms and the recent timelines as CSV text, headed by the phone model and Android version.
+     * @return The text.
+     */
+    String export() {
+        StringBuilder out = new StringBuilder();
+        out.append("# ").append(Build.MANUFACTURER).append(' ').append(Build.MODEL).append(", API ").append(Build.VERSION.SDK_INT).append('\n');
+        out.append("phase,count,min,p50,p90,p99,max,mean\n");
+        for (int i = 0; i < LATENCY_COUNT; i++) {
+            BluetoothLatencyHistogram histogram = _histograms[i];
+            out.append(String.format(Locale.US, "%s,%d,%d,%d,%d,%d,%d,%.1f\n", LATENCY_NAMES[i], histogram.getCount(), histogram.getMin(),
+                    histogram.getPercentile(50), histogram.getPercentile(90), histogram.getPercentile(99), histogram.getMax(), histogram.getMean()));
+        }
+        out.append("device,attempts,cccd_writes,connect,discovery,mtu,setup,total\n");
+        synchronized (_recent) {
+            for (BluetoothConnectionTimeline timeline : _recent) {
+                out.append(String.format(Locale.US, "%s,%d,%d,%d,%d,%d,%d,%d\n", timeline.deviceId, timeline.getAttempts(), timeline.getDescriptorWrites(),
+                        timeline.getInterval(BluetoothConnectionTimeline.PHASE_ATTEMPT_STARTED, BluetoothConnectionTimeline.PHASE_LINK_CONNECTED),
+                        timeline.getInterval(BluetoothConnectionTimeline.PHASE_LINK_CONNECTED, BluetoothConnectionTimeline.PHASE_SERVICES_DISCOVERED),
+                        timeline.getInterval(BluetoothConnectionTimeline.PHASE_SERVICES_DISCOVERED, BluetoothConnectionTimeline.PHASE_MTU_CHANGED),
+                        timeline.getInterval(BluetoothConnectionTimeline.PHASE_SERVICES_DISCOVERED, BluetoothConnectionTimeline.PHASE_READY),
+                        timeline.getInterval(BluetoothConnectionTimeline.PHASE_REQUESTED, BluetoothConnectionTimeline.PHASE_READY)));
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Record an interval if both of its phases were reached.
+     * @param latency One of the LATENCY_* constants.
+     * @param value The interval in milliseconds, negative if it is not known.
+     */
+    private void _record(int latency, long value) {
+        if (value >= 0) {
+            _histograms[latency].record(value);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * This class decides the connection priority of a GATT connection from the work done on it.  Queued reads and
+ * writes raise the connection to the high priority, the short connection interval that bulk transfers need,
+ * and an idle connection steps down to the balanced and then the low power priority so that the device does not
+ * wake up for nothing.  A firmware update can hold the high priority for its whole duration.  On API 26+ the OS
+ * reports the connection interval that was actually agreed, which is used to confirm each change.  All the
+ * methods are called on the Bluetooth thread.
+ */
+class BluetoothConnectionPriority {
+    /**
+     * Returned when the priority does not need to change
+     */
+    static final int NO_CHANGE = -1;
+    /**
+     * The idle time after which a high priority connection drops to the balanced priority
+     */
+    static final long BALANCED_IDLE = 3000;
+    /**
+     * The idle time after which a balanced connection drops to the low power priority
+     */
+    static final long LOW_POWER_IDLE = 30000;
+    /**
+     * The longest connection interval, in 1.25ms units, expected for the high priority (15ms)
+     */
+    private static final int HIGH_MAX_INTERVAL = 12;
+    /**
+     * The shortest connection interval, in 1.25ms units, expected for the low power priority (80ms)
+     */
+    private static final int LOW_POWER_MIN_INTERVAL = 64;
+
+    private int _requested = NO_CHANGE;
+    private boolean _confirmed = false;
+    private boolean _held = false;
+    private long _lastActivity = 0;
+    private int _interval = 0;
+    private int _latency = 0;
+    private int _supervisionTimeout = 0;
+
+    /**
+     * Note that work was queued on the connection.
+     * @param now The SystemClock.elapsedRealtime() of the work.
+     * @return CONNECTION_PRIORITY_HIGH if it has to be requested, NO_CHANGE otherwise.
+     */
+    int onWorkQueued(long now) {
+        _lastActivity = now;
+        return (_requested != BluetoothGatt.CONNECTION_PRIORITY_HIGH ? BluetoothGatt.CONNECTION_PRIORITY_HIGH : NO_CHANGE);
+    }
+
+    /**
+     * Note that some work finished, the idle timeout starts again.
+     * @param now The SystemClock.elapsedRealtime() of the end of the work.
+     */
+    void onWorkDone(long now) {
+        _lastActivity = now;
+    }
+
+    /**
+     * Keep the connection at the high priority regardless of the work queued, e.g. during a firmware update.
+     * @param held true to hold the high priority, false to let the idle timeout lower it again.
+     * @param now The SystemClock.elapsedRealtime() of the change.
+     * @return CONNECTION_PRIORITY_HIGH if it has to be requested, NO_CHANGE otherwise.
+     */
+    int setHeld(boolean held, long now) {
+        _held = held;
+        return (held ? onWorkQueued(now) : NO_CHANGE);
+    }
+
+    /**
+     * The time until the priority should be lowered.
+     * @param now The current SystemClock.elapsedRealtime().
+     * @return The delay in milliseconds, or -1 if the priority is not lowered any further.
+     */
+    long getIdleDelay(long now) {
+        if (_held) {
+            return -1;
+        }
+        switch (_requested) {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                return Math.max(0, _lastActivity + BALANCED_IDLE - now);
+            case BluetoothGatt.CONNECTION_PRIORITY_BALANCED:
+                return Math.max(0, _lastActivity + LOW_POWER_IDLE - now);
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Check whether an idle connection should step down.
+     * @param now The current SystemClock.elapsedRealtime().
+     * @return The lower priority to request, or NO_CHANGE.
+     */
+    int onIdle(long now) {
+        long delay = getIdleDelay(now);
+        if (delay != 0) {
+            return NO_CHANGE;
+        }
+        return (_requested == BluetoothGatt.CONNECTION_PRIORITY_HIGH ? BluetoothGatt.CONNECTION_PRIORITY_BALANCED : BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);
+    }
+
+    /**
+     * Note that a priority was requested from the OS.
+     * @param priority One of the BluetoothGatt.CONNECTION_PRIORITY_* constants.
+     */
+    void onRequested(int priority) {
+        _requested = priority;
+        _confirmed = false;
+    }
+
+    /**
+     * Note the connection parameters reported by the OS.
+     * @param interval The connection interval in 1.25ms units.
+     * @param latency The peripheral latency in connection events.
+     * @param supervisionTimeout The supervision timeout in 10ms units.
+     * @return true if the interval matches the priority requested last.
+     */
+    boolean onConnectionUpdated(int interval, int latency, int supervisionTimeout) {
+        _interval = interval;
+        _latency = latency;
+        _supervisionTimeout = supervisionTimeout;
+        _confirmed = (_requested != NO_CHANGE && getPriorityOf(interval) == _requested);
+        return _confirmed;
+    }
+
+    /**
+     * The priority a connection interval corresponds to.
+     * @param interval The connection interval in 1.25ms units.
+     * @return One of the BluetoothGatt.CONNECTION_PRIORITY_* constants.
+     */
+    static int getPriorityOf(int interval) {
+        if (interval <= HIGH_MAX_INTERVAL) {
+            return BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+        }
+        return (interval >= LOW_POWER_MIN_INTERVAL ? BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER : BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+    }
+
+    /**
+     * The priority requested last.
+     * @return One of the BluetoothGatt.CONNECTION_PRIORITY_* constants, or NO_CHANGE if none was requested yet.
+     */
+    int getRequested() {
+        return _requested;
+    }
+
+    /**
+     * Whether the OS reported a connection interval that matches the priority requested last.  This is never
+     * true before API 26, the OS does not report the connection parameters.
+     * @return true if the change was confirmed.
+     */
+    boolean isConfirmed() {
+        return _confirmed;
+    }
+
+    /**
+     * The connection interval reported last.
+     * @return The interval in 1.25ms units, 0 if it is not known.
+     */
+    int getInterval() {
+        return _interval;
+    }
+
+    /**
+     * The peripheral latency reported last.
+     * @return The number of connection events the device may skip.
+     */
+    int getLatency() {
+        return _latency;
+    }
+
+    /**
+     * The supervision timeout reported last.
+     * @return The timeout in 10ms units, 0 if it is not known.
+     */
+    int getSupervisionTimeout() {
+        return _supervisionTimeout;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Build;
+
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * The connection setup normally moves to the next step as soon as the OS Bluetooth stack reports that the
+ * previous one is done.  Some phones are known to drop GATT requests sent straight after a connection event,
+ * this class holds the list of those phones and the conservative delays used for them.
+ *
+ * Phones older than Android 7.0 and bonded devices are not delayed.  Their stack may still be finishing the link
+ * setup (encryption, its own service discovery) when the connection is reported and reject or drop the first
+ * discovery request, so the request is repeated until the stack answers it or the step times out.
+ */
+final class BluetoothConnectionQuirks {
+    /**
+     * Conservative delay between the connection event and the service discovery
+     */
+    static final long CONSERVATIVE_DISCOVERY_DELAY = 2000;
+    /**
+     * Conservative delay between the end of the service discovery and the notification setup
+     */
+    static final long CONSERVATIVE_SETUP_DELAY = 1250;
+    /**
+     * The time between two service discovery requests while the stack rejects them or reports a failure
+     */
+    static final long READY_POLL_INTERVAL = 100;
+    /**
+     * The time after which a service discovery request that got no answer is taken as dropped and sent again
+     */
+    static final long DISCOVERY_ANSWER_TIMEOUT = 2500;
+
+    /**
+     * The phone manufacturers or "manufacturer model" pairs, in lower case, that need the conservative delays
+     */
+    private static final HashSet<String> _conservativeModels = new HashSet<>();
+
+    static {
+        // Android 4.3 and 4.4 phones reported to lose the GATT requests sent right after the connection event
+        addConservativeModel("samsung", "GT-I9300");
+        addConservativeModel("samsung", "GT-I9505");
+        addConservativeModel("samsung", "SM-N9005");
+        addConservativeModel("LGE", "Nexus 4");
+        addConservativeModel("asus", "Nexus 7");
+    }
+
+    private BluetoothConnectionQuirks() {}
+
+    /**
+     * Add a phone that needs the conservative connection delays.
+     * @param manufacturer The Build.MANUFACTURER of the phone.
+     * @param model The Build.MODEL of the phone, or null to match all models of the manufacturer.
+     */
+    static synchronized void addConservativeModel(String manufacturer, String model) {
+        if (manufacturer == null) { return; }
+        _conservativeModels.add(model == null ? manufacturer.toLowerCase(Locale.US) : (manufacturer + " " + model).toLowerCase(Locale.US));
+    }
+
+    /**
+     * Whether the current phone is one of the phones that need the conservative connection delays.
+     * @return true if the conservative delays should be used.
+     */
+    static synchronized boolean isConservativeModel() {
+        String manufacturer = (Build.MANUFACTURER == null ? "" : Build.MANUFACTURER.toLowerCase(Locale.US));
+        String model = (Build.MODEL == null ? "" : Build.MODEL.toLowerCase(Locale.US));
+        return _conservativeModels.contains(manufacturer) || _conservativeModels.contains(manufacturer + " " + model);
+    }
+
+    /**
+     * Whether the service discovery of a device should be repeated until the stack answers it rather than failing
+     * the connection on the first rejected, failed or unanswered request.
+     * @param device The device that was connected.
+     * @return true on phones older than Android 7.0 and for bonded devices.
+     */
+    static boolean waitsForReadiness(BluetoothDevice device) {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.N ||
+                (device != null && device.getBondState() == BluetoothDevice.BOND_BONDED);
+    }
+
+    /**
+     * The time to wait between the connection event and the start of the service discovery.
+     * @return The delay in milliseconds.
+     */
+    static long getDiscoveryDelay() {
+        return isConservativeModel() ? CONSERVATIVE_DISCOVERY_DELAY : 0;
+    }
+
+    /**
+     * The time to wait between the end of the service discovery and the start of the notification setup.
+     * @return The delay in milliseconds.
+     */
+    static long getSetupDelay() {
+        return isConservativeModel() ? CONSERVATIVE_SETUP_DELAY : 0;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import android.os.SystemClock;
+
+/**
+ * The time each phase of a connection was reached, from the connectGatt call to the first data received.  One
+ * timeline covers a connection request including its retries, it is filled on the Bluetooth thread and passed to
+ * BluetoothConnectionMetrics once the connection is ready.  Only isWaitingForData() may be called from other threads,
+ * e.g. by the GATT callbacks that run on a binder thread before API 26.
+ */
+class BluetoothConnectionTimeline {
+    /**
+     * The connection was requested by the App
+     */
+    static final int PHASE_REQUESTED = 0;
+    /**
+     * connectGatt was called for the last attempt
+     */
+    static final int PHASE_ATTEMPT_STARTED = 1;
+    /**
+     * onConnectionStateChange reported the link as connected
+     */
+    static final int PHASE_LINK_CONNECTED = 2;
+    /**
+     * onServicesDiscovered reported the services
+     */
+    static final int PHASE_SERVICES_DISCOVERED = 3;
+    /**
+     * onMtuChanged reported the MTU exchange
+     */
+    static final int PHASE_MTU_CHANGED = 4;
+    /**
+     * The last CCCD write finished and the connection was reported to the App
+     */
+    static final int PHASE_READY = 5;
+    /**
+     * The first notification or read data was received
+     */
+    static final int PHASE_FIRST_DATA = 6;
+    static final int PHASE_COUNT = 7;
+
+    final String deviceId;
+    private final long[] _times = new long[PHASE_COUNT];
+    private long _lastSetupEvent = 0;
+    private int _attempts = 0;
+    private int _descriptorWrites = 0;
+    private volatile boolean _waitingForData = false;
+
+    /**
+     * Start the timeline of a connection request.
+     * @param deviceId The Bluetooth identifier (MAC) of the device.
+     */
+    BluetoothConnectionTimeline(String deviceId) {
+        this.deviceId = deviceId;
+        _times[PHASE_REQUESTED] = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Record the start of a connection attempt, the phases of a failed attempt are forgotten.
+     */
+    void onAttemptStarted() {
+        for (int phase = PHASE_ATTEMPT_STARTED; phase < PHASE_COUNT; phase++) {
+            _times[phase] = 0;
+        }
+        _times[PHASE_ATTEMPT_STARTED] = SystemClock.elapsedRealtime();
+        _descriptorWrites = 0;
+        _waitingForData = false;
+        _attempts++;
+    }
+
+    /**
+     * Record that a phase was reached, only the first time counts.
+     * @param phase One of the PHASE_* constants.
+     * @return true if this is the first time the phase was reached.
+     */
+    boolean mark(int phase) {
+        if (_times[phase] != 0) {
+            return false;
+        }
+        _times[phase] = SystemClock.elapsedRealtime();
+        _lastSetupEvent = _times[phase];
+        _waitingForData = (_times[PHASE_READY] != 0 && _times[PHASE_FIRST_DATA] == 0);
+        return true;
+    }
+
+    /**
+     * Record a finished CCCD write.
+     * @return The time since the previous setup event in milliseconds.
+     */
+    long onDescriptorWritten() {
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - _lastSetupEvent;
+        _lastSetupEvent = now;
+        _descriptorWrites++;
+        return elapsed;
+    }
+
+    /**
+     * Whether the first data is still to be received, checked on every notification before calling mark() on the
+     * Bluetooth thread.  This method can be called from any thread.
+     * @return true if the connection is ready and no data was received yet.
+     */
+    boolean isWaitingForData() {
+        return _waitingForData;
+    }
+
+    /**
+     * The time between two phases.
+     * @param from The phase the interval starts at.
+     * @param to The phase the interval ends at.
+     * @return The time in milliseconds, or -1 if either phase was not reached.
+     */
+    long getInterval(int from, int to) {
+        if (_times[from] == 0 || _times[to] == 0) {
+            return -1;
+        }
+        return _times[to] - _times[from];
+    }
+
+    /**
+     * The number of connection attempts, 1 plus the number of retries.
+     * @return The number of attempts.
+     */
+    int getAttempts() {
+        return _attempts;
+    }
+
+    /**
+     * The number of CCCD writes of the last attempt.
+     * @return The number of writes.
+     */
+    int getDescriptorWrites() {
+        return _descriptorWrites;
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class remembers the devices the App has connected to, so that a familiar device can be connected again
+ * straight away without scanning for it first.  The devices are kept in the App shared preferences, one entry per
+ * MAC, and are loaded the first time the registry is used.
+ */
+class BluetoothDeviceRegistry {
+    /**
+     * The most devices remembered, the device connected the longest ago is forgotten first
+     */
+    static final int MAX_KNOWN_DEVICES = 16;
+
+    private static final String PREFERENCES_NAME = "xyz.obvious.ocelotboilerplate.known_devices";
+    private static final String FIELD_SEPARATOR = "\t";
+
+    /**
+     * Class representing a device the App has connected to.
+     */
+    static class KnownDevice {
+        private final String mac;
+        private final String name;
+        private final String productId;
+        private final String serialNumber;
+        private final long lastSeen;
+        KnownDevice(String mac, String name, String productId, String serialNumber, long lastSeen) {
+            this.mac = mac;
+            this.name = name;
+            this.productId = productId;
+            this.serialNumber = serialNumber;
+            this.lastSeen = lastSeen;
+        }
+
+        /**
+         * Get the Bluetooth identifier of the device.
+         * @return The MAC of the device.
+         */
+        String getAddress() {
+            return mac;
+        }
+        /**
+         * Get the name of the device when it was last connected.
+         * @return The name, or null if it was not known.
+         */
+        String getName() {
+            return name;
+        }
+        /**
+         * Get the Obvious product identifier reported by the device.
+         * @return The product identifier, or null if it was not reported yet.
+         */
+        String getProductId() {
+            return productId;
+        }
+        /**
+         * Get the serial number reported by the device.
+         * @return The serial number, or null if it was not reported yet.
+         */
+        String getSerialNumber() {
+            return serialNumber;
+        }
+        /**
+         * Get the last time the device was connected.
+         * @return The System.currentTimeMillis() of the connection.
+         */
+        long getLastSeen() {
+            return lastSeen;
+        }
+    }
+
+    private final Context _context;
+    private HashMap<String,KnownDevice> _devices = null;
+
+    /**
+     * Create the registry.
+     * @param context The context used to access the shared preferences.
+     */
+    BluetoothDeviceRegistry(Context context) {
+        _context = context.getApplicationContext();
+    }
+
+    /**
+     * Remember a device that was connected, keeping the product identifier and serial number already known for it.
+     * @param mac The MAC of the device.
+     * @param name The name of the device, or null to keep the name already known.
+     */
+    synchronized void onConnected(String mac, String name) {
+        KnownDevice current = _load().get(mac);
+        if (current != null) {
+            _store(new KnownDevice(mac, name != null ? name : current.name, current.productId, current.serialNumber, System.currentTimeMillis()));
+        } else {
+            _store(new KnownDevice(mac, name, null, null, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Record the product identifier and serial number reported by a known device.
+     * @param mac The MAC of the device.
+     * @param productId The product identifier.
+     * @param serialNumber The serial number.
+     */
+    synchronized void onDeviceInfo(String mac, String productId, String serialNumber) {
+        KnownDevice current = _load().get(mac);
+        if (current == null) { return; }
+        _store(new KnownDevice(mac, current.name, productId, serialNumber, current.lastSeen));
+    }
+
+    /**
+     * Forget a device.
+     * @param mac The MAC of the device.
+     */
+    synchronized void forget(String mac) {
+        if (_load().remove(mac) != null) {
+            _preferences().edit().remove(mac).apply();
+        }
+    }
+
+    /**
+     * Look up a device.
+     * @param mac The MAC of the device.
+     * @return The device, or null if it is not known.
+     */
+    synchronized KnownDevice get(String mac) {
+        return _load().get(mac);
+    }
+
+    /**
+     * Get the known devices.
+     * @return The devices, the most recently connected first.
+     */
+    synchronized ArrayList<KnownDevice> getAll() {
+        ArrayList<KnownDevice> result = new ArrayList<>(_load().values());
+        Collections.sort(result, new Comparator<KnownDevice>() {
+            @Override
+            public int compare(KnownDevice lhs, KnownDevice rhs) {
+                return (lhs.lastSeen < rhs.lastSeen ? 1 : (lhs.lastSeen > rhs.lastSeen ? -1 : 0));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Save a device, forgetting the oldest device when the registry is full.
+     * @param device The device to save.
+     */
+    private void _store(KnownDevice device) {
+        HashMap<String,KnownDevice> devices = _load();
+        SharedPreferences.Editor editor = _preferences().edit();
+        if (!devices.containsKey(device.mac) && devices.size() >= MAX_KNOWN_DEVICES) {
+            KnownDevice oldest = null;
+            for (KnownDevice known : devices.values()) {
+                if (oldest == null || known.lastSeen < oldest.lastSeen) {
+                    oldest = known;
+                }
+            }
+            devices.remove(oldest.mac);
+            editor.remove(oldest.mac);
+        }
+        devices.put(device.mac, device);
+        editor.putString(device.mac, _encode(device.name) + FIELD_SEPARATOR + _encode(device.productId) + FIELD_SEPARATOR
+                + _encode(device.serialNumber) + FIELD_SEPARATOR + device.lastSeen);
+        editor.apply();
+    }
+
+    /**
+     * Load the devices from the shared preferences the first time they are needed.
+     * @return The devices by MAC.
+     */
+    private HashMap<String,KnownDevice> _load() {
+        if (_devices != null) {
+            return _devices;
+        }
+        _devices = new HashMap<>();
+        for (Map.Entry<String,?> entry : _preferences().getAll().entrySet()) {
+            if (!(entry.getValue() instanceof String)) { continue; }
+            String[] fields = ((String) entry.getValue()).split(FIELD_SEPARATOR, -1);
+            if (fields.length != 4) { continue; }
+            try {
+                _devices.put(entry.getKey(), new KnownDevice(entry.getKey(), _decode(fields[0]), _decode(fields[1]),
+                        _decode(fields[2]), Long.parseLong(fields[3])));
+            } catch (NumberFormatException ex) {
+                // skip entries that were not written by this version
+            }
+        }
+        return _devices;
+    }
+
+    /**
+     * The shared preferences the devices are kept in.
+     * @return The shared preferences.
+     */
+    private SharedPreferences _preferences() {
+        return _context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Encode a field for storage, the separator is not allowed in the values.
+     * @param value The value, may be null.
+     * @return The stored form, empty for null.
+     */
+    private static String _encode(String value) {
+        return (value == null ? "" : value.replace(FIELD_SEPARATOR, " "));
+    }
+
+    /**
+     * Decode a stored field.
+     * @param value The stored form.
+     * @return The value, null if it was not set.
+     */
+    private static String _decode(String value) {
+        return (value.length() == 0 ? null : value);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.content.Context;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+
+/**
+ * This class holds the state of one GATT connection managed by the BluetoothInteractor.  There is one
+ * session per connected device, each with its own GATT object, callback and operation queue so that
+ * several devices can be worked with at the same time.
+ */
+class BluetoothDeviceSession {
+    static final int STEP_CONNECTING = 0;
+    static final int STEP_DISCOVERING = 1;
+    static final int STEP_CONFIGURING = 2;
+    static final int STEP_READY = 3;
+
+    /**
+     * The ATT MTU every connection starts with
+     */
+    static final int DEFAULT_MTU = 23;
+    /**
+     * The size of the ATT header of a write, the payload of a packet is the MTU minus this header
+     */
+    static final int ATT_HEADER_SIZE = 3;
+    /**
+     * The PHY every connection starts with, BluetoothDevice.PHY_LE_1M which is only defined from API 26
+     */
+    static final int DEFAULT_PHY = 1;
+
+    /**
+     * The Bluetooth identifier (MAC) of the device, used as the key of the session.
+     */
+    final String deviceId;
+    /**
+     * The BluetoothObviousDevice object that the data and error events of this connection are passed on to.  Read by
+     * the GATT callbacks on the binder threads before API 26, set to null on the Bluetooth thread when the session
+     * is closed.
+     */
+    volatile BluetoothObviousDevice device;
+    /**
+     * The GATT connection to the device, null until the connection has been started.
+     */
+    BluetoothGatt gatt = null;
+    /**
+     * The callback that receives the Bluetooth events of this connection from the OS.
+     */
+    BluetoothGattCallback callback = null;
+    /**
+     * The queue used to serialize all the GATT requests of this connection.
+     */
+    BluetoothGattOperationQueue operationQueue = null;
+    /**
+     * The number of CCCD writes left before the connection is reported to the App.
+     */
+    int pendingDescriptorWrites = 0;
+    /**
+     * Whether the OS service cache should be cleared when this connection is closed.
+     */
+    boolean clearServiceCache = false;
+    /**
+     * Whether the connection has been setup and reported to the App as connected.
+     */
+    boolean ready = false;
+    /**
+     * The connection setup step the session is in, one of the STEP_* constants.
+     */
+    int step = STEP_CONNECTING;
+    /**
+     * The runnable that closes the connection when the current setup step takes too long, null once the session is ready.
+     */
+    Runnable stepTimeout = null;
+    /**
+     * The pending repeat of a setup request the stack was not ready for, cancelled when the step changes.
+     */
+    Runnable setupRetry = null;
+    /**
+     * The ATT MTU negotiated with the device.
+     */
+    int mtu = DEFAULT_MTU;
+    /**
+     * The transmitter and receiver PHYs in use, one of the BluetoothDevice.PHY_LE_* values
+     */
+    int txPhy = DEFAULT_PHY;
+    int rxPhy = DEFAULT_PHY;
+    /**
+     * The characteristics discovered on the connection, used by the read and write paths.
+     */
+    final BluetoothCharacteristicIndex characteristics = new BluetoothCharacteristicIndex();
+    /**
+     * The hash of the GATT layout found by the last service discovery, see BluetoothServiceLayoutCache.
+     */
+    long layoutHash = 0;
+    /**
+     * The firmware version whose layout is recorded once the services discovered again after a firmware change are
+     * known, null when no such discovery is pending.
+     */
+    String pendingFirmwareVersion = null;
+    /**
+     * The context and mode the connection was started with, used when the connection is tried again.
+     */
+    Context context = null;
+    boolean autoConnect = false;
+    /**
+     * The retry budget of the connection request, carried over to the sessions of the retries.
+     */
+    BluetoothReconnectPolicy reconnect = null;
+    /**
+     * The time each phase of the connection was reached, carried over to the sessions of the retries.  Only filled
+     * on the Bluetooth thread, the GATT callbacks may only call isWaitingForData().
+     */
+    volatile BluetoothConnectionTimeline timeline = null;
+    /**
+     * The connection priority chosen from the work done on the connection
+     */
+    final BluetoothConnectionPriority priority = new BluetoothConnectionPriority();
+    /**
+     * The pending check that lowers the connection priority once the connection is idle
+     */
+    Runnable priorityTimeout = null;
+    /**
+     * The L2CAP channel used for writes without response on API 29+, null if the device does not offer one
+     */
+    BluetoothL2capChannel l2cap = null;
+    /**
+     * The characteristics whose writes are pinned to the L2CAP channel until it closes
+     */
+    final HashSet<String> l2capCharacteristics = new HashSet<>();
+    /**
+     * The number of writes handed to the L2CAP channel whose result has not been received yet
+     */
+    int l2capPendingWrites = 0;
+    /**
+     * The writes held back until the writes queued on the L2CAP channel are done, so that a characteristic leaving
+     * the channel keeps its data in order
+     */
+    final ArrayDeque<Runnable> l2capDeferredWrites = new ArrayDeque<>();
+
+    /**
+     * Create a session for a device.
+     * @param device The BluetoothObviousDevice the session belongs to.
+     */
+    BluetoothDeviceSession(BluetoothObviousDevice device) {
+        this.deviceId = device.getDeviceId();
+        this.device = device;
+    }
+
+    /**
+     * Whether the session can be closed without interrupting any work, i.e. it has finished its setup and has no
+     * pending GATT operations.
+     * @return true if the session is idle.
+     */
+    boolean isIdle() {
+        return ready && (operationQueue == null || operationQueue.isIdle());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+/**
+ * A group of consecutive data and write status events for one device, passed to
+ * BluetoothObviousDevice.onDataBatch() when batched delivery is enabled.  The events are in the order they
+ * were received from the OS.  The batch object and the data buffers are reused by the BluetoothInteractor
+ * once the batch has been delivered, the receiver must copy anything it needs to keep.
+ */
+class BluetoothEventBatch {
+    static final int EVENT_DATA = 0;
+    static final int EVENT_WRITE_STATUS = 1;
+
+    private int[] _kinds;
+    private String[] _datatypes;
+    private byte[][] _values;
+    private int[] _statuses;
+    private int _size = 0;
+
+    /**
+     * Create an empty batch.
+     * @param capacity The number of events the batch can hold before it has to grow.
+     */
+    BluetoothEventBatch(int capacity) {
+        _kinds = new int[capacity];
+        _datatypes = new String[capacity];
+        _values = new byte[capacity][];
+        _statuses = new int[capacity];
+    }
+
+    /**
+     * The number of events in the batch.
+     * @return the event count.
+     */
+    int size() {
+        return _size;
+    }
+
+    /**
+     * The kind of an event.
+     * @param index The position of the event in the batch.
+     * @return EVENT_DATA or EVENT_WRITE_STATUS.
+     */
+    int getKind(int index) {
+        return _kinds[index];
+    }
+
+    /**
+     * The characteristic an event belongs to.
+     * @param index The position of the event in the batch.
+     * @return The characteristic UUID string.
+     */
+    String getDatatype(int index) {
+        return _datatypes[index];
+    }
+
+    /**
+     * The raw data bytes of a data event.
+     * @param index The position of the event in the batch.
+     * @return The characteristic value, null for write status events.
+     */
+    byte[] getValue(int index) {
+        return _values[index];
+    }
+
+    /**
+     * The Bluetooth status of a write status event.
+     * @param index The position of the event in the batch.
+     * @return The write status, 0 for data events.
+     */
+    int getStatus(int index) {
+        return _statuses[index];
+    }
+
+    /**
+     * Add an event to the end of the batch.
+     * @param kind EVENT_DATA or EVENT_WRITE_STATUS.
+     * @param datatype The characteristic UUID string.
+     * @param value The raw data bytes, null for write status events.
+     * @param status The write status, 0 for data events.
+     */
+    void add(int kind, String datatype, byte[] value, int status) {
+        if (_size == _kinds.length) {
+            int capacity = _size * 2;
+            int[] kinds = new int[capacity];
+            String[] datatypes = new String[capacity];
+            byte[][] values = new byte[capacity][];
+            int[] statuses = new int[capacity];
+            System.arraycopy(_kinds, 0, kinds, 0, _size);
+            System.arraycopy(_datatypes, 0, datatypes, 0, _size);
+            System.arraycopy(_values, 0, values, 0, _size);
+            System.arraycopy(_statuses, 0, statuses, 0, _size);
+            _kinds = kinds;
+            _datatypes = datatypes;
+            _values = values;
+            _statuses = statuses;
+        }
+        _kinds[_size] = kind;
+        _datatypes[_size] = datatype;
+        _values[_size] = value;
+        _statuses[_size] = status;
+        _size++;
+    }
+
+    /**
+     * Remove all the events so the batch can be reused.
+     */
+    void clear() {
+        for (int i = 0; i < _size; i++) {
+            _datatypes[i] = null;
+            _values[i] = null;
+        }
+        _size = 0;
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Build;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts the GATT traffic of each characteristic of each device: the writes issued and acknowledged, the
+ * reads, the failures and retries, the notifications received and the round-trip latency of the writes and reads.
+ * The counters of a device are reset when it connects so that they describe the current, or last, connection.  The
+ * totals are recorded with atomic counters in concurrent maps so that the Bluetooth thread and the binder threads
+ * never wait on each other, a snapshot only copies the counters.  The write throughput and the notification rate
+ * are computed over the last RATE_WINDOW seconds only, from per second buckets that are updated with a
+ * compare-and-set as well.  Latencies are recorded in microseconds.
+ */
+class BluetoothGattMetrics {
+    /**
+     * The number of seconds the rates are computed over
+     */
+    static final int RATE_WINDOW = 10;
+
+    /**
+     * The amounts recorded in each of the last RATE_WINDOW seconds.  Each bucket packs the second it holds in its
+     * high 32 bits and the amount of that second in its low 32 bits, so that moving a bucket to a new second and
+     * adding to it is a single compare-and-set.
+     */
+    private static class RateWindow {
+        private static final long AMOUNT_MASK = 0xFFFFFFFFL;
+
+        private final AtomicLongArray _buckets = new AtomicLongArray(RATE_WINDOW);
+        private final AtomicLong _start = new AtomicLong(-1);
+
+        /**
+         * Add an amount to the bucket of the current second.  An amount that arrives after its bucket has been
+         * reused for a later second is dropped.
+         * @param now The SystemClock.elapsedRealtime() in milliseconds.
+         * @param amount The amount to add, less than 2^32 per second.
+         */
+        void add(long now, long amount) {
+            long second = now / 1000;
+            int index = (int) (second % RATE_WINDOW);
+            if (_start.get() < 0) {
+                _start.compareAndSet(-1, now);
+            }
+            while (true) {
+                long bucket = _buckets.get(index);
+                long epoch = bucket >>> 32;
+                long next;
+                if (epoch == second) {
+                    next = bucket + Math.min(amount, AMOUNT_MASK - (bucket & AMOUNT_MASK));
+                } else if (epoch < second) {
+                    next = (second << 32) | Math.min(amount, AMOUNT_MASK);
+                } else {
+                    return;
+                }
+                if (_buckets.compareAndSet(index, bucket, next)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * The rate over the last RATE_WINDOW seconds, or since the first amount if that is more recent.
+         * @param now The SystemClock.elapsedRealtime() in milliseconds.
+         * @return The amount per second, 0 if nothing was recorded in the window.
+         */
+        double getRate(long now) {
+            long start = _start.get();
+            if (start < 0) {
+                return 0;
+            }
+            long second = now / 1000;
+            long total = 0;
+            for (int i = 0; i < RATE_WINDOW; i++) {
+                long bucket = _buckets.get(i);
+                long epoch = bucket >>> 32;
+                if (epoch > second - RATE_WINDOW && epoch <= second) {
+                    total += bucket & AMOUNT_MASK;
+                }
+            }
+            // At least a second so that a burst just after the start does not give an absurd rate
+            long span = Math.max(1000, Math.min(RATE_WINDOW * 1000L, now - start));
+            return total * 1000.0 / span;
+        }
+    }
+
+    /**
+     * The counters of a single characteristic
+     */
+    private static class Counters {
+        final AtomicLong writesRequested = new AtomicLong();
+        final AtomicLong writesRejected = new AtomicLong();
+        final AtomicLong writesAcked = new AtomicLong();
+        final AtomicLong writeFailures = new AtomicLong();
+        final AtomicLong bytesWritten = new AtomicLong();
+        final AtomicLong readsCompleted = new AtomicLong();
+        final AtomicLong readFailures = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final AtomicLong notifications = new AtomicLong();
+        final AtomicLong notificationBytes = new AtomicLong();
+        final RateWindow writeRate = new RateWindow();
+        final RateWindow notificationRate = new RateWindow();
+        final BluetoothLatencyHistogram writeLatency = new BluetoothLatencyHistogram();
+        final BluetoothLatencyHistogram readLatency = new BluetoothLatencyHistogram();
+    }
+
+    /**
+     * A copy of the counters of a characteristic at the time of the snapshot.
+     */
+    static class Snapshot {
+        final String deviceId;
+        final String datatype;
+        final long writesRequested;
+        final long writesRejected;
+        final long writesAcked;
+        final long writeFailures;
+        final long bytesWritten;
+        final long readsCompleted;
+        final long readFailures;
+        final long retries;
+        final long notifications;
+        final long notificationBytes;
+        /**
+         * The bytes per second accepted by the device over the last RATE_WINDOW seconds
+         */
+        final double writeThroughput;
+        /**
+         * The notifications per second received over the last RATE_WINDOW seconds
+         */
+        final double notificationRate;
+        final long writeLatencyP50;
+        final long writeLatencyP99;
+        final long readLatencyP50;
+        final long readLatencyP99;
+
+        private Snapshot(String deviceId, String datatype, Counters counters, long now) {
+            this.deviceId = deviceId;
+            this.datatype = datatype;
+            writesRequested = counters.writesRequested.get();
+            writesRejected = counters.writesRejected.get();
+            writesAcked = counters.writesAcked.get();
+            writeFailures = counters.writeFailures.get();
+            bytesWritten = counters.bytesWritten.get();
+            readsCompleted = counters.readsCompleted.get();
+            readFailures = counters.readFailures.get();
+            retries = counters.retries.get();
+            notifications = counters.notifications.get();
+            notificationBytes = counters.notificationBytes.get();
+            writeThroughput = counters.writeRate.getRate(now);
+            notificationRate = counters.notificationRate.getRate(now);
+            writeLatencyP50 = counters.writeLatency.getPercentile(50);
+            writeLatencyP99 = counters.writeLatency.getPercentile(99);
+            readLatencyP50 = counters.readLatency.getPercentile(50);
+            readLatencyP99 = counters.readLatency.getPercentile(99);
+        }
+    }
+
+    /**
+     * The counters of each characteristic, by device identifier then characteristic UUID
+     */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Counters>> _counters = new ConcurrentHashMap<>();
+
+    /**
+     * The current time used to measure round-trips.
+     * @return The SystemClock.elapsedRealtimeNanos() in microseconds.
+     */
+    static long now() {
+        return SystemClock.elapsedRealtimeNanos() / 1000;
+    }
+
+    /**
+     * Record a write that was queued on the connection.
+     * @param deviceId The Bluetooth identifier of the device.
+     * @param datatype The characteristic UUID.
+     */
+    void onWriteRequested(String deviceId, String datatype) {
+        _get(deviceId, datatype).writesRequested.incrementAndGet();
+    }
+
+    /**
+     * Record a write that could not be queued, e.g. because the characteristic does not exist or the connection
+     * is gone.
+     * @param deviceId The Bluetooth identifier of the device.
+     * @param datatype The characteristic UUID.
+     */
+    void onWriteRejected(String deviceId, String datatype) {
+        _get(deviceId, datatype).writesRejected.incrementAndGet();
+    }
+
+    /**
+     * Record the end of a write operation.
+     * @param deviceId The Bluetooth identifier of the device.
+     * @param operation The write operation, its start time and retries are recorded as well.
+     * @param status The GATT status of the write.
+     */
+    void onWriteComplete(String deviceId, BluetoothGattOperation operation, int status) {
+        Counters counters = _get(deviceId, operation.datatype);
+        _recordAttempt(counters, operation);
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            int length = (operation.value != null ? operation.value.length : 0);
+            counters.writesAcked.incrementAndGet();
+            counters.bytesWritten.addAndGet(length);
+            counters.writeRate.add(SystemClock.elapsedRealtime(), length);
+            if (operation.startTime > 0) {
+                counters.writeLatency.record(now() - operation.startTime);
+            }
+        } else {
+            counters.writeFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record a write sent on an L2CAP channel instead of GATT.  The channel has no acknowledgement or retry, the
+     * write counts as acknowledged once the stack has accepted it.
+     * @param deviceId The Bluetooth identifier of the device.
+     * @param datatype The characteristic UUID the data was meant for.
+     * @param length The number of bytes written.
+     * @param status GATT_SUCCESS if the channel accepted the data.
+     */
+    void onChannelWrite(String deviceId, String datatype, int length, int status) {
+        Counters counters = _get(deviceId, datatype);
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            counters.writesAcked.incrementAndGet();
+            counters.bytesWritten.addAndGet(length);
+            counters.writeRate.add(SystemClock.elapsedRealtime(), length);
+        } else {
+            counters.writeFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record the end of a read operation.
+     * @param deviceId The Bluetooth identifier of the device.
+     * @param operation The read operation, its start time and retries are recorded as well.
+     * @param status The GATT status of the read.
+     */
+    void onReadComplete(String deviceId, BluetoothGattOperation operation, int status) {
+        Counters counters = _get(deviceId, operation.datatype);
+        _recordAttempt(counters, operation);
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            counters.readsCompleted.incrementAndGet();
+            if (operation.startTime > 0) {
+                counters.readLatency.record(now() - operation.startTime);
+            }
+        } else {
+            counters.readFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record a notification or indication received from the device.
+     * @param deviceId The Bluetooth identifier of the device.
+     * @param datatype The characteristic UUID.
+     * @param length The number of bytes received.
+     */
+    void onNotification(String deviceId, String datatype, int length) {
+        Counters counters = _get(deviceId, datatype);
+        counters.notifications.incrementAndGet();
+        counters.notificationBytes.addAndGet(length);
+        counters.notificationRate.add(SystemClock.elapsedRealtime(), 1);
+    }
+
+    /**
+     * Get the write round-trip latency histogram of a characteristic.
+     * @param deviceId The Bluetooth identifier of the device.
+     * @param datatype The characteristic UUID.
+     * @return The histogram, values in microseconds.
+     */
+    BluetoothLatencyHistogram getWriteLatency(String deviceId, String datatype) {
+        return _get(deviceId, datatype).writeLatency;
+    }
+
+    /**
+     * Get the read round-trip latency histogram of a characteristic.
+     * @param deviceId The Bluetooth identifier of the device.
+     * @param datatype The characteristic UUID.
+     * @return The histogram, values in microseconds.
+     */
+    BluetoothLatencyHistogram getReadLatency(String deviceId, String datatype) {
+        return _get(deviceId, datatype).readLatency;
+    }
+
+    /**
+     * Copy the counters of every characteristic of every device seen since it last connected.
+     * @return The snapshots sorted by device identifier then characteristic UUID.
+     */
+    List<Snapshot> snapshot() {
+        long now = SystemClock.elapsedRealtime();
+        ArrayList<Snapshot> snapshots = new ArrayList<>();
+        for (Map.Entry<String, ConcurrentHashMap<String, Counters>> device : _counters.entrySet()) {
+            for (Map.Entry<String, Counters> entry : device.getValue().entrySet()) {
+                snapshots.add(new Snapshot(device.getKey(), entry.getKey(), entry.getValue(), now));
+            }
+        }
+        Collections.sort(snapshots, new Comparator<Snapshot>() {
+            @Override
+            public int compare(Snapshot a, Snapshot b) {
+                int order = a.deviceId.compareTo(b.deviceId);
+                return (order != 0 ? order : a.datatype.compareTo(b.datatype));
+            }
+        });
+        return snapshots;
+    }
+
+    /**
+     * Forget everything recorded for a device, called when it connects.
+     * @param deviceId The Bluetooth identifier of the device.
+     */
+    void reset(String deviceId) {
+        _counters.remove(deviceId != null ? deviceId : "");
+    }
+
+    /**
+     * Forget everything recorded.
+     */
+    void reset() {
+        _counters.clear();
+    }
+
+    /**
+     * Export a snapshot as CSV text, headed by the phone model and Android version.
+     * @return The text.
+     */
+    String export() {
+        StringBuilder out = new StringBuilder();
+        out.append("# ").append(Build.MANUFACTURER).append(' ').append(Build.MODEL).append(", API ").append(Build.VERSION.SDK_INT).append('\n');
+        out.append("device,characteristic,writes,rejected,acked,failed,bytes,bytes_per_s,write_p50_us,write_p99_us,reads,read_failed,read_p50_us,read_p99_us,retries,notifications,notifications_per_s\n");
+        for (Snapshot s : snapshot()) {
+            out.append(String.format(Locale.US, "%s,%s,%d,%d,%d,%d,%d,%.1f,%d,%d,%d,%d,%d,%d,%d,%d,%.1f\n", s.deviceId, s.datatype, s.writesRequested,
+                    s.writesRejected, s.writesAcked, s.writeFailures, s.bytesWritten, s.writeThroughput, s.writeLatencyP50, s.writeLatencyP99,
+                    s.readsCompleted, s.readFailures, s.readLatencyP50, s.readLatencyP99, s.retries, s.notifications, s.notificationRate));
+        }
+        return out.toString();
+    }
+
+    /**
+     * Record the retries of a finished operation.
+     * @param counters The counters of the characteristic.
+     * @param operation The operation that finished.
+     */
+    private void _recordAttempt(Counters counters, BluetoothGattOperation operation) {
+        if (operation.retried > 0) {
+            counters.retries.addAndGet(operation.retried);
+        }
+    }
+
+    /**
+     * Get the counters of a characteristic of a device, creating them the first time it is seen.
+     * @param deviceId The Bluetooth identifier of the device, null is counted under an empty string.
+     * @param datatype The characteristic UUID, null is counted under an empty string.
+     * @return The counters.
+     */
+    private Counters _get(String deviceId, String datatype) {
+        String deviceKey = (deviceId != null ? deviceId : "");
+        ConcurrentHashMap<String, Counters> device = _counters.get(deviceKey);
+        if (device == null) {
+            ConcurrentHashMap<String, Counters> created = new ConcurrentHashMap<>();
+            device = _counters.putIfAbsent(deviceKey, created);
+            if (device == null) {
+                device = created;
+            }
+        }
+        String key = (datatype != null ? datatype : "");
+        Counters counters = device.get(key);
+        if (counters == null) {
+            Counters created = new Counters();
+            counters = device.putIfAbsent(key, created);
+            if (counters == null) {
+                counters = created;
+            }
+        }
+        return counters;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+/**
+ * A single request that is executed by the BluetoothGattOperationQueue.  Each operation maps to one
+ * call on the OS BluetoothGatt object and is finished by the matching BluetoothGattCallback event.
+ */
+class BluetoothGattOperation {
+    static final int OPERATION_READ = 0;
+    static final int OPERATION_WRITE = 1;
+    static final int OPERATION_WRITE_NO_RESPONSE = 2;
+    static final int OPERATION_DESCRIPTOR_WRITE = 3;
+    static final int OPERATION_MTU = 4;
+    static final int OPERATION_PRIORITY = 5;
+    static final int OPERATION_DISCOVER_SERVICES = 6;
+
+    /**
+     * Scheduling class of the operations the user is waiting on, e.g. a feature toggle, started before anything else
+     */
+    static final int CLASS_INTERACTIVE = 0;
+    /**
+     * Scheduling class of the reads, writes with response and setup operations
+     */
+    static final int CLASS_CONTROL = 1;
+    /**
+     * Scheduling class of the writes without response, e.g. the segments of a firmware image
+     */
+    static final int CLASS_BULK = 2;
+    static final int CLASS_COUNT = 3;
+
+    /**
+     * The default time to wait for the callback of an operation before it is considered failed
+     */
+    static final long DEFAULT_TIMEOUT = 5000;
+    /**
+     * The default number of times an operation is restarted before the failure is reported
+     */
+    static final int DEFAULT_RETRIES = 3;
+
+    /**
+     * The type of the operation, one of the OPERATION_* constants
+     */
+    final int type;
+    /**
+     * The characteristic that is read or written, null for operations that do not target a characteristic
+     */
+    final BluetoothGattCharacteristic characteristic;
+    /**
+     * The descriptor that is written, null for operations that do not target a descriptor
+     */
+    final BluetoothGattDescriptor descriptor;
+    /**
+     * The value to write.  The value is applied to the characteristic/descriptor when the operation starts
+     * so that queued writes to the same attribute do not overwrite each other.
+     */
+    final byte[] value;
+    /**
+     * The requested MTU or connection priority for OPERATION_MTU and OPERATION_PRIORITY
+     */
+    final int parameter;
+    /**
+     * The characteristic UUID reported back to the App for this operation
+     */
+    final String datatype;
+
+    /**
+     * The time in milliseconds to wait for the completion callback
+     */
+    long timeout = DEFAULT_TIMEOUT;
+    /**
+     * The number of restarts left before the operation is failed
+     */
+    int retries = DEFAULT_RETRIES;
+    /**
+     * Whether a timeout should restart the operation.  This is only safe for operations that can be
+     * repeated without side effects on the device.
+     */
+    boolean retryOnTimeout = false;
+    /**
+     * The segmented transfer this write is part of, null for a write that fits in a single packet
+     */
+    BluetoothWriteTransfer transfer = null;
+    /**
+     * The scheduling class of the operation in the queue, one of the CLASS_* constants
+     */
+    int schedulingClass = CLASS_CONTROL;
+    /**
+     * The BluetoothGattMetrics.now() time the OS last accepted the request, 0 if it has not been started
+     */
+    long startTime = 0;
+    /**
+     * The number of times the operation was restarted by the queue
+     */
+    int retried = 0;
+
+    private BluetoothGattOperation(int type, BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor, byte[] value, int parameter) {
+        this.type = type;
+        this.characteristic = characteristic;
+        this.descriptor = descriptor;
+        this.value = value;
+        this.parameter = parameter;
+        if (characteristic != null) {
+            this.datatype = characteristic.getUuid().toString();
+        } else if (descriptor != null && descriptor.getCharacteristic() != null) {
+            this.datatype = descriptor.getCharacteristic().getUuid().toString();
+        } else {
+            this.datatype = null;
+        }
+    }
+
+    /**
+     * Create a characteristic read operation.
+     * @param characteristic The characteristic to read.
+     * @return The new operation.
+     */
+    static BluetoothGattOperation read(BluetoothGattCharacteristic characteristic) {
+        BluetoothGattOperation op = new BluetoothGattOperation(OPERATION_READ, characteristic, null, null, 0);
+        op.retryOnTimeout = true;
+        return op;
+    }
+
+    /**
+     * Create a characteristic write operation.
+     * @param characteristic The characteristic to write.
+     * @param value The raw data bytes to write.
+     * @param withResponse true to request an ACK from the device, false to use the without response write type.
+     * @return The new operation.
+     */
+    static BluetoothGattOperation write(BluetoothGattCharacteristic characteristic, byte[] value, boolean withResponse) {
+        BluetoothGattOperation op = new BluetoothGattOperation(withResponse ? OPERATION_WRITE : OPERATION_WRITE_NO_RESPONSE, characteristic, null, value, 0);
+        if (!withResponse) {
+            op.schedulingClass = CLASS_BULK;
+        }
+        return op;
+    }
+
+    /**
+     * Create a descriptor write operation.
+     * @param descriptor The descriptor to write.
+     * @param value The raw data bytes to write.
+     * @return The new operation.
+     */
+    static BluetoothGattOperation writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+        BluetoothGattOperation op = new BluetoothGattOperation(OPERATION_DESCRIPTOR_WRITE, null, descriptor, value, 0);
+        op.retryOnTimeout = true;
+        return op;
+    }
+
+    /**
+     * Create an MTU exchange operation.
+     * @param mtu The MTU to request from the device.
+     * @return The new operation.
+     */
+    static BluetoothGattOperation requestMtu(int mtu) {
+        BluetoothGattOperation op = new BluetoothGattOperation(OPERATION_MTU, null, null, null, mtu);
+        op.retryOnTimeout = true;
+        return op;
+    }
+
+    /**
+     * Create a connection priority operation.
+     * @param priority One of the BluetoothGatt.CONNECTION_PRIORITY_* constants.
+     * @return The new operation.
+     */
+    static BluetoothGattOperation requestPriority(int priority) {
+        return new BluetoothGattOperation(OPERATION_PRIORITY, null, null, null, priority);
+    }
+
+    /**
+     * Create a service discovery operation, used to discover the services again on a connection that is in use so
+     * that the discovery does not overlap the reads and writes queued before it.
+     * @param timeout The time to wait for the discovery to finish in milliseconds.
+     * @return The new operation.
+     */
+    static BluetoothGattOperation discoverServices(long timeout) {
+        BluetoothGattOperation op = new BluetoothGattOperation(OPERATION_DISCOVER_SERVICES, null, null, null, 0);
+        op.timeout = timeout;
+        return op;
+    }
+
+    /**
+     * Whether this operation writes a characteristic, either with or without response.
+     * @return true for write operations.
+     */
+    boolean isWrite() {
+        return type == OPERATION_WRITE || type == OPERATION_WRITE_NO_RESPONSE;
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * The OS Bluetooth stack only allows a single outstanding GATT request per connection.  This class
+ * serializes all the requests for a connection, starts the next one when the matching callback for the
+ * current one arrives and handles the timeout and retry policy of each operation.  All the queue state
+ * is only touched on the thread of the handler given to the constructor, no thread is ever blocked waiting
+ * for a callback.  Writes without response the stack refuses because its buffers are full are tried again
+ * after the back off of a BluetoothWritePacer.  The waiting operations are kept in one FIFO per scheduling
+ * class so that an interactive request is started as soon as the operation in progress finishes, even behind
+ * hundreds of bulk writes, and each lower class still gets a turn after MAX_SKIPS operations of the higher
+ * classes.
+ */
+class BluetoothGattOperationQueue {
+    /**
+     * A static string used to tag log messages that this class writes when in debug mode
+     */
+    private static String LOG_TAG = BluetoothGattOperationQueue.class.getSimpleName();
+    /**
+     * The delay before an operation that could not be started is tried again
+     */
+    private static final long RETRY_DELAY = 50;
+    /**
+     * The status reported when an operation did not get its callback in time
+     */
+    static final int OPERATION_STATUS_TIMEOUT = BluetoothServiceConstants.UNKNOWN_BLE_TIMEOUT_STATUS;
+    /**
+     * The number of operations of the higher classes started in a row before a waiting lower class operation goes next
+     */
+    static final int MAX_SKIPS = 8;
+
+    /**
+     * Interface to implement to be told when an operation has finished, successfully or not.
+     */
+    interface OperationListener {
+        /**
+         * Notification that an operation has been finished by its GATT callback and was removed from the queue.
+         * @param operation The operation that finished.
+         * @param status The GATT status reported by the callback.
+         */
+        void onOperationComplete(BluetoothGattOperation operation, int status);
+
+        /**
+         * Notification that an operation could not be started or did not get its GATT callback in time, after all
+         * its retries were used up.  The operation was removed from the queue.
+         * @param operation The operation that failed.
+         * @param status GATT_FAILURE if the request could not be started, OPERATION_STATUS_TIMEOUT if it timed out.
+         */
+        void onOperationFailed(BluetoothGattOperation operation, int status);
+    }
+
+    private final Handler _handler;
+    private final OperationListener _listener;
+    private final ArrayDeque<BluetoothGattOperation>[] _pending;
+    private final int[] _skips = new int[BluetoothGattOperation.CLASS_COUNT];
+    private BluetoothGatt _gatt = null;
+    private BluetoothGattOperation _current = null;
+    private final BluetoothWritePacer _pacer = new BluetoothWritePacer();
+
+    private final Runnable _timeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            BluetoothGattOperation op = _current;
+            if (op == null) { return; }
+            if (BuildConfig.DEBUG) {
+                Log.d(LOG_TAG, "Operation " + op.type + " timed out -- " + op.datatype);
+            }
+            if (op.retryOnTimeout) {
+                _retry(op, OPERATION_STATUS_TIMEOUT);
+            } else {
+                _finish(op, OPERATION_STATUS_TIMEOUT, false);
+            }
+        }
+    };
+
+    private final Runnable _startRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (_current != null) {
+                _start(_current);
+            }
+        }
+    };
+
+    /**
+     * Create a queue for a single GATT connection.
+     * @param handler The handler of the thread that owns the connection state.
+     * @param listener The listener notified when operations finish.
+     */
+    BluetoothGattOperationQueue(Handler handler, OperationListener listener) {
+        _handler = handler;
+        _listener = listener;
+        @SuppressWarnings("unchecked")
+        ArrayDeque<BluetoothGattOperation>[] pending = new ArrayDeque[BluetoothGattOperation.CLASS_COUNT];
+        for (int i = 0; i < pending.length; i++) {
+            pending[i] = new ArrayDeque<>();
+        }
+        _pending = pending;
+    }
+
+    /**
+     * Set the GATT connection that the operations are executed on.
+     * @param gatt The connected GATT object, or null when the connection is gone.
+     */
+    void setGatt(BluetoothGatt gatt) {
+        _gatt = gatt;
+        _pacer.reset();
+    }
+
+    /**
+     * Add an operation to the end of the queue of its scheduling class and start it if nothing else is in progress.
+     * A write to a characteristic that still has writes waiting in a lower class is queued in the lowest of those
+     * classes, behind the last of them, so that the device gets the data of each characteristic in order.
+     * @param operation The operation to add.
+     * @return true if the operation was queued, false if there is no connection to run it on.
+     */
+    boolean enqueue(BluetoothGattOperation operation) {
+        if (_gatt == null || operation == null) {
+            return false;
+        }
+        int schedulingClass = operation.schedulingClass;
+        if (operation.isWrite()) {
+            schedulingClass = Math.max(schedulingClass, _hasWriteTo(schedulingClass, operation.characteristic));
+        }
+        _pending[schedulingClass].add(operation);
+        _next();
+        return true;
+    }
+
+    /**
+     * Add an operation to the front of the queue so that it starts as soon as the operation in progress finishes.
+     * Used for the connection priority changes that should apply to the work already waiting.
+     * @param operation The operation to add.
+     * @return true if the operation was queued, false if there is no connection to run it on.
+     */
+    boolean enqueueNext(BluetoothGattOperation operation) {
+        if (_gatt == null || operation == null) {
+            return false;
+        }
+        _pending[BluetoothGattOperation.CLASS_INTERACTIVE].addFirst(operation);
+        _next();
+        return true;
+    }
+
+    /**
+     * Whether a write to a characteristic is in progress or waiting.
+     * @param characteristic The characteristic.
+     * @return true if the characteristic has a write in the queue.
+     */
+    boolean hasWrite(BluetoothGattCharacteristic characteristic) {
+        if (_current != null && _current.isWrite() && _current.characteristic == characteristic) {
+            return true;
+        }
+        for (ArrayDeque<BluetoothGattOperation> pending : _pending) {
+            for (BluetoothGattOperation op : pending) {
+                if (op.isWrite() && op.characteristic == characteristic) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether there is no operation in progress or waiting.
+     * @return true if the queue is idle.
+     */
+    boolean isIdle() {
+        if (_current != null) {
+            return false;
+        }
+        for (ArrayDeque<BluetoothGattOperation> pending : _pending) {
+            if (!pending.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drop all the operations in the queue without notifying the listener.  Used when the connection is
+     * closed, the connection state change is reported to the App instead.
+     */
+    void clear() {
+        _handler.removeCallbacks(_timeoutRunnable);
+        _handler.removeCallbacks(_startRunnable);
+        for (ArrayDeque<BluetoothGattOperation> pending : _pending) {
+            pending.clear();
+        }
+        Arrays.fill(_skips, 0);
+        _current = null;
+    }
+
+    /**
+     * Called from the BluetoothGattCallback to finish the operation in progress.  This method can be called
+     * from any thread, the completion is handled on the queue thread.
+     * @param type The type of operation the callback belongs to.
+     * @param target The characteristic or descriptor the callback was generated for, or null.
+     * @param status The status reported by the callback.
+     */
+    void completeOperation(final int type, final Object target, final int status) {
+        if (Looper.myLooper() == _handler.getLooper()) {
+            _complete(type, target, status);
+            return;
+        }
+        _handler.post(new Runnable() {
+            @Override
+            public void run() {
+                _complete(type, target, status);
+            }
+        });
+    }
+
+    /**
+     * Finish the operation in progress if the callback belongs to it.
+     * @param type The type of operation the callback belongs to.
+     * @param target The characteristic or descriptor the callback was generated for, or null.
+     * @param status The status reported by the callback.
+     */
+    private void _complete(int type, Object target, int status) {
+        BluetoothGattOperation op = _current;
+        if (op != null && _matches(op, type, target)) {
+            _finish(op, status, true);
+        } else if (BuildConfig.DEBUG) {
+            Log.d(LOG_TAG, "Unexpected callback for operation " + type);
+        }
+    }
+
+    /**
+     * Check that a callback belongs to the operation in progress.
+     * @param op The operation in progress.
+     * @param type The type of operation the callback belongs to.
+     * @param target The characteristic or descriptor of the callback.
+     * @return true if the callback finishes the operation.
+     */
+    private boolean _matches(BluetoothGattOperation op, int type, Object target) {
+        if (op.isWrite() && (type == BluetoothGattOperation.OPERATION_WRITE || type == BluetoothGattOperation.OPERATION_WRITE_NO_RESPONSE)) {
+            return target == null || target == op.characteristic;
+        }
+        if (op.type != type) {
+            return false;
+        }
+        switch (type) {
+            case BluetoothGattOperation.OPERATION_READ:
+                return target == null || target == op.characteristic;
+            case BluetoothGattOperation.OPERATION_DESCRIPTOR_WRITE:
+                return target == null || target == op.descriptor;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Start the next operation if the queue is not busy.  The remaining segments of an aborted transfer are dropped.
+     */
+    private void _next() {
+        BluetoothGattOperation op;
+        while (_current == null && (op = _poll()) != null) {
+            if (op.transfer != null && op.transfer.isAborted()) {
+                continue;
+            }
+            _current = op;
+            _start(op);
+        }
+    }
+
+    /**
+     * Take the next operation to start: the oldest of the highest class waiting, unless a lower class has been
+     * skipped MAX_SKIPS times in a row.
+     * @return The operation, or null if nothing is waiting.
+     */
+    private BluetoothGattOperation _poll() {
+        int next = -1;
+        for (int i = BluetoothGattOperation.CLASS_COUNT - 1; i > 0 && next < 0; i--) {
+            if (!_pending[i].isEmpty() && _skips[i] >= MAX_SKIPS) {
+                next = i;
+            }
+        }
+        for (int i = 0; i < BluetoothGattOperation.CLASS_COUNT && next < 0; i++) {
+            if (!_pending[i].isEmpty()) {
+                next = i;
+            }
+        }
+        if (next < 0) {
+            return null;
+        }
+        _skips[next] = 0;
+        for (int i = next + 1; i < BluetoothGattOperation.CLASS_COUNT; i++) {
+            if (!_pending[i].isEmpty()) {
+                _skips[i]++;
+            }
+        }
+        return _pending[next].poll();
+    }
+
+    /**
+     * Find the lowest class below the one given that has writes to a characteristic waiting.
+     * @param schedulingClass The class of the write being queued.
+     * @param characteristic The characteristic the write is for.
+     * @return the index of the class the write has to be queued in to stay behind them, -1 if there are none.
+     */
+    private int _hasWriteTo(int schedulingClass, BluetoothGattCharacteristic characteristic) {
+        for (int i = BluetoothGattOperation.CLASS_COUNT - 1; i > schedulingClass; i--) {
+            for (BluetoothGattOperation op : _pending[i]) {
+                if (op.isWrite() && op.characteristic == characteristic) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Issue the OS request for an operation.
+     * @param op The operation to start.
+     */
+    private void _start(BluetoothGattOperation op) {
+        if (_gatt == null) {
+            _finish(op, BluetoothGatt.GATT_FAILURE, false);
+            return;
+        }
+        boolean paced = (op.type == BluetoothGattOperation.OPERATION_WRITE_NO_RESPONSE);
+        if (!_execute(op)) {
+            if (paced && _pacer.onRejected()) {
+                // The stack buffers are full, try again once they have drained
+                _handler.postDelayed(_startRunnable, _pacer.nextBackoff());
+                return;
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(LOG_TAG, "Operation " + op.type + " could not be started -- " + op.datatype);
+            }
+            _retry(op, BluetoothGatt.GATT_FAILURE);
+            return;
+        }
+        if (paced) {
+            _pacer.onAccepted();
+        }
+        op.startTime = BluetoothGattMetrics.now();
+        if (op.type == BluetoothGattOperation.OPERATION_PRIORITY) {
+            // There is no public callback for a connection parameter update
+            _finish(op, BluetoothGatt.GATT_SUCCESS, true);
+            return;
+        }
+        _handler.postDelayed(_timeoutRunnable, op.timeout);
+    }
+
+    /**
+     * Perform the OS call for the operation.
+     * @param op The operation to perform.
+     * @return true if the OS accepted the request, false otherwise.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean _execute(BluetoothGattOperation op) {
+        switch (op.type) {
+            case BluetoothGattOperation.OPERATION_READ:
+                return _gatt.readCharacteristic(op.characteristic);
+            case BluetoothGattOperation.OPERATION_WRITE:
+            case BluetoothGattOperation.OPERATION_WRITE_NO_RESPONSE:
+                if (op.value != null && op.value.length > 0) {
+                    op.characteristic.setValue(op.value);
+                }
+                op.characteristic.setWriteType(op.type == BluetoothGattOperation.OPERATION_WRITE ?
+                        BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                return _gatt.writeCharacteristic(op.characteristic);
+            case BluetoothGattOperation.OPERATION_DESCRIPTOR_WRITE:
+                op.descriptor.setValue(op.value);
+                return _writeDescriptorProper(op);
+            case BluetoothGattOperation.OPERATION_MTU:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && _gatt.requestMtu(op.parameter);
+            case BluetoothGattOperation.OPERATION_PRIORITY:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && _gatt.requestConnectionPriority(op.parameter);
+            case BluetoothGattOperation.OPERATION_DISCOVER_SERVICES:
+                return _gatt.discoverServices();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * This method is used to workaround a bug in the Android Bluetooth descriptor setup where the descriptor's
+     * descriptor write type is incorrectly inherited from the parent characteristic.  This causes descriptor write
+     * problems if the parent characteristic has not response enabled.
+     * @param op The descriptor operation being performed
+     * @return true if the descriptor write was performed, false otherwise.
+     */
+    private boolean _writeDescriptorProper(BluetoothGattOperation op) {
+        final BluetoothGattCharacteristic parentCharacteristic = op.descriptor.getCharacteristic();
+        if (parentCharacteristic == null) {
+            return false;
+        }
+
+        int tmpWriteType = parentCharacteristic.getWriteType();
+        parentCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        boolean result = _gatt.writeDescriptor(op.descriptor);
+        parentCharacteristic.setWriteType(tmpWriteType);
+        return result;
+    }
+
+    /**
+     * Restart an operation if it has retries left, otherwise fail it.
+     * @param op The operation to retry.
+     * @param status The status to report if there are no retries left.
+     */
+    private void _retry(BluetoothGattOperation op, int status) {
+        _handler.removeCallbacks(_timeoutRunnable);
+        if (op.retries-- > 0) {
+            op.retried++;
+            _handler.postDelayed(_startRunnable, RETRY_DELAY);
+        } else {
+            _finish(op, status, false);
+        }
+    }
+
+    /**
+     * Remove the operation in progress, report it to the listener and move on to the next operation.
+     * @param op The operation that finished.
+     * @param status The status of the operation.
+     * @param completed true if the operation was finished by its callback, false if it failed in the queue.
+     */
+    private void _finish(BluetoothGattOperation op, int status, boolean completed) {
+        _handler.removeCallbacks(_timeoutRunnable);
+        _handler.removeCallbacks(_startRunnable);
+        if (_current == op) {
+            _current = null;
+        }
+        if (_listener != null) {
+            if (completed) {
+                _listener.onOperationComplete(op, status);
+            } else {
+                _listener.onOperationFailed(op, status);
+            }
+        }
+        _next();
+    }
+}
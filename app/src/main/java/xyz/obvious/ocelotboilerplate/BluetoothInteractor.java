@@ -41,7 +41,11 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.ParcelUuid;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.obvious.mobileapi.OcelotDeviceConnector;
@@ -50,15 +54,18 @@ import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import androidx.fragment.app.FragmentActivity;
 
 /**
  * This class performs the communication with the OS implementation of Bluetooth protocol.
- * The current implementation only handles the communication with a single Bluetooth device and passes
- * all the events and data to the listener interfaces injected into this object.
+ * The implementation keeps a pool of GATT connections keyed by the device MAC so that several Bluetooth
+ * devices can be worked with at the same time, and passes all the events and data to the listener
+ * interfaces injected into this object.
  */
 class BluetoothInteractor
 {
@@ -70,6 +77,71 @@ class BluetoothInteractor
      * The default period to remain scanning for Bluetooth low energy devices
      */
     private static int DEFAULT_SCAN_PERIOD = 30000;
+    /**
+     * The default maximum number of devices that can be connected at the same time
+     */
+    private static int DEFAULT_MAX_CONNECTIONS = 4;
+    /**
+     * The change of the smoothed RSSI of a device, in dBm, that is reported to the App as an update
+     */
+    private static final int RSSI_REPORT_THRESHOLD = 3;
+    /**
+     * The time allowed for the OS to report the connection to the device
+     */
+    private static final long CONNECT_STEP_TIMEOUT = 15000;
+    /**
+     * The time allowed for the service discovery, including any delay required by the phone
+     */
+    private static final long DISCOVERY_STEP_TIMEOUT = 10000;
+    /**
+     * The time given to the OS to drop its service cache before the services are discovered again
+     */
+    private static final long REFRESH_SETTLE_DELAY = 500;
+    /**
+     * The time allowed for the notification/indication setup of all the characteristics
+     */
+    private static final long CONFIGURE_STEP_TIMEOUT = 15000;
+    /**
+     * The ATT MTU requested from the device during the connection setup, the largest allowed by the specification
+     */
+    private static final int DESIRED_MTU = 517;
+    /**
+     * The Service Changed characteristic UUID, compared against every notification
+     */
+    private static final UUID SERVICE_CHANGED_UUID = UUID.fromString(BluetoothServiceConstants.BLE_CHARACTERISTIC_GATT_ATTR_SERVICE_CHANGED);
+    /**
+     * The UUID of the characteristic a device publishes its L2CAP channel PSM in
+     */
+    private static final UUID L2CAP_PSM_UUID = UUID.fromString(BluetoothServiceConstants.BLE_CHARACTERISTIC_L2CAP_PSM);
+
+    /**
+     * Scan profile that reports every advertisement as soon as it is received, for the fastest discovery
+     */
+    static final int SCAN_PROFILE_LOW_LATENCY = 0;
+    /**
+     * Scan profile that lets the controller collect the results and report them in batches, for long scans
+     */
+    static final int SCAN_PROFILE_BATCHED = 1;
+    /**
+     * Scan profile that starts with a short low latency burst and then steps down to lower power duty cycles
+     */
+    static final int SCAN_PROFILE_ADAPTIVE = 2;
+    /**
+     * The time the controller holds the results of a batched scan before reporting them
+     */
+    private static final long BATCHED_SCAN_REPORT_DELAY = 1000;
+    /**
+     * The default time after its last advertisement that a device is removed from the scan results
+     */
+    static final long DEFAULT_SCAN_RESULT_TTL = 30000;
+    /**
+     * The default most devices kept in the scan results, the device seen the longest ago makes room for a new one
+     */
+    static final int DEFAULT_MAX_SCAN_RESULTS = 10000;
+    /**
+     * The time between two checks for devices that have not advertised within the TTL
+     */
+    private static final long SCAN_EVICTION_INTERVAL = 2000;
 
     /**
      * The current instance of the BluetoothInteractor
@@ -91,14 +163,17 @@ class BluetoothInteractor
     private BluetoothAdapter _defaultBluetoothAdapter;
 
     /**
-     * The current GATT device that has been connected to using this interactor
+     * The open connections keyed by device MAC, in least recently used order
      */
-    private BluetoothGatt _deviceGatt = null;
-
+    private LinkedHashMap<String,BluetoothDeviceSession> _sessions = new LinkedHashMap<>(8, 0.75f, true);
+    /**
+     * The connections waiting to be tried again, by device MAC.  Only used on the Bluetooth thread.
+     */
+    private HashMap<String,Runnable> _pendingRetries = new HashMap<>();
     /**
-     * The callback that receives the Bluetooth events from the OS BluetoothManager
+     * The maximum number of devices that can be connected at the same time
      */
-    private BluetoothInteractorGattCallback _gattCallback = null;
+    private volatile int _maxConnections = DEFAULT_MAX_CONNECTIONS;
 
     /**
      * The callback that is used to collect scan results returned by the Bluetooth scanner.
@@ -111,40 +186,107 @@ class BluetoothInteractor
      */
     private ScanCallback _newLeScanCallback = null;
     /**
-     * This listener is used to pass scan results back to the App layer
+     * The consumers of the scan in progress, each with its own filters and listener.  The list is read on the scan
+     * callback thread and only changed when a consumer joins or leaves.
      */
-    private BluetoothScanResultListener _scanResultListener = null;
-
+    private CopyOnWriteArrayList<BluetoothScanSubscription> _scanSubscriptions = new CopyOnWriteArrayList<>();
     /**
-     * Used to track the unique devices found during the scan
+     * The subscriptions whose filters the running OS scan was started with
      */
-    private HashMap<String,BluetoothDevice> _scanList = new HashMap<>();
+    private ArrayList<BluetoothScanSubscription> _osScanSubscriptions = new ArrayList<>();
+
     /**
-     * The scan data associated with each device found
+     * The devices found during the scan with their scan data, ranked by signal strength
      */
-    private ArrayList<BluetoothScanResultListener.DeviceRecord> _scanResults = new ArrayList<>();
+    private BluetoothScanTable _scanTable = new BluetoothScanTable();
     /**
      * The services to filter on when performing a Bluetooth scan
      */
     private ArrayList<ParcelUuid> _serviceFilterList = null;
+    /**
+     * The manufacturer data to filter on when performing a Bluetooth scan
+     */
+    private int _manufacturerFilterId = BluetoothAdvertisement.MANUFACTURER_UNKNOWN;
+    private byte[] _manufacturerFilterData = null;
+    private byte[] _manufacturerFilterMask = null;
+    /**
+     * The scan profile used for the next scan operations, one of the SCAN_PROFILE_* constants
+     */
+    private int _scanProfile = SCAN_PROFILE_ADAPTIVE;
+    /**
+     * The phases of the adaptive scan and the Android scan start limit
+     */
+    private BluetoothScanScheduler _scanScheduler = new BluetoothScanScheduler();
+    /**
+     * Whether the OS scanner is running for the scan in progress
+     */
+    private boolean _osScanStarted = false;
+
+    private final Runnable _scanStartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            _restartOsScan();
+        }
+    };
+
+    private final Runnable _scanPhaseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            _advanceScanPhase();
+        }
+    };
+    /**
+     * The time after its last advertisement that a device is removed from the scan results, 0 to keep all devices
+     */
+    private long _scanResultTtl = DEFAULT_SCAN_RESULT_TTL;
+    /**
+     * The most devices kept in the scan results
+     */
+    private int _maxScanResults = DEFAULT_MAX_SCAN_RESULTS;
+
+    private final Runnable _scanEvictionRunnable = new Runnable() {
+        @Override
+        public void run() {
+            _evictExpiredScanResults();
+        }
+    };
+    /**
+     * The report delay of the scan in progress, 0 when results are reported immediately
+     */
+    private long _scanReportDelay = 0;
 
     private boolean _scanning = false;
     private Runnable _leStopScan = null;
+    /**
+     * Handler of the main thread, used for the scan process and to pass the final events to the App
+     */
     private Handler _handler = null;
-    private int scanPeriod = DEFAULT_SCAN_PERIOD;
-
     /**
-     * The BluetoothObviousDevice device object that this interactor is working with.  The data
-     * and error events are passed on to this object.
+     * The dedicated thread that owns all the GATT connection state and work
      */
-    private BluetoothObviousDevice _bleDevice = null;
-
+    private HandlerThread _bleThread = null;
+    /**
+     * Handler of the dedicated Bluetooth thread
+     */
+    private Handler _bleHandler = null;
+    /**
+     * Passes the characteristic data on to the devices on the main thread without allocating per event
+     */
+    private BluetoothNotificationRing _notificationRing = null;
+    /**
+     * The devices the App has connected to, used to connect again without scanning
+     */
+    private BluetoothDeviceRegistry _knownDevices = null;
     /**
-     * Lock used to make sure descriptor writes happen in sequence
+     * The GATT layouts validated for each device, used to keep the OS service cache between connections
      */
-    private final Object _descriptorLock = new Object();
-    private boolean _descriptorStatus = false;
-    private boolean _clearServiceCache = false;
+    private BluetoothServiceLayoutCache _serviceLayouts = null;
+    /**
+     * The latency of each connection phase over all the connections
+     */
+    private final BluetoothConnectionMetrics _connectionMetrics = new BluetoothConnectionMetrics();
+    private final BluetoothGattMetrics _gattMetrics = new BluetoothGattMetrics();
+    private int scanPeriod = DEFAULT_SCAN_PERIOD;
 
     /**
      * Factory for creating an instance of the BluetoothInteractor.
@@ -155,27 +297,130 @@ class BluetoothInteractor
         if (_instance == null) {
             _instance = new BluetoothInteractor();
             _instance._handler = new Handler(ctx.getMainLooper());
+            _instance._bleThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_FOREGROUND);
+            _instance._bleThread.start();
+            _instance._bleHandler = new Handler(_instance._bleThread.getLooper());
+            _instance._notificationRing = new BluetoothNotificationRing(_instance._handler);
+            _instance._knownDevices = new BluetoothDeviceRegistry(ctx);
+            _instance._serviceLayouts = new BluetoothServiceLayoutCache(ctx);
         }
+        _instance._initAdapter(ctx);
         return _instance;
     }
 
     /**
-     * This method passed the scan results to the App listener setup when the scan operation was started
+     * Look up the OS Bluetooth adapter if it is not known yet.  This does not ask the user to turn Bluetooth on,
+     * _setupBluetoothHardware() does that before a scan.
+     * @param ctx The context used to get the Bluetooth system service.
+     */
+    private void _initAdapter(Context ctx) {
+        if (_defaultBluetoothAdapter != null || ctx == null) {
+            return;
+        }
+        _bluetoothManager = (BluetoothManager)ctx.getSystemService(Context.BLUETOOTH_SERVICE);
+        if (_bluetoothManager != null) {
+            _defaultBluetoothAdapter = _bluetoothManager.getAdapter();
+        }
+    }
+
+    /**
+     * Run a task on the dedicated Bluetooth thread.  The task is run straight away if the caller is already on that thread.
+     * @param task The task to run.
+     */
+    private void _runOnBleThread(Runnable task) {
+        if (Looper.myLooper() == _bleHandler.getLooper()) {
+            task.run();
+        } else {
+            _bleHandler.post(task);
+        }
+    }
+
+    /**
+     * This method passed the changes to the scan results to the App listeners of the scan in progress.
+     * @param force true to notify the listeners even if nothing has changed, used to signal the end of a scan.
+     */
+    private void _notifyScanResults(boolean force) {
+        for (BluetoothScanSubscription subscription : _scanSubscriptions) {
+            subscription.deliver(force);
+        }
+    }
+
+    /**
+     * Record a new or changed device in the scan results and pass it on to the subscriptions it matches.  A
+     * subscription looking for that device is ended.
+     * @param record The latest record of the device.
+     */
+    private void _updateScanResult(BluetoothScanResultListener.DeviceRecord record) {
+        for (final BluetoothScanSubscription subscription : _scanSubscriptions) {
+            if (!subscription.matches(record.getAdvertisement())) { continue; }
+            subscription.onRecord(record);
+            if (subscription.matcher != null && subscription.matcher.isTarget(record)) {
+                if (BuildConfig.DEBUG) {
+                    Log.d(LOG_TAG, "_updateScanResult - target found, ending subscription " + record.getAddress());
+                }
+                _handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        _removeScanSubscription(subscription);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Remove a device from the scan results and report it as removed to the subscriptions it was passed on to.
+     * @param index The index of the device in the scan table.
+     */
+    private void _evictScanResult(int index) {
+        BluetoothScanResultListener.DeviceRecord record = _buildDeviceRecord(index);
+        for (BluetoothScanSubscription subscription : _scanSubscriptions) {
+            subscription.onRemoved(record);
+        }
+        _scanTable.remove(index);
+    }
+
+    /**
+     * Remove the devices that have not advertised within the TTL, run periodically while scanning.
+     */
+    private void _evictExpiredScanResults() {
+        if (!_scanning) { return; }
+        if (_scanResultTtl > 0) {
+            long expired = SystemClock.elapsedRealtime() - _scanResultTtl;
+            // Walk backwards, a removal moves the last device into the freed index
+            for (int index = _scanTable.size() - 1; index >= 0; index--) {
+                if (!_scanTable.isExcluded(index) && _scanTable.getLastSeen(index) < expired) {
+                    _evictScanResult(index);
+                }
+            }
+            _notifyScanResults(false);
+        }
+        _handler.postDelayed(_scanEvictionRunnable, SCAN_EVICTION_INTERVAL);
+    }
+
+    /**
+     * Whether any subscription of the scan in progress is interested in an advertisement.
+     * @param advertisement The parsed advertisement.
+     * @return true if at least one subscription matches it.
      */
-    private void _notifyScanResults() {
-        if (_scanResultListener == null) { return; }
-        _scanResultListener.onScanResults(_scanResults);
+    private boolean _matchesScanSubscription(BluetoothAdvertisement advertisement) {
+        for (BluetoothScanSubscription subscription : _scanSubscriptions) {
+            if (subscription.matches(advertisement)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
      * Pass the connection event on to the App
+     * @param notifyDev the device whose connection changed
      * @param status the state change status
      * @param state the state that was reached
      */
-    private void _notifyConnectionStateChange(final int status, final int state) {
-        if (_bleDevice != null && _bleDevice.getConnectionListener() != null) {
+    private void _notifyConnectionStateChange(final BluetoothObviousDevice notifyDev, final int status, final int state) {
+        if (notifyDev != null && notifyDev.getConnectionListener() != null) {
             _handler.post(new Runnable() {
-                final BluetoothObviousDevice notifyDev = _bleDevice;
                 @Override
                 public void run() {
                     notifyDev.getConnectionListener().onConnectionStateChange(status, state);
@@ -186,31 +431,24 @@ class BluetoothInteractor
 
     /**
      * Used to pass characteristic data to the App.  This method is used for both read and notified/indicated
-     * data characteristics.
-     * @param datatype the characteristic that has changed.
-     * @param rawdata the raw data bytes of the characteristic value.
+     * data characteristics and is called for every packet, so it goes through the notification ring which does
+     * not allocate per event.
+     * @param notifyDev the device the data was received from.
+     * @param characteristic the characteristic that has changed.
      */
-    private void _notifyDataChange(final String datatype, final byte[] rawdata) {
-        if (_bleDevice != null) {
-            _handler.post(new Runnable() {
-                final BluetoothObviousDevice notifyDev = _bleDevice;
-                @Override
-                public void run() {
-                    notifyDev.onDataNotification(datatype,rawdata);
-                }
-            });
-        }
+    private void _notifyDataChange(BluetoothObviousDevice notifyDev, BluetoothGattCharacteristic characteristic) {
+        _notificationRing.publish(notifyDev, characteristic.getUuid(), characteristic.getValue());
     }
 
     /**
      * Used to pass characteristic read errors to the App.
+     * @param notifyDev the device the error was received from.
      * @param datatype the characteristic that has changed.
      * @param status the Bluetooth error status code.
      */
-    private void _notifyReadErrorStatus(final String datatype, final int status) {
-        if (_bleDevice != null) {
+    private void _notifyReadErrorStatus(final BluetoothObviousDevice notifyDev, final String datatype, final int status) {
+        if (notifyDev != null) {
             _handler.post(new Runnable() {
-                final BluetoothObviousDevice notifyDev = _bleDevice;
                 @Override
                 public void run() {
                     notifyDev.onDataReadErrorNotification(datatype,status);
@@ -220,17 +458,29 @@ class BluetoothInteractor
     }
 
     /**
-     * Used to pass characteristic write status to the App.
+     * Used to pass characteristic write status to the App.  The status goes through the notification ring so
+     * that it is delivered in order with the data of the device.
+     * @param notifyDev the device the status was received from.
      * @param datatype the characteristic that has changed.
      * @param status the Bluetooth error status code.
      */
-    private void _notifyWriteStatus(final String datatype, final int status) {
-        if (_bleDevice != null) {
+    private void _notifyWriteStatus(BluetoothObviousDevice notifyDev, String datatype, int status) {
+        _notificationRing.publishWriteStatus(notifyDev, datatype, status);
+    }
+
+    /**
+     * Used to pass the progress of a segmented characteristic write to the App.
+     * @param notifyDev the device being written.
+     * @param datatype the characteristic being written.
+     * @param bytesWritten the number of bytes sent so far.
+     * @param totalBytes the total number of bytes of the write.
+     */
+    private void _notifyWriteProgress(final BluetoothObviousDevice notifyDev, final String datatype, final int bytesWritten, final int totalBytes) {
+        if (notifyDev != null) {
             _handler.post(new Runnable() {
-                final BluetoothObviousDevice notifyDev = _bleDevice;
                 @Override
                 public void run() {
-                    notifyDev.onDataWriteNotification(datatype,status);
+                    notifyDev.onDataWriteProgress(datatype,bytesWritten,totalBytes);
                 }
             });
         }
@@ -244,10 +494,7 @@ class BluetoothInteractor
     private boolean _setupBluetoothHardware(FragmentActivity curActivity) {
         boolean enabled = true;
 
-        _bluetoothManager = (BluetoothManager)curActivity.getSystemService(Context.BLUETOOTH_SERVICE);
-        if (_bluetoothManager != null) {
-            _defaultBluetoothAdapter = _bluetoothManager.getAdapter();
-        }
+        _initAdapter(curActivity);
 
         if (_defaultBluetoothAdapter != null) {
             enabled = _defaultBluetoothAdapter.isEnabled();
@@ -269,7 +516,7 @@ class BluetoothInteractor
             long lastProgressiveNotification = 0;
             @Override
             public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-                lastProgressiveNotification = _callbackProcessResults(device,lastProgressiveNotification);
+                lastProgressiveNotification = _callbackProcessResults(device,rssi,scanRecord,lastProgressiveNotification);
             }
         };
 
@@ -288,6 +535,8 @@ class BluetoothInteractor
                     for (ScanResult newResult : results) {
                         _processScanResult(newResult);
                     }
+                    // Pass on the end of the batch straight away, the next batch may be a while
+                    _notifyScanResults(false);
                 }
 
                 @Override
@@ -297,7 +546,8 @@ class BluetoothInteractor
 
                 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
                 private void _processScanResult(ScanResult result) {
-                    lastProgressiveNotification = _callbackProcessResults(result.getDevice(),lastProgressiveNotification);
+                    byte[] scanRecord = (result.getScanRecord() != null ? result.getScanRecord().getBytes() : null);
+                    lastProgressiveNotification = _callbackProcessResults(result.getDevice(),result.getRssi(),scanRecord,lastProgressiveNotification);
                 }
             };
         }
@@ -306,15 +556,20 @@ class BluetoothInteractor
             @Override
             public void run() {
                 _scanning = false;
+                _handler.removeCallbacks(_scanStartRunnable);
+                _handler.removeCallbacks(_scanPhaseRunnable);
+                _handler.removeCallbacks(_scanEvictionRunnable);
 
-                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-                    _defaultBluetoothAdapter.stopLeScan(_leScanCallback);
-                } else {
-                    if (_defaultBluetoothAdapter.getBluetoothLeScanner() != null) {
-                        _defaultBluetoothAdapter.getBluetoothLeScanner().stopScan(_newLeScanCallback);
-                    }
+                if (_osScanStarted) {
+                    _stopOsScan();
+                    _osScanStarted = false;
                 }
-                _notifyScanResults();
+                _notifyScanResults(true);
+                for (BluetoothScanSubscription subscription : _scanSubscriptions) {
+                    _handler.removeCallbacks(subscription.stopRunnable);
+                }
+                _scanSubscriptions.clear();
+                _osScanSubscriptions.clear();
 
                 if (BuildConfig.DEBUG) {
                     Log.d(LOG_TAG, "_leStopScan - finished stop scan runnable");
@@ -328,32 +583,149 @@ class BluetoothInteractor
     /**
      * Process the scan results from the scan callback
      * @param device The device that was found diring the scan
+     * @param rssi The signal strength of the advertisement.
+     * @param scanRecord The raw advertisement and scan response bytes, or null.
      * @param lastProgressiveNotification The timestamp of the last time the scan results were passed back to the App listener
      * @return The new notification timestamp.
      */
-    private long _callbackProcessResults(final BluetoothDevice device, final long lastProgressiveNotification) {
+    private long _callbackProcessResults(final BluetoothDevice device, int rssi, byte[] scanRecord, final long lastProgressiveNotification) {
         String deviceId = device.getAddress();
-        String name = device.getName();
-        if (!_scanList.containsKey(deviceId)) {
-            _scanList.put(deviceId, device);
-            _scanResults.add(new BluetoothScanResultListener.DeviceRecord((name == null || "".equals(name)) ? deviceId : name, deviceId));
+        long address = BluetoothScanTable.packAddress(deviceId);
+        int index = _scanTable.indexOf(address);
+        if (address == BluetoothScanTable.INVALID_ADDRESS || (index >= 0 && _scanTable.isExcluded(index))) {
+            // Devices that were already connected when the scan started are not reported
+            return lastProgressiveNotification;
+        }
+
+        BluetoothAdvertisement advertisement = BluetoothAdvertisement.parse(scanRecord);
+        if (!_matchesScanSubscription(advertisement)) {
+            // The OS scan filters are the union of the subscription filters, or none at all before Lollipop
+            return lastProgressiveNotification;
+        }
+        boolean report = false;
+        if (index < 0) {
+            if (_scanTable.size() >= _maxScanResults) {
+                int oldest = _scanTable.oldest();
+                if (oldest < 0) { return lastProgressiveNotification; }
+                _evictScanResult(oldest);
+            }
+            index = _scanTable.add(address);
+            report = true;
+        }
+        // Most advertisements repeat the bytes already kept, they are not parsed again for the name
+        boolean sameRecord = (scanRecord != null && Arrays.equals(scanRecord, _scanTable.getScanRecord(index)));
+        String name = (sameRecord ? _scanTable.getName(index) : advertisement.getName());
+        boolean advertisedName = (sameRecord ? _scanTable.isNameAdvertised(index) : name != null && !"".equals(name));
+        if (scanRecord != null && !sameRecord && (advertisedName || !_scanTable.isNameAdvertised(index))) {
+            // The name is often only known once the scan response has been received, keep it once it is
+            _scanTable.setScanRecord(index, scanRecord);
+        }
+        if (!advertisedName && !_scanTable.isNameAdvertised(index)) {
+            // Fall back to the name known by the OS, a binder call, only the first time the device is seen
+            name = _scanTable.getName(index);
+            if (name == null) {
+                name = device.getName();
+                name = (name != null ? name : "");
+            }
+        }
+        if (advertisedName || !_scanTable.isNameAdvertised(index)) {
+            report = report || !name.equals(_scanTable.getName(index));
+            _scanTable.setName(index, name, advertisedName);
+        }
+        int smoothedRssi = Math.round(_scanTable.updateRssi(index, rssi));
+        _scanTable.setLastSeen(index, SystemClock.elapsedRealtime());
+
+        if (report || Math.abs(smoothedRssi - _scanTable.getReportedRssi(index)) >= RSSI_REPORT_THRESHOLD) {
+            _scanTable.setReportedRssi(index, smoothedRssi);
+            _updateScanResult(_buildDeviceRecord(index));
         }
         long curTime = System.currentTimeMillis();
         if (curTime-lastProgressiveNotification > 80) {
-            _notifyScanResults();
+            _notifyScanResults(false);
             return curTime;
         }
         return lastProgressiveNotification;
     }
 
+    /**
+     * Add a consumer to the shared scan.  The OS scan is started for the first subscription.  A subscription joining
+     * a scan in progress receives the matching devices found so far, the OS scan is only restarted when its filters
+     * do not already cover the new subscription.
+     * @param activity The activity that wants to initiate the scan.
+     * @param subscription The new subscription.
+     */
+    private void _addScanSubscription(FragmentActivity activity, final BluetoothScanSubscription subscription) {
+        for (BluetoothScanSubscription current : _scanSubscriptions) {
+            if (current.listener == subscription.listener) {
+                // A listener that starts a new scan gets a fresh set of results
+                _handler.removeCallbacks(current.stopRunnable);
+                _scanSubscriptions.remove(current);
+            }
+        }
+        subscription.stopRunnable = new Runnable() {
+            @Override
+            public void run() {
+                _removeScanSubscription(subscription);
+            }
+        };
+
+        if (!_scanning) {
+            if (_leStopScan != null) {
+                // Finish a stop that is still pending before the new scan is started
+                _handler.removeCallbacks(_leStopScan);
+                _leStopScan.run();
+            }
+            if (!startBLEScan(activity, subscription)) {
+                subscription.deliver(true);
+                return;
+            }
+        } else {
+            _scanSubscriptions.add(subscription);
+            for (int index = 0; index < _scanTable.size(); index++) {
+                if (_scanTable.isExcluded(index)) { continue; }
+                BluetoothScanResultListener.DeviceRecord record = _buildDeviceRecord(index);
+                if (subscription.matches(record.getAdvertisement())) {
+                    subscription.onRecord(record);
+                }
+            }
+            boolean covered = false;
+            for (BluetoothScanSubscription current : _osScanSubscriptions) {
+                covered = covered || current.covers(subscription);
+            }
+            if (!covered) {
+                if (BuildConfig.DEBUG) {
+                    Log.d(LOG_TAG, "_addScanSubscription - widening the scan filters");
+                }
+                _restartOsScan();
+            }
+            subscription.deliver(false);
+        }
+        _handler.postDelayed(subscription.stopRunnable, scanPeriod);
+    }
+
+    /**
+     * Remove a consumer from the shared scan and signal the end of its scan to its listener.  The OS scan keeps its
+     * filters, it is stopped once the last subscription has been removed.
+     * @param subscription The subscription to remove.
+     */
+    private void _removeScanSubscription(BluetoothScanSubscription subscription) {
+        if (!_scanSubscriptions.remove(subscription)) { return; }
+        _handler.removeCallbacks(subscription.stopRunnable);
+        subscription.deliver(true);
+        if (_scanSubscriptions.isEmpty()) {
+            stopBLEScan();
+        }
+    }
+
     /**
      * Start the Bluetooth low energy scan process
      * @param activity The activity that wants to initiate the scan.
-     * @param scanServices The array of services that should be used to filter the reults
+     * @param subscription The first consumer of the scan.
+     * @return false if the scan could not be started.
      */
     @TargetApi(Build.VERSION_CODES.M)
-    private void startBLEScan(FragmentActivity activity, ArrayList<ParcelUuid> scanServices) {
-        if (_scanning) { return; }
+    private boolean startBLEScan(FragmentActivity activity, BluetoothScanSubscription subscription) {
+        if (_scanning) { return false; }
 
         if (_defaultBluetoothAdapter == null || !_defaultBluetoothAdapter.isEnabled()) {
             // If we need to ask the user about enabling Bluetooth then cancel the scan
@@ -361,9 +733,7 @@ class BluetoothInteractor
                 if (BuildConfig.DEBUG) {
                     Log.d(LOG_TAG, "_setupBluetoothHardware - enable Bluetooth activity started, cancel scan");
                 }
-                _scanning = false;
-                _notifyScanResults();
-                return;
+                return false;
             }
             if (BuildConfig.DEBUG) {
                 Log.d(LOG_TAG, "_setupBluetoothHardware - complete");
@@ -376,68 +746,207 @@ class BluetoothInteractor
                 Log.d(LOG_TAG, "LocationStatusInteractor.requestLocationEnable - enable Location services");
             }
             LocationStatusInteractor.requestLocationEnable(activity);
-            _scanning = false;
-            _notifyScanResults();
-            return;
+            return false;
         }
 
-        _scanList.clear();
-        _scanResults.clear();
+        _scanTable.clear();
 
         for (BluetoothDevice connectedDev : _bluetoothManager.getConnectedDevices(BluetoothProfile.GATT)) {
-            String deviceId = connectedDev.getAddress();
-            if (!_scanList.containsKey(deviceId)) {
+            long address = BluetoothScanTable.packAddress(connectedDev.getAddress());
+            if (address != BluetoothScanTable.INVALID_ADDRESS && _scanTable.indexOf(address) < 0) {
                 if (BuildConfig.DEBUG) {
-                    Log.d(LOG_TAG, "startBLEScan - Adding other connected device " + deviceId);
+                    Log.d(LOG_TAG, "startBLEScan - Adding other connected device " + connectedDev.getAddress());
                 }
-                _scanList.put(deviceId, connectedDev);
+                _scanTable.setExcluded(_scanTable.add(address), true);
             }
         }
 
+        _scanSubscriptions.add(subscription);
         _scanning = true;
-        _handler.postDelayed(_leStopScan, scanPeriod);
-        if (scanServices == null || scanServices.size() == 0) {
-            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+        _scanScheduler.reset();
+        _beginOsScan();
+        _handler.postDelayed(_scanEvictionRunnable, SCAN_EVICTION_INTERVAL);
+        return true;
+    }
+
+    /**
+     * Start the OS scanner for the current phase of the scan in progress.  If the scanner was started too often
+     * recently the start is delayed until Android will accept it.
+     */
+    private void _beginOsScan() {
+        if (!_scanning) { return; }
+        long now = SystemClock.elapsedRealtime();
+        long delay = _scanScheduler.getStartDelay(now);
+        if (delay > 0) {
+            if (BuildConfig.DEBUG) {
+                Log.d(LOG_TAG, "_beginOsScan - scan start limit reached, waiting " + delay + "ms");
+            }
+            _handler.postDelayed(_scanStartRunnable, delay);
+            return;
+        }
+        _scanScheduler.onScanStarted(now);
+        _osScanStarted = true;
+        _startOsScan();
+
+        if (_scanProfile == SCAN_PROFILE_ADAPTIVE && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && _scanScheduler.getPhaseDuration() > 0) {
+            _handler.postDelayed(_scanPhaseRunnable, _scanScheduler.getPhaseDuration());
+        }
+    }
+
+    /**
+     * Restart the OS scanner with the scan mode of the next phase.  The scanner keeps running in the current mode
+     * until a restart is allowed by the Android scan start limit.
+     */
+    private void _advanceScanPhase() {
+        if (!_scanning) { return; }
+        long delay = _scanScheduler.getStartDelay(SystemClock.elapsedRealtime());
+        if (delay > 0) {
+            _handler.postDelayed(_scanPhaseRunnable, delay);
+            return;
+        }
+        if (_osScanStarted) {
+            _stopOsScan();
+            _osScanStarted = false;
+        }
+        _scanScheduler.advance();
+        _beginOsScan();
+    }
+
+    /**
+     * Restart the OS scanner in the current phase, used when the filters have changed.  The scanner keeps running
+     * with its current filters until a restart is allowed by the Android scan start limit.
+     */
+    private void _restartOsScan() {
+        if (!_scanning) { return; }
+        long delay = _scanScheduler.getStartDelay(SystemClock.elapsedRealtime());
+        if (delay > 0) {
+            _handler.removeCallbacks(_scanStartRunnable);
+            _handler.postDelayed(_scanStartRunnable, delay);
+            return;
+        }
+        _handler.removeCallbacks(_scanPhaseRunnable);
+        if (_osScanStarted) {
+            _stopOsScan();
+            _osScanStarted = false;
+        }
+        _beginOsScan();
+    }
+
+    /**
+     * Start the OS scanner with the current scan profile and the union of the subscription filters.
+     */
+    private void _startOsScan() {
+        _osScanSubscriptions = new ArrayList<>(_scanSubscriptions);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            // The manufacturer filters are applied to the results in _callbackProcessResults on these versions
+            ArrayList<ParcelUuid> scanServices = _buildScanServices();
+            if (scanServices == null || scanServices.size() == 0) {
                 _defaultBluetoothAdapter.startLeScan(_leScanCallback);
             } else {
-                ScanSettings.Builder newSettings = new ScanSettings.Builder();
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                    newSettings.setMatchMode(ScanSettings.MATCH_MODE_STICKY);
-                    newSettings.setNumOfMatches(ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT);
-                }
-                newSettings.setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
-                newSettings.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
-                if (_defaultBluetoothAdapter.getBluetoothLeScanner() != null) {
-                    _defaultBluetoothAdapter.getBluetoothLeScanner().startScan(new ArrayList<ScanFilter>(), newSettings.build(), _newLeScanCallback);
-                }
-            }
-        } else {
-            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
                 UUID[] serviceUuids = new UUID[scanServices.size()];
                 int i = 0;
                 for (ParcelUuid filterUUID : scanServices) {
                     serviceUuids[i++] = filterUUID.getUuid();
                 }
                 _defaultBluetoothAdapter.startLeScan(serviceUuids, _leScanCallback);
+            }
+        } else if (_defaultBluetoothAdapter.getBluetoothLeScanner() != null) {
+            _defaultBluetoothAdapter.getBluetoothLeScanner().startScan(_buildScanFilters(), _buildScanSettings(), _newLeScanCallback);
+        }
+    }
+
+    /**
+     * Stop the OS scanner.  Results held back by a batched scan are delivered before the scan is stopped.
+     */
+    private void _stopOsScan() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            _defaultBluetoothAdapter.stopLeScan(_leScanCallback);
+        } else if (_defaultBluetoothAdapter.getBluetoothLeScanner() != null) {
+            if (_scanReportDelay > 0) {
+                _defaultBluetoothAdapter.getBluetoothLeScanner().flushPendingScanResults(_newLeScanCallback);
+            }
+            _defaultBluetoothAdapter.getBluetoothLeScanner().stopScan(_newLeScanCallback);
+        }
+    }
+
+    /**
+     * Build the scan settings for the current scan profile.  The batched profile is only used when the controller
+     * can hold the results, otherwise the scan falls back to the balanced mode with immediate reports.
+     * @return The scan settings.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private ScanSettings _buildScanSettings() {
+        ScanSettings.Builder newSettings = new ScanSettings.Builder();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            newSettings.setMatchMode(ScanSettings.MATCH_MODE_STICKY);
+            newSettings.setNumOfMatches(ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT);
+        }
+        newSettings.setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
+        _scanReportDelay = 0;
+        if (_scanProfile == SCAN_PROFILE_BATCHED) {
+            if (_defaultBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+                _scanReportDelay = BATCHED_SCAN_REPORT_DELAY;
+                newSettings.setScanMode(ScanSettings.SCAN_MODE_LOW_POWER);
+                newSettings.setReportDelay(_scanReportDelay);
             } else {
-                ScanSettings.Builder newSettings = new ScanSettings.Builder();
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                    newSettings.setMatchMode(ScanSettings.MATCH_MODE_STICKY);
-                    newSettings.setNumOfMatches(ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT);
-                }
-                newSettings.setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
-                newSettings.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
-                ArrayList<ScanFilter> filterList = new ArrayList<>();
-                for (ParcelUuid filterUUID : scanServices) {
-                    ScanFilter.Builder newFilter = new ScanFilter.Builder();
-                    newFilter.setServiceUuid(filterUUID);
-                    filterList.add(newFilter.build());
+                newSettings.setScanMode(ScanSettings.SCAN_MODE_BALANCED);
+            }
+        } else if (_scanProfile == SCAN_PROFILE_ADAPTIVE) {
+            newSettings.setScanMode(_scanScheduler.getScanMode());
+        } else {
+            newSettings.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+        }
+        return newSettings.build();
+    }
+
+    /**
+     * Build the service list of the OS scan used before Lollipop, the union of the subscription services.
+     * @return The services, or null to report all devices when a subscription has no service filter.
+     */
+    private ArrayList<ParcelUuid> _buildScanServices() {
+        ArrayList<ParcelUuid> scanServices = new ArrayList<>();
+        for (BluetoothScanSubscription subscription : _osScanSubscriptions) {
+            if (subscription.getServiceFilter().isEmpty()) {
+                return null;
+            }
+            for (ParcelUuid service : subscription.getServiceFilter()) {
+                if (!scanServices.contains(service)) {
+                    scanServices.add(service);
                 }
-                if (_defaultBluetoothAdapter.getBluetoothLeScanner() != null) {
-                    _defaultBluetoothAdapter.getBluetoothLeScanner().startScan(filterList, newSettings.build(), _newLeScanCallback);
+            }
+        }
+        return scanServices;
+    }
+
+    /**
+     * Build the scan filters for the service and manufacturer filters of all the subscriptions.  A device matches if
+     * it advertises one of the services and, when set, the manufacturer data of a subscription.  The filters are run
+     * by the controller when it supports offloaded filtering so that the App is only woken for matching devices.
+     * @return The list of scan filters, empty to report all devices.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private ArrayList<ScanFilter> _buildScanFilters() {
+        ArrayList<ScanFilter> filterList = new ArrayList<>();
+        for (BluetoothScanSubscription subscription : _osScanSubscriptions) {
+            if (subscription.isUnfiltered()) {
+                return new ArrayList<>();
+            }
+            if (subscription.getServiceFilter().isEmpty()) {
+                ScanFilter.Builder newFilter = new ScanFilter.Builder();
+                newFilter.setManufacturerData(subscription.getManufacturerId(), subscription.getManufacturerData(), subscription.getManufacturerMask());
+                filterList.add(newFilter.build());
+                continue;
+            }
+            for (ParcelUuid filterUUID : subscription.getServiceFilter()) {
+                ScanFilter.Builder newFilter = new ScanFilter.Builder();
+                newFilter.setServiceUuid(filterUUID);
+                if (subscription.hasManufacturerFilter()) {
+                    newFilter.setManufacturerData(subscription.getManufacturerId(), subscription.getManufacturerData(), subscription.getManufacturerMask());
                 }
+                filterList.add(newFilter.build());
             }
         }
+        return filterList;
     }
 
     /**
@@ -472,211 +981,1150 @@ class BluetoothInteractor
     }
 
     /**
-     * Start the scan Bluetooth low energy devices.
-     * @param activity The activity that started the scan operation
-     * @param _lisstener The App listener that is interested in the results of the scan.
+     * Set the manufacturer data filter that should be used for the next scan operation, e.g. to only report the
+     * devices advertising a given product identifier.  Like the service filter, it only lasts for one scan operation.
+     * @param manufacturerId The Bluetooth SIG company identifier that must be advertised.
+     * @param data The bytes that must follow the company identifier, or null to match on the identifier only.
+     * @param mask The bits of data that must match, the same length as data, or null to match all of them.
      */
-    void startScanForDevices(FragmentActivity activity, BluetoothScanResultListener _lisstener) {
-        _scanResultListener = _lisstener;
-        startBLEScan(activity,_serviceFilterList);
-        _serviceFilterList = null;
+    void setScanManufacturerFilter(int manufacturerId, byte[] data, byte[] mask) {
+        _manufacturerFilterId = manufacturerId;
+        _manufacturerFilterData = (data != null ? data.clone() : new byte[0]);
+        _manufacturerFilterMask = (mask != null && mask.length == _manufacturerFilterData.length ? mask.clone() : null);
     }
 
     /**
-     * Used to write to a Bluetooth characteristic associated with the currently connected device.
-     * @param bluetoothObviousDevice The Bluetooth device that we should be working with.
-     * @param rawdata The raw data bytes that are to be sent to the deivce
+     * Set how long devices are kept in the scan results.  Devices that are removed are passed on to the listeners
+     * in the removed list of the next ScanResultDelta.
+     * @param ttl The time in milliseconds after its last advertisement that a device is removed, 0 to keep all devices.
+     * @param maxEntries The most devices kept, the device seen the longest ago makes room for a new one.
+     */
+    void setScanResultLimits(long ttl, int maxEntries) {
+        _scanResultTtl = Math.max(0, ttl);
+        _maxScanResults = Math.max(1, maxEntries);
+    }
+
+    /**
+     * Set the scan profile used for the following scan operations.
+     * @param profile SCAN_PROFILE_ADAPTIVE, SCAN_PROFILE_LOW_LATENCY or SCAN_PROFILE_BATCHED.
+     */
+    void setScanProfile(int profile) {
+        _scanProfile = profile;
+    }
+
+    /**
+     * Start the scan Bluetooth low energy devices.  Several listeners can scan at the same time, they share a single
+     * OS scan and each listener only receives the devices matching the filters that were set before its scan started.
+     * @param activity The activity that started the scan operation
+     * @param _lisstener The App listener that is interested in the results of the scan.
+     */
+    void startScanForDevices(FragmentActivity activity, BluetoothScanResultListener _lisstener) {
+        startScanForDevices(activity, _lisstener, null);
+    }
+
+    /**
+     * Start the scan Bluetooth low energy devices, ending the scan as soon as a matching device is found.
+     * @param activity The activity that started the scan operation
+     * @param _lisstener The App listener that is interested in the results of the scan.
+     * @param matcher Checks each new or updated device and stops the scan when it returns true, or null to scan for the whole period.
+     */
+    void startScanForDevices(FragmentActivity activity, BluetoothScanResultListener _lisstener, BluetoothScanResultListener.TargetMatcher matcher) {
+        BluetoothScanSubscription subscription = new BluetoothScanSubscription(_lisstener, matcher, _serviceFilterList,
+                _manufacturerFilterId, _manufacturerFilterData, _manufacturerFilterMask);
+        _serviceFilterList = null;
+        _manufacturerFilterId = BluetoothAdvertisement.MANUFACTURER_UNKNOWN;
+        _manufacturerFilterData = null;
+        _manufacturerFilterMask = null;
+        _addScanSubscription(activity, subscription);
+    }
+
+    /**
+     * End the scan of a listener before its scan period is over.  The OS scan keeps running while other listeners
+     * are still scanning.
+     * @param _lisstener The App listener passed to startScanForDevices.
+     */
+    void stopScanForDevices(BluetoothScanResultListener _lisstener) {
+        for (BluetoothScanSubscription subscription : _scanSubscriptions) {
+            if (subscription.listener == _lisstener) {
+                _removeScanSubscription(subscription);
+            }
+        }
+    }
+
+    /**
+     * Enable or disable the batched delivery of the data and write status events to the devices.  When enabled,
+     * events are held back for up to maxLatency milliseconds and consecutive events of a device are delivered in a
+     * single BluetoothObviousDevice.onDataBatch() call, in the order they were received.
+     * @param maxBatchSize The most events delivered in one batch, 1 or less to deliver each event on its own.
+     * @param maxLatency The longest time in milliseconds an event is held back waiting for a batch to fill.
+     */
+    void setNotificationBatching(int maxBatchSize, long maxLatency) {
+        _notificationRing.setBatching(maxBatchSize, maxLatency);
+    }
+
+    /**
+     * Retrieve the devices found by the current or last scan with the strongest signal.  When several listeners
+     * share the scan these are the devices matching any of their filters.
+     * @param maxCount The most devices to return.
+     * @return The device records, strongest signal first.
+     */
+    ArrayList<BluetoothScanResultListener.DeviceRecord> getRankedScanResults(int maxCount) {
+        ArrayList<BluetoothScanResultListener.DeviceRecord> result = new ArrayList<>();
+        for (int index : _scanTable.top(maxCount)) {
+            result.add(_buildDeviceRecord(index));
+        }
+        return result;
+    }
+
+    /**
+     * Build the record of a scanned device from the scan table.  The name was resolved when the advertisements
+     * arrived: the advertised name first, then the name known by the OS, then the MAC.
+     * @param index The index of the device in the scan table.
+     * @return The device record.
+     */
+    private BluetoothScanResultListener.DeviceRecord _buildDeviceRecord(int index) {
+        String deviceId = BluetoothScanTable.formatAddress(_scanTable.getAddress(index));
+        BluetoothAdvertisement advertisement = BluetoothAdvertisement.parse(_scanTable.getScanRecord(index));
+        String name = _scanTable.getName(index);
+        if (name == null || "".equals(name)) {
+            name = deviceId;
+        }
+        return new BluetoothScanResultListener.DeviceRecord(name, deviceId, Math.round(_scanTable.getRssi(index)),
+                _scanTable.getLastSeen(index), advertisement);
+    }
+
+    /**
+     * Retrieve the latency histograms of the connection phases, from connectGatt to the first data received, over
+     * all the connections made since the App started.  BluetoothConnectionMetrics.export() gives them as text.
+     * @return The connection metrics.
+     */
+    BluetoothConnectionMetrics getConnectionMetrics() {
+        return _connectionMetrics;
+    }
+
+    /**
+     * Retrieve the traffic counters and round-trip latencies of each characteristic of each device read, written or
+     * notified since the device last connected.  BluetoothGattMetrics.export() gives them as text.
+     * @return The GATT metrics.
+     */
+    BluetoothGattMetrics getGattMetrics() {
+        return _gattMetrics;
+    }
+
+    /**
+     * Retrieve the devices the App has connected to before.  These can be connected again straight away with
+     * connectToDevice(), without a scan.
+     * @return The known devices, the most recently connected first.
+     */
+    ArrayList<BluetoothDeviceRegistry.KnownDevice> getKnownDevices() {
+        return _knownDevices.getAll();
+    }
+
+    /**
+     * Record the product identifier and serial number reported by a connected device in the known device registry.
+     * @param deviceId The Bluetooth identifier (MAC) of the device.
+     * @param productId The Obvious product identifier.
+     * @param serialNumber The serial number.
+     */
+    void updateKnownDevice(String deviceId, String productId, String serialNumber) {
+        _knownDevices.onDeviceInfo(deviceId, productId, serialNumber);
+    }
+
+    /**
+     * Validate the GATT layout of a connected device against the firmware version it reported.  When the layout was
+     * already seen with this firmware the OS service cache is kept after the connection, so the next connection does
+     * not need a full discovery over the air.  When the firmware has changed the cache is refreshed and the services
+     * are discovered again as a queued operation once the refresh has settled, the layout is recorded for the new
+     * firmware when the discovery finishes.
+     * @param deviceId The Bluetooth identifier (MAC) of the device.
+     * @param firmwareVersion The firmware version reported by the device.
+     */
+    void updateDeviceFirmware(final String deviceId, final String firmwareVersion) {
+        if (firmwareVersion == null) { return; }
+        _runOnBleThread(new Runnable() {
+            @Override
+            public void run() {
+                BluetoothDeviceSession session = _sessions.get(deviceId);
+                if (session == null || session.gatt == null || !session.ready) { return; }
+                if (_serviceLayouts.validate(deviceId, firmwareVersion, session.layoutHash)) {
+                    session.clearServiceCache = false;
+                    return;
+                }
+                if (BuildConfig.DEBUG) {
+                    Log.d(LOG_TAG, "updateDeviceFirmware - firmware changed, discovering services again " + deviceId);
+                }
+                session.clearServiceCache = true;
+                session.pendingFirmwareVersion = firmwareVersion;
+                _refreshServiceCache(session.gatt);
+                session.characteristics.clear();
+                _queueServiceDiscovery(session, REFRESH_SETTLE_DELAY);
+            }
+        });
+    }
+
+    /**
+     * Discover the services of a connection that is in use again.  The discovery goes through the operation queue
+     * so that it starts after the operations already queued and its result is not mixed with theirs.  Must be called
+     * on the Bluetooth thread.
+     * @param session The connection.
+     * @param delay The time to wait before the discovery is queued in milliseconds, e.g. for a cache refresh to settle.
+     */
+    private void _queueServiceDiscovery(final BluetoothDeviceSession session, long delay) {
+        _bleHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (_sessions.get(session.deviceId) != session || session.gatt == null) { return; }
+                session.operationQueue.enqueue(BluetoothGattOperation.discoverServices(DISCOVERY_STEP_TIMEOUT));
+            }
+        }, delay);
+    }
+
+    /**
+     * Remove a device from the known device registry.
+     * @param deviceId The Bluetooth identifier (MAC) of the device.
+     */
+    void forgetKnownDevice(String deviceId) {
+        _knownDevices.forget(deviceId);
+    }
+
+    /**
+     * Set the maximum number of devices that can be connected at the same time.  When the limit is reached the
+     * least recently used idle connection is closed to make room for a new one.
+     * @param maxConnections The maximum number of concurrent connections, at least 1.
+     */
+    void setMaxConnections(int maxConnections) {
+        _maxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * Retrieve the session for a device and mark it as the most recently used.  Must be called on the Bluetooth thread.
+     * @param bluetoothObviousDevice The Bluetooth device that we should be working with.
+     * @return The session if the device has an open GATT connection, null otherwise.
+     */
+    private BluetoothDeviceSession _getSession(BluetoothObviousDevice bluetoothObviousDevice) {
+        BluetoothDeviceSession session = _sessions.get(bluetoothObviousDevice.getDeviceId());
+        if (session == null || session.gatt == null || session.device != bluetoothObviousDevice) {
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Used to write to a Bluetooth characteristic associated with the currently connected device.
+     * @param bluetoothObviousDevice The Bluetooth device that we should be working with.
+     * @param rawdata The raw data bytes that are to be sent to the deivce
      * @param service The UUID of the service that we are writing.
      * @param characteristic The UUID of the characteristic that we are writing.
-     * @return true if the lowlevel write was performed, false otherwise.
+     * @param interactive true if the user is waiting on this write, e.g. a feature toggle, it is then started ahead
+     *                    of the other operations.
+     * @return true if the write was queued, false otherwise.  The result of the write is passed to the device write notification.
+     */
+    boolean sendDataToDevice(final BluetoothObviousDevice bluetoothObviousDevice, final byte[] rawdata, final String service, final String characteristic, final boolean interactive) {
+        if (!bluetoothObviousDevice.isConnected()) {
+            return false;
+        }
+        _runOnBleThread(new Runnable() {
+            @Override
+            public void run() {
+                _enqueueWrite(bluetoothObviousDevice, rawdata, service, characteristic, true, interactive);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Used to write to a Bluetooth characteristic associated with the currently connected device.  This method uses the without response writing method.
+     * Using this method does not wait for an ACK from the Bluetooth device.
+     * @param bluetoothObviousDevice The Bluetooth device that we should be working with.
+     * @param rawdata The raw data bytes that are to be sent to the deivce
+     * @param service The UUID of the service that we are writing.
+     * @param characteristic The UUID of the characteristic that we are writing.
+     * @param interactive true if the user is waiting on this write, e.g. a feature toggle, it is then started ahead
+     *                    of the other operations.
+     * @return true if the write was queued, false otherwise.  The result of the write is passed to the device write notification.
+     */
+    boolean sendDataToDeviceWithoutResponse(final BluetoothObviousDevice bluetoothObviousDevice, final byte[] rawdata, final String service, final String characteristic, final boolean interactive) {
+        if (!bluetoothObviousDevice.isConnected()) {
+            return false;
+        }
+        _runOnBleThread(new Runnable() {
+            @Override
+            public void run() {
+                _enqueueWrite(bluetoothObviousDevice, rawdata, service, characteristic, false, interactive);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Used to read a Bluetooth characteristic associated with the currently connected device.
+     * @param bluetoothObviousDevice The Bluetooth device that we should be working with.
+     * @param service The UUID of the service that we are reading.
+     * @param characteristic The UUID of the characteristic that we are reading.
+     * @return true if the read was queued, false otherwise.  The data or error is passed to the device notifications.
+     */
+    boolean requestDataFromDevice(final BluetoothObviousDevice bluetoothObviousDevice, final String service, final String characteristic) {
+        if (!bluetoothObviousDevice.isConnected()) {
+            return false;
+        }
+        _runOnBleThread(new Runnable() {
+            @Override
+            public void run() {
+                BluetoothDeviceSession session = _getSession(bluetoothObviousDevice);
+                BluetoothGattCharacteristic gc = (session != null ? _setupCharacteristic(session, service, characteristic) : null);
+                if (gc == null) {
+                    _notifyReadErrorStatus(bluetoothObviousDevice, characteristic, BluetoothGatt.GATT_FAILURE);
+                    return;
+                }
+                _raisePriority(session);
+                BluetoothGattOperation op = BluetoothGattOperation.read(gc);
+                if (!session.operationQueue.enqueue(op)) {
+                    _notifyReadErrorStatus(bluetoothObviousDevice, characteristic, BluetoothGatt.GATT_FAILURE);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Hold the connection of a device at the high priority, e.g. for the duration of a firmware update.  Without a
+     * hold the priority is raised while reads and writes are queued and lowered again once the connection is idle.
+     * @param bluetoothObviousDevice The Bluetooth device that we should be working with.
+     * @param held true to hold the high priority, false to release it.
+     */
+    void setHighThroughput(final BluetoothObviousDevice bluetoothObviousDevice, final boolean held) {
+        _runOnBleThread(new Runnable() {
+            @Override
+            public void run() {
+                BluetoothDeviceSession session = _getSession(bluetoothObviousDevice);
+                if (session == null) {
+                    return;
+                }
+                int priority = session.priority.setHeld(held, SystemClock.elapsedRealtime());
+                if (priority != BluetoothConnectionPriority.NO_CHANGE) {
+                    _requestPriority(session, priority);
+                }
+                if (session.ready && session.operationQueue.isIdle()) {
+                    _schedulePriorityDrop(session);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue a characteristic write on the connection of a device.  Must be called on the Bluetooth thread.
+     * Writes without response that do not fit in a single packet of the negotiated MTU are split into segments, the
+     * write status is then reported once all the segments have been sent.  Writes with response are left to the OS
+     * which uses a long write so that the device receives the value as a whole.
+     * @param bluetoothObviousDevice The Bluetooth device that we should be working with.
+     * @param rawdata The raw data bytes that are to be sent to the deivce
+     * @param service The UUID of the service that we are writing.
+     * @param characteristic The UUID of the characteristic that we are writing.
+     * @param withResponse true to use the default write type, false to write without response.
+     * @param interactive true if the user is waiting on the write, it is then started ahead of the other operations
+     *                    unless writes to the same characteristic are waiting, and never sent on the L2CAP channel.
+     */
+    private void _enqueueWrite(BluetoothObviousDevice bluetoothObviousDevice, byte[] rawdata, String service, String characteristic, boolean withResponse, boolean interactive) {
+        BluetoothDeviceSession session = _getSession(bluetoothObviousDevice);
+        BluetoothGattCharacteristic gc = (session != null ? _setupCharacteristic(session, service, characteristic) : null);
+        if (gc == null) {
+            _gattMetrics.onWriteRejected(bluetoothObviousDevice.getDeviceId(), characteristic);
+            _notifyWriteStatus(bluetoothObviousDevice, characteristic, BluetoothGatt.GATT_FAILURE);
+            return;
+        }
+        _raisePriority(session);
+        if (!session.l2capDeferredWrites.isEmpty()) {
+            // Keep the order of the writes held back for the channel to drain
+            _deferWrite(session, bluetoothObviousDevice, rawdata, service, characteristic, withResponse, interactive);
+            return;
+        }
+        BluetoothL2capChannel channel = session.l2cap;
+        boolean pinned = session.l2capCharacteristics.contains(characteristic);
+        int route = BluetoothL2capChannel.route(pinned, withResponse || interactive,
+                channel != null && channel.isOpen(), session.operationQueue.hasWrite(gc), rawdata != null ? rawdata.length : 0,
+                channel != null ? channel.getMaxPayload() : 0);
+        if (route == BluetoothL2capChannel.ROUTE_CHANNEL) {
+            if (channel.write(service, characteristic, rawdata)) {
+                session.l2capCharacteristics.add(characteristic);
+                session.l2capPendingWrites++;
+                _gattMetrics.onWriteRequested(bluetoothObviousDevice.getDeviceId(), characteristic);
+                return;
+            }
+            // The channel closed in the meantime
+            route = (pinned ? BluetoothL2capChannel.ROUTE_DRAIN : BluetoothL2capChannel.ROUTE_GATT);
+        }
+        if (route == BluetoothL2capChannel.ROUTE_DRAIN) {
+            // Sending it over GATT straight away could overtake the writes still queued on the channel
+            session.l2capCharacteristics.remove(characteristic);
+            if (session.l2capPendingWrites > 0) {
+                _deferWrite(session, bluetoothObviousDevice, rawdata, service, characteristic, withResponse, interactive);
+                return;
+            }
+        }
+
+        int segmentSize = session.mtu - BluetoothDeviceSession.ATT_HEADER_SIZE;
+        if (withResponse || rawdata == null || rawdata.length <= segmentSize) {
+            BluetoothGattOperation op = BluetoothGattOperation.write(gc, rawdata, withResponse);
+            if (interactive) {
+                op.schedulingClass = BluetoothGattOperation.CLASS_INTERACTIVE;
+            }
+            if (!session.operationQueue.enqueue(op)) {
+                _gattMetrics.onWriteRejected(bluetoothObviousDevice.getDeviceId(), op.datatype);
+                _notifyWriteStatus(bluetoothObviousDevice, characteristic, BluetoothGatt.GATT_FAILURE);
+                return;
+            }
+            _gattMetrics.onWriteRequested(bluetoothObviousDevice.getDeviceId(), op.datatype);
+            return;
+        }
+
+        int segmentCount = (rawdata.length + segmentSize - 1) / segmentSize;
+        BluetoothWriteTransfer transfer = new BluetoothWriteTransfer(characteristic, rawdata.length, segmentCount);
+        for (int offset = 0; offset < rawdata.length; offset += segmentSize) {
+            BluetoothGattOperation op = BluetoothGattOperation.write(gc, Arrays.copyOfRange(rawdata, offset, Math.min(rawdata.length, offset + segmentSize)), false);
+            op.transfer = transfer;
+            if (interactive) {
+                op.schedulingClass = BluetoothGattOperation.CLASS_INTERACTIVE;
+            }
+            if (!session.operationQueue.enqueue(op)) {
+                _gattMetrics.onWriteRejected(bluetoothObviousDevice.getDeviceId(), op.datatype);
+                transfer.onSegmentDone(0, BluetoothGatt.GATT_FAILURE);
+                _notifyWriteStatus(bluetoothObviousDevice, characteristic, BluetoothGatt.GATT_FAILURE);
+                return;
+            }
+            _gattMetrics.onWriteRequested(bluetoothObviousDevice.getDeviceId(), op.datatype);
+        }
+    }
+
+    /**
+     * Hold a write back until the writes queued on the L2CAP channel are done, it is then queued again with
+     * _enqueueWrite().  Must be called on the Bluetooth thread.
+     * @param session The connection the write belongs to.
+     * @param bluetoothObviousDevice The Bluetooth device that we should be working with.
+     * @param rawdata The raw data bytes that are to be sent to the deivce
+     * @param service The UUID of the service that we are writing.
+     * @param characteristic The UUID of the characteristic that we are writing.
+     * @param withResponse true to use the default write type, false to write without response.
+     * @param interactive true if the user is waiting on the write.
+     */
+    private void _deferWrite(BluetoothDeviceSession session, final BluetoothObviousDevice bluetoothObviousDevice, final byte[] rawdata,
+                             final String service, final String characteristic, final boolean withResponse, final boolean interactive) {
+        session.l2capDeferredWrites.add(new Runnable() {
+            @Override
+            public void run() {
+                _enqueueWrite(bluetoothObviousDevice, rawdata, service, characteristic, withResponse, interactive);
+            }
+        });
+    }
+
+    /**
+     * Handle the end of a characteristic write, either a single write or one segment of a segmented transfer.
+     * @param session The connection the write belongs to.
+     * @param operation The write operation that finished.
+     * @param status The status of the write.
+     */
+    private void _onWriteComplete(BluetoothDeviceSession session, BluetoothGattOperation operation, int status) {
+        _gattMetrics.onWriteComplete(session.deviceId, operation, status);
+        BluetoothWriteTransfer transfer = operation.transfer;
+        if (transfer == null) {
+            _notifyWriteStatus(session.device, operation.datatype, status);
+            return;
+        }
+        boolean finished = transfer.onSegmentDone(operation.value.length, status);
+        if (status == BluetoothGatt.GATT_SUCCESS && transfer.shouldReportProgress()) {
+            _notifyWriteProgress(session.device, transfer.datatype, transfer.bytesWritten, transfer.totalBytes);
+        }
+        if (finished) {
+            _notifyWriteStatus(session.device, transfer.datatype, transfer.status);
+        }
+    }
+
+    /**
+     * Looks up the OS BluetoothGattCharacteristic object that can be used for reading or writing data using the Bluetooth device.
+     * The value to write is applied by the operation queue when the write is started.  The characteristic is taken from the
+     * index built after the service discovery, the GATT services are only searched for strings that are not in the index yet.
+     * @param session The connection the characteristic belongs to.
+     * @param service The UUID of the service that we are reading.
+     * @param characteristic The UUID of the characteristic that we are reading.
+     * @return A BluetoothGattCharacteristic representing the data or null if the correct service and characteristic does not exist
+     */
+    private BluetoothGattCharacteristic _setupCharacteristic(BluetoothDeviceSession session, String service, String characteristic) {
+        if (!session.characteristics.isBuilt()) {
+            session.characteristics.build(session.gatt.getServices());
+        }
+        BluetoothGattCharacteristic gc = session.characteristics.get(service, characteristic);
+        if (gc != null) {
+            return gc;
+        }
+
+        try {
+            BluetoothGattService gs = session.gatt.getService(UUID.fromString(service));
+            if (gs != null) {
+                gc = gs.getCharacteristic(UUID.fromString(characteristic));
+            }
+        } catch(NullPointerException | IllegalArgumentException ex) {
+            // skip nulls or invalid service/characteristic ids
+        }
+        if (gc != null) {
+            session.characteristics.put(service, characteristic, gc);
+        }
+        return gc;
+    }
+
+    /**
+     * Handle an operation that was finished by its GATT callback.  The read data has already been passed to the
+     * App by the callback.
+     * @param session The connection the operation belongs to.
+     * @param operation The operation that finished.
+     * @param status The status reported by the callback.
+     */
+    private void _onOperationComplete(BluetoothDeviceSession session, BluetoothGattOperation operation, int status) {
+        _onWorkDone(session, operation);
+        switch (operation.type) {
+            case BluetoothGattOperation.OPERATION_READ:
+                _gattMetrics.onReadComplete(session.deviceId, operation, status);
+                break;
+            case BluetoothGattOperation.OPERATION_WRITE:
+            case BluetoothGattOperation.OPERATION_WRITE_NO_RESPONSE:
+                _onWriteComplete(session, operation, status);
+                break;
+            case BluetoothGattOperation.OPERATION_DESCRIPTOR_WRITE:
+                _onDescriptorWriteComplete(session, operation, status);
+                break;
+            case BluetoothGattOperation.OPERATION_DISCOVER_SERVICES:
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    session.pendingFirmwareVersion = null;
+                    _abortSetup(session, "service discovery failed");
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Handle an operation that could not be started or timed out.  There was no GATT callback for the operation
+     * so the failure is passed on to the App here.
+     * @param session The connection the operation belongs to.
+     * @param operation The operation that failed.
+     * @param status The failure status.
+     */
+    private void _onOperationFailed(BluetoothDeviceSession session, BluetoothGattOperation operation, int status) {
+        _onWorkDone(session, operation);
+        switch (operation.type) {
+            case BluetoothGattOperation.OPERATION_READ:
+                _gattMetrics.onReadComplete(session.deviceId, operation, status);
+                _notifyReadErrorStatus(session.device, operation.datatype, status);
+                break;
+            case BluetoothGattOperation.OPERATION_WRITE:
+            case BluetoothGattOperation.OPERATION_WRITE_NO_RESPONSE:
+                _onWriteComplete(session, operation, status);
+                break;
+            case BluetoothGattOperation.OPERATION_DESCRIPTOR_WRITE:
+                _onDescriptorWriteComplete(session, operation, status);
+                break;
+            case BluetoothGattOperation.OPERATION_DISCOVER_SERVICES:
+                // Without its services the connection cannot be used, start again with a fresh connection
+                session.pendingFirmwareVersion = null;
+                _abortSetup(session, "service discovery failed");
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Create the session for a device, closing the least recently used idle connection if the maximum number
+     * of connections has been reached.
+     * @param bluetoothObviousDevice The BluetoothObviousDevice the session is for.
+     * @return The new session or null if all the connections are busy.
+     */
+    private BluetoothDeviceSession _createSession(BluetoothObviousDevice bluetoothObviousDevice) {
+        if (_sessions.size() >= _maxConnections) {
+            BluetoothDeviceSession evict = null;
+            for (BluetoothDeviceSession candidate : _sessions.values()) {
+                if (candidate.isIdle()) {
+                    evict = candidate;
+                    break;
+                }
+            }
+            if (evict == null) {
+                return null;
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(LOG_TAG, "Closing least recently used connection " + evict.deviceId);
+            }
+            BluetoothObviousDevice evictDev = evict.device;
+            _closeSession(evict);
+            if (evictDev != null && evictDev.getConnectionListener() != null) {
+                _notifyConnectionStateChange(evictDev, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_DISCONNECTED);
+            }
+        }
+
+        final BluetoothDeviceSession session = new BluetoothDeviceSession(bluetoothObviousDevice);
+        session.callback = new BluetoothInteractorGattCallback(session);
+        session.operationQueue = new BluetoothGattOperationQueue(_bleHandler, new BluetoothGattOperationQueue.OperationListener() {
+            @Override
+            public void onOperationComplete(BluetoothGattOperation operation, int status) {
+                _onOperationComplete(session, operation, status);
+            }
+
+            @Override
+            public void onOperationFailed(BluetoothGattOperation operation, int status) {
+                _onOperationFailed(session, operation, status);
+            }
+        });
+        _sessions.put(session.deviceId, session);
+        return session;
+    }
+
+    /**
+     * Close the GATT connection of a session and remove it from the pool.
+     * @param session The session to close.
+     */
+    private void _closeSession(BluetoothDeviceSession session) {
+        if (_sessions.get(session.deviceId) == session) {
+            _sessions.remove(session.deviceId);
+        }
+
+        BluetoothObviousDevice tmpDev = session.device;
+        session.device = null;
+        session.ready = false;
+        _setStep(session, BluetoothDeviceSession.STEP_READY, 0);
+        if (tmpDev != null) {
+            tmpDev.deviceConnected = false;
+            tmpDev.mtu = BluetoothDeviceSession.DEFAULT_MTU;
+            tmpDev.txPhy = BluetoothDeviceSession.DEFAULT_PHY;
+            tmpDev.rxPhy = BluetoothDeviceSession.DEFAULT_PHY;
+        }
+        session.mtu = BluetoothDeviceSession.DEFAULT_MTU;
+        session.txPhy = BluetoothDeviceSession.DEFAULT_PHY;
+        session.rxPhy = BluetoothDeviceSession.DEFAULT_PHY;
+        session.characteristics.clear();
+        if (session.priorityTimeout != null) {
+            _bleHandler.removeCallbacks(session.priorityTimeout);
+            session.priorityTimeout = null;
+        }
+        if (session.l2cap != null) {
+            session.l2cap.close();
+            session.l2cap = null;
+        }
+        session.l2capCharacteristics.clear();
+        session.l2capPendingWrites = 0;
+        session.l2capDeferredWrites.clear();
+
+        session.operationQueue.clear();
+        session.operationQueue.setGatt(null);
+        BluetoothGatt tmpGatt = session.gatt;
+        session.gatt = null;
+
+        if (tmpGatt != null) {
+            if (session.clearServiceCache) {
+                _refreshServiceCache(tmpGatt);
+            }
+            tmpGatt.disconnect();
+            tmpGatt.close();
+        }
+    }
+
+    /**
+     * Start the connection to a Bluetooth device
+     * @param context The Android Application context to use when starting the Bluetooth connection.
+     * @param bluetoothObviousDevice The BluetoothObviousDevice associated with this connection.
+     */
+    void connectToDevice(final Context context, final BluetoothObviousDevice bluetoothObviousDevice) {
+        connectToDevice(context, bluetoothObviousDevice, false);
+    }
+
+    /**
+     * Start the connection to a Bluetooth device.  No scan is needed first, the OS connects to the MAC of the device
+     * directly, which is the fast path for the devices returned by getKnownDevices().
+     * @param context The Android Application context to use when starting the Bluetooth connection.
+     * @param bluetoothObviousDevice The BluetoothObviousDevice associated with this connection.
+     * @param autoConnect true to let the OS wait for the device to come in range instead of failing after the
+     *                    connection timeout.  The OS connects more slowly in this mode.
+     */
+    void connectToDevice(final Context context, final BluetoothObviousDevice bluetoothObviousDevice, final boolean autoConnect) {
+        // The known devices are connected without a scan, so the adapter may not have been looked up yet
+        _initAdapter(context);
+        if (_defaultBluetoothAdapter == null || !_defaultBluetoothAdapter.isEnabled()) {
+            if (BuildConfig.DEBUG) {
+                Log.d(LOG_TAG, "connectToDevice - Bluetooth is not available");
+            }
+            bluetoothObviousDevice.deviceConnected = false;
+            _notifyConnectionStateChange(bluetoothObviousDevice, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_DISCONNECTED);
+            return;
+        }
+
+        if (_scanning) {
+            stopBLEScan();
+        }
+
+        _runOnBleThread(new Runnable() {
+            @Override
+            public void run() {
+                _cancelRetry(bluetoothObviousDevice.getDeviceId());
+                _connectSession(context, bluetoothObviousDevice, autoConnect, new BluetoothReconnectPolicy(),
+                        new BluetoothConnectionTimeline(bluetoothObviousDevice.getDeviceId()));
+            }
+        });
+    }
+
+    /**
+     * Create the session for a device and start the GATT connection.  Must be called on the Bluetooth thread.
+     * @param context The Android Application context to use when starting the Bluetooth connection.
+     * @param bluetoothObviousDevice The BluetoothObviousDevice associated with this connection.
+     * @param autoConnect true to let the OS wait for the device to come in range.
+     * @param reconnect The retry budget of the connection request.
+     * @param timeline The timeline of the connection request.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    private void _connectSession(Context context, BluetoothObviousDevice bluetoothObviousDevice, boolean autoConnect, BluetoothReconnectPolicy reconnect,
+                                 BluetoothConnectionTimeline timeline) {
+        BluetoothDeviceSession session = _sessions.get(bluetoothObviousDevice.getDeviceId());
+        if (session != null) {
+            // A new connection request for the same device replaces the previous connection
+            _closeSession(session);
+        }
+
+        session = _createSession(bluetoothObviousDevice);
+        if (session == null) {
+            if (BuildConfig.DEBUG) {
+                Log.d(LOG_TAG, "connectToDevice - all " + _maxConnections + " connections are busy");
+            }
+            bluetoothObviousDevice.deviceConnected = false;
+            _notifyConnectionStateChange(bluetoothObviousDevice, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_DISCONNECTED);
+            return;
+        }
+
+        session.context = context;
+        session.autoConnect = autoConnect;
+        session.reconnect = reconnect;
+        session.timeline = timeline;
+        timeline.onAttemptStarted();
+        // A background connection has no deadline, the OS waits for the device to advertise
+        _setStep(session, BluetoothDeviceSession.STEP_CONNECTING, autoConnect ? 0 : CONNECT_STEP_TIMEOUT);
+        BluetoothDevice dev = _defaultBluetoothAdapter.getRemoteDevice(bluetoothObviousDevice.getDeviceId());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // Have the OS deliver the GATT callbacks straight to the Bluetooth thread
+            session.gatt = dev.connectGatt(context, autoConnect, session.callback, BluetoothDevice.TRANSPORT_LE, BluetoothDevice.PHY_LE_1M_MASK, _bleHandler);
+        } else if (Build.VERSION.SDK_INT > Build.VERSION_CODES.LOLLIPOP) {
+            session.gatt = dev.connectGatt(context, autoConnect, session.callback, BluetoothDevice.TRANSPORT_LE);
+        } else {
+            session.gatt = dev.connectGatt(context, autoConnect, session.callback);
+        }
+    }
+
+    /**
+     * Start the Bluetooth disconnection process.
+     * @param bluetoothObviousDevice The BluetoothObviousDevice associated with this connection.
+     */
+    void disconnectFromDevice(final BluetoothObviousDevice bluetoothObviousDevice) {
+        bluetoothObviousDevice.deviceConnected = false;
+        _runOnBleThread(new Runnable() {
+            @Override
+            public void run() {
+                if (_cancelRetry(bluetoothObviousDevice.getDeviceId())) {
+                    // The connection was waiting to be tried again, the App is still waiting for its outcome
+                    _notifyConnectionStateChange(bluetoothObviousDevice, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_DISCONNECTED);
+                    return;
+                }
+                BluetoothDeviceSession session = _sessions.get(bluetoothObviousDevice.getDeviceId());
+                if (session == null || session.device != bluetoothObviousDevice || session.gatt == null) {
+                    return;
+                }
+                _closeSession(session);
+            }
+        });
+    }
+
+    /**
+     * Try a connection that failed during its setup again, if its failure and retry budget allow it.  The GATT object
+     * is closed and a new one is created for the next attempt, the stack keeps failing a GATT object that got status
+     * 133.  The App is only told about the failure once no retry is left.  Must be called on the Bluetooth thread.
+     * @param session The connection that failed.
+     * @param status The status of the failure.
+     * @return true if a retry was scheduled, false if the failure should be passed on to the App.
+     */
+    private boolean _retryConnection(BluetoothDeviceSession session, int status) {
+        final BluetoothObviousDevice device = session.device;
+        final Context context = session.context;
+        final boolean autoConnect = session.autoConnect;
+        final BluetoothReconnectPolicy reconnect = session.reconnect;
+        final BluetoothConnectionTimeline timeline = session.timeline;
+        if (device == null || context == null || reconnect == null || session.ready) { return false; }
+        long delay = reconnect.nextRetryDelay(status);
+        if (delay < 0) { return false; }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(LOG_TAG, "_retryConnection - " + session.deviceId + " status " + status + ", retry " + reconnect.getRetries() + " in " + delay + "ms");
+        }
+        _closeSession(session);
+        final String deviceId = session.deviceId;
+        Runnable retry = new Runnable() {
+            @Override
+            public void run() {
+                if (_pendingRetries.get(deviceId) != this) { return; }
+                _pendingRetries.remove(deviceId);
+                _connectSession(context, device, autoConnect, reconnect, timeline);
+            }
+        };
+        _pendingRetries.put(deviceId, retry);
+        _bleHandler.postDelayed(retry, delay);
+        return true;
+    }
+
+    /**
+     * Cancel the retry a connection is waiting for.  Must be called on the Bluetooth thread.
+     * @param deviceId The Bluetooth identifier (MAC) of the device.
+     * @return true if a retry was cancelled.
+     */
+    private boolean _cancelRetry(String deviceId) {
+        Runnable retry = _pendingRetries.remove(deviceId);
+        if (retry == null) { return false; }
+        _bleHandler.removeCallbacks(retry);
+        return true;
+    }
+
+    /**
+     * This method is used to workaround a bug in older version of Android where the device services are cached even though the Service Changed characteristic
+     * is present on the device.
+     * @param tmpGatt the Gatt device being used for the current connection.
+     */
+    private void _refreshServiceCache(BluetoothGatt tmpGatt) {
+        // Android should not keep the services cached when the Service Changed characteristic is present and the device is not bonded.
+        // However, there is a bug in <= Android 6.0, it is keeping them anyway and the only way to clear services is by using this hidden refresh method.
+        try {
+            final Method refresh = tmpGatt.getClass().getMethod("refresh");
+            refresh.invoke(tmpGatt);
+        } catch (Exception e) {
+            Log.d(LOG_TAG, "Refreshing failed");
+        }
+    }
+
+    /**
+     * Raise the connection to the high priority because work is being queued on it.  Must be called on the Bluetooth thread.
+     * @param session The connection the work is queued on.
+     */
+    private void _raisePriority(BluetoothDeviceSession session) {
+        int priority = session.priority.onWorkQueued(SystemClock.elapsedRealtime());
+        if (priority != BluetoothConnectionPriority.NO_CHANGE) {
+            _requestPriority(session, priority);
+        }
+    }
+
+    /**
+     * Ask the OS for a new connection priority, ahead of the operations already waiting.
+     * @param session The connection to change.
+     * @param priority One of the BluetoothGatt.CONNECTION_PRIORITY_* constants.
+     */
+    private void _requestPriority(BluetoothDeviceSession session, int priority) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        if (session.operationQueue.enqueueNext(BluetoothGattOperation.requestPriority(priority))) {
+            session.priority.onRequested(priority);
+            if (BuildConfig.DEBUG) {
+                Log.d(LOG_TAG, "Connection priority " + priority + " requested -- " + session.deviceId);
+            }
+        }
+    }
+
+    /**
+     * Restart the idle timeout of a connection when an operation finishes and check the priority again once
+     * the queue is empty.
+     * @param session The connection the operation belongs to.
+     * @param operation The operation that finished.
+     */
+    private void _onWorkDone(BluetoothDeviceSession session, BluetoothGattOperation operation) {
+        if (operation.type != BluetoothGattOperation.OPERATION_PRIORITY) {
+            session.priority.onWorkDone(SystemClock.elapsedRealtime());
+        }
+        if (session.ready && session.operationQueue.isIdle()) {
+            _schedulePriorityDrop(session);
+        }
+    }
+
+    /**
+     * Schedule the check that lowers the priority of a connection that stays idle.  The check does nothing if work
+     * was queued in the meantime, the end of that work schedules it again.
+     * @param session The connection to check.
+     */
+    private void _schedulePriorityDrop(final BluetoothDeviceSession session) {
+        if (session.priorityTimeout != null) {
+            _bleHandler.removeCallbacks(session.priorityTimeout);
+            session.priorityTimeout = null;
+        }
+        long delay = session.priority.getIdleDelay(SystemClock.elapsedRealtime());
+        if (delay < 0) {
+            return;
+        }
+        session.priorityTimeout = new Runnable() {
+            @Override
+            public void run() {
+                if (session.priorityTimeout != this) { return; }
+                session.priorityTimeout = null;
+                if (session.gatt == null || !session.operationQueue.isIdle()) {
+                    return;
+                }
+                int priority = session.priority.onIdle(SystemClock.elapsedRealtime());
+                if (priority != BluetoothConnectionPriority.NO_CHANGE) {
+                    _requestPriority(session, priority);
+                } else {
+                    _schedulePriorityDrop(session);
+                }
+            }
+        };
+        _bleHandler.postDelayed(session.priorityTimeout, delay);
+    }
+
+    /**
+     * Move a connection to the next setup step and restart the step timeout.
+     * @param session The connection being setup.
+     * @param step The step that was reached, one of the BluetoothDeviceSession.STEP_* constants.
+     * @param timeout The time allowed for the step to finish, 0 for no timeout.
      */
-    boolean sendDataToDevice(BluetoothObviousDevice bluetoothObviousDevice, byte[] rawdata, String service, String characteristic) {
-        if (_bleDevice == null || _deviceGatt == null || !bluetoothObviousDevice.getDeviceId().equals(_bleDevice.getDeviceId())) {
-            return false;
+    private void _setStep(final BluetoothDeviceSession session, final int step, long timeout) {
+        if (session.stepTimeout != null) {
+            _bleHandler.removeCallbacks(session.stepTimeout);
+            session.stepTimeout = null;
         }
-
-        final BluetoothGattCharacteristic gc = _setupCharacteristic(rawdata, service, characteristic);
-        if (gc != null) {
-            gc.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-            return _deviceGatt.writeCharacteristic(gc);
+        if (session.setupRetry != null) {
+            _bleHandler.removeCallbacks(session.setupRetry);
+            session.setupRetry = null;
+        }
+        session.step = step;
+        if (timeout > 0) {
+            session.stepTimeout = new Runnable() {
+                @Override
+                public void run() {
+                    if (session.stepTimeout != this) { return; }
+                    session.stepTimeout = null;
+                    _abortSetup(session, "step " + step + " timed out");
+                }
+            };
+            _bleHandler.postDelayed(session.stepTimeout, timeout);
         }
-        return false;
     }
 
     /**
-     * Used to write to a Bluetooth characteristic associated with the currently connected device.  This method uses the without response writing method.
-     * Using this method does not wait for an ACK from the Bluetooth device.
-     * @param bluetoothObviousDevice The Bluetooth device that we should be working with.
-     * @param rawdata The raw data bytes that are to be sent to the deivce
-     * @param service The UUID of the service that we are writing.
-     * @param characteristic The UUID of the characteristic that we are writing.
-     * @return true if the lowlevel write was performed, false otherwise.
+     * Close a connection that could not be setup and report it to the App as disconnected.
+     * @param session The connection being setup.
+     * @param reason The reason written to the debug log.
      */
-    boolean sendDataToDeviceWithoutResponse(BluetoothObviousDevice bluetoothObviousDevice, byte[] rawdata, String service, String characteristic) {
-        if (_bleDevice == null || _deviceGatt == null || !bluetoothObviousDevice.getDeviceId().equals(_bleDevice.getDeviceId())) {
-            return false;
+    private void _abortSetup(BluetoothDeviceSession session, String reason) {
+        if (BuildConfig.DEBUG) {
+            Log.d(LOG_TAG, "Connection setup failed for " + session.deviceId + " -- " + reason);
         }
-
-        final BluetoothGattCharacteristic gc = _setupCharacteristic(rawdata, service, characteristic);
-        if (gc != null) {
-            gc.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-            return _deviceGatt.writeCharacteristic(gc);
+        // A device that does not answer the connection request at all is most likely out of range, it is not tried again
+        if (session.step != BluetoothDeviceSession.STEP_CONNECTING && _retryConnection(session, BluetoothServiceConstants.UNKNOWN_BLE_TIMEOUT_STATUS)) {
+            return;
+        }
+        BluetoothObviousDevice tmpDev = session.device;
+        _closeSession(session);
+        if (tmpDev != null) {
+            _notifyConnectionStateChange(tmpDev, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_DISCONNECTED);
         }
-        return false;
     }
 
     /**
-     * Used to read a Bluetooth characteristic associated with the currently connected device.
-     * @param bluetoothObviousDevice The Bluetooth device that we should be working with.
-     * @param service The UUID of the service that we are reading.
-     * @param characteristic The UUID of the characteristic that we are reading.
-     * @return true if the lowlevel read was performed, false otherwise
+     * Start the service discovery of a connection that was just established.  When the stack may not be ready yet,
+     * see BluetoothConnectionQuirks.waitsForReadiness(), a rejected request is repeated shortly and a request that
+     * gets no answer is sent again, until the discovery answers or the step times out.
+     * @param session The connection being setup.
      */
-    boolean requestDataFromDevice(BluetoothObviousDevice bluetoothObviousDevice, String service, String characteristic) {
-        if (_bleDevice == null || _deviceGatt == null || !bluetoothObviousDevice.getDeviceId().equals(_bleDevice.getDeviceId())) {
-            return false;
-        }
-
-        BluetoothGattCharacteristic gc = _setupCharacteristic(new byte[0], service, characteristic);
-        if (gc != null) {
-            return _deviceGatt.readCharacteristic(gc);
+    private void _startServiceDiscovery(BluetoothDeviceSession session) {
+        if (session.gatt == null || session.step != BluetoothDeviceSession.STEP_DISCOVERING) { return; }
+        boolean started = session.gatt.discoverServices();
+        if (BluetoothConnectionQuirks.waitsForReadiness(session.gatt.getDevice())) {
+            _retryServiceDiscovery(session, started ? BluetoothConnectionQuirks.DISCOVERY_ANSWER_TIMEOUT : BluetoothConnectionQuirks.READY_POLL_INTERVAL);
+        } else if (!started) {
+            _abortSetup(session, "discoverServices failed");
         }
-        return false;
     }
 
     /**
-     * Creates a OS BluetoothGattCharacteristic object that can be used for reading or writing data using the Bluetooth device
-     * @param rawdata The data that is being sent to the device.  If null then this characteristic is setup for a read operation.
-     * @param service The UUID of the service that we are reading.
-     * @param characteristic The UUID of the characteristic that we are reading.
-     * @return A BluetoothGattCharacteristic representing the data or null if the correct service and characteristic does not exist
+     * Request the service discovery again after a delay, unless the step changes first.
+     * @param session The connection being setup.
+     * @param delay The delay in milliseconds.
      */
-    private BluetoothGattCharacteristic _setupCharacteristic(byte[] rawdata, String service, String characteristic) {
-        BluetoothGattCharacteristic gc = null;
-
-        if (rawdata != null) {
-            BluetoothGattService gs = _deviceGatt.getService(UUID.fromString(service));
-            if (gs != null) {
-                gc = gs.getCharacteristic(UUID.fromString(characteristic));
-                if (gc != null && rawdata.length > 0) {
-                    gc.setValue(rawdata);
-                }
-            }
+    private void _retryServiceDiscovery(final BluetoothDeviceSession session, long delay) {
+        if (session.setupRetry != null) {
+            _bleHandler.removeCallbacks(session.setupRetry);
         }
-        return gc;
+        session.setupRetry = new Runnable() {
+            @Override
+            public void run() {
+                if (session.setupRetry != this) { return; }
+                session.setupRetry = null;
+                _startServiceDiscovery(session);
+            }
+        };
+        _bleHandler.postDelayed(session.setupRetry, delay);
     }
 
     /**
-     * Start the connection to a Bluetooth device
-     * @param context The Android Application context to use when starting the Bluetooth connection.
-     * @param bluetoothObviousDevice The BluetoothObviousDevice associated with this connection.
+     * Start characteristic notification/indication configuration process for a connection.
+     * @param session The connection to configure.
      */
-    @TargetApi(Build.VERSION_CODES.M)
-    void connectToDevice(Context context, BluetoothObviousDevice bluetoothObviousDevice) {
-        if (_defaultBluetoothAdapter == null) { return; }
-
-        if (_scanning) {
-            stopBLEScan();
+    private void _startNotificationSetup(final BluetoothDeviceSession session) {
+        if (session.gatt == null || session.step != BluetoothDeviceSession.STEP_CONFIGURING) { return; }
+        if (session.device != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // Negotiate the largest MTU before any data is exchanged, the CCCD writes are queued behind the exchange
+            session.operationQueue.enqueue(BluetoothGattOperation.requestMtu(DESIRED_MTU));
         }
+        _setupBluetoothNotifications(session);
+    }
 
-        _bleDevice = bluetoothObviousDevice;
-        if (_gattCallback == null) {
-            _gattCallback = new BluetoothInteractorGattCallback();
+    /**
+     * Ask for the LE 2M PHY, which doubles the raw data rate, if the phone supports it.  The device may refuse it
+     * and keep the 1M PHY, the PHY in use is then learned from onPhyUpdate() or onPhyRead() either way.  This is
+     * done once the setup has finished so that the PHY update does not collide with the other link layer procedures
+     * of the setup, which some phones handle by dropping the link.
+     * @param session The connection that is now ready.
+     */
+    private void _requestFastPhy(BluetoothDeviceSession session) {
+        if (session.gatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return;
         }
+        _requestFastPhyApi26(session.gatt);
+    }
 
-        _clearServiceCache = false;
-        BluetoothDevice dev = _defaultBluetoothAdapter.getRemoteDevice(bluetoothObviousDevice.getDeviceId());
-        if (Build.VERSION.SDK_INT > Build.VERSION_CODES.LOLLIPOP) {
-            _deviceGatt = dev.connectGatt(context, false, _gattCallback, BluetoothDevice.TRANSPORT_LE);
+    /**
+     * Request the LE 2M PHY with the API 26 calls.
+     * @param gatt The GATT connection to the device.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    private void _requestFastPhyApi26(BluetoothGatt gatt) {
+        if (_defaultBluetoothAdapter != null && _defaultBluetoothAdapter.isLe2MPhySupported()) {
+            gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
         } else {
-            _deviceGatt = dev.connectGatt(context, false, _gattCallback);
+            // Stay on the 1M PHY, only report what is in use
+            gatt.readPhy();
         }
     }
 
     /**
-     * Start the Bluetooth disconnection process.
-     * @param bluetoothObviousDevice The BluetoothObviousDevice associated with this connection.
+     * Read the PSM of the L2CAP channel of a device that publishes one, the channel is opened once the value is
+     * known.  A device without the BLE_CHARACTERISTIC_L2CAP_PSM characteristic only uses GATT.
+     * @param session The connection that is now ready.
      */
-    void disconnectFromDevice(BluetoothObviousDevice bluetoothObviousDevice) {
-        if (_bleDevice == null || _deviceGatt == null || !_bleDevice.getDeviceId().equals(bluetoothObviousDevice.getDeviceId())) {
+    private void _readL2capPsm(BluetoothDeviceSession session) {
+        if (session.gatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
             return;
         }
-
-        BluetoothObviousDevice tmpDev = _bleDevice;
-        _bleDevice = null;
-        if (tmpDev  != null) {
-            tmpDev.deviceConnected = false;
-        }
-
-        BluetoothGatt tmpGatt = _deviceGatt;
-        _deviceGatt = null;
-
-        if (tmpGatt != null) {
-            if (_clearServiceCache) {
-                _refreshServiceCache(tmpGatt);
+        for (BluetoothGattService gs : session.gatt.getServices()) {
+            BluetoothGattCharacteristic gc = gs.getCharacteristic(L2CAP_PSM_UUID);
+            if (gc != null) {
+                session.operationQueue.enqueue(BluetoothGattOperation.read(gc));
+                return;
             }
-            tmpGatt.disconnect();
-            tmpGatt.close();
         }
     }
 
     /**
-     * This method is used to workaround a bug in older version of Android where the device services are cached even though the Service Changed characteristic
-     * is present on the device.
-     * @param tmpGatt the Gatt device being used for the current connection.
+     * Open the L2CAP channel of a device once its PSM has been read.  The bulk writes of a characteristic go over
+     * the channel once it is open, see BluetoothL2capChannel.route().
+     * @param session The connection the PSM was read on.
+     * @param value The value of the PSM characteristic.
      */
-    private void _refreshServiceCache(BluetoothGatt tmpGatt) {
-        // Android should not keep the services cached when the Service Changed characteristic is present and the device is not bonded.
-        // However, there is a bug in <= Android 6.0, it is keeping them anyway and the only way to clear services is by using this hidden refresh method.
-        try {
-            final Method refresh = tmpGatt.getClass().getMethod("refresh");
-            refresh.invoke(tmpGatt);
-        } catch (Exception e) {
-            Log.d(LOG_TAG, "Refreshing failed");
+    @TargetApi(Build.VERSION_CODES.Q)
+    private void _openL2capChannel(final BluetoothDeviceSession session, byte[] value) {
+        if (session.gatt == null || session.l2cap != null || value == null || value.length < 2 || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return;
+        }
+        int psm = (value[0] & 0xFF) | ((value[1] & 0xFF) << 8);
+        if (psm == 0) {
+            return;
         }
+        session.l2cap = new BluetoothL2capChannel(session.deviceId, new BluetoothL2capChannel.ChannelListener() {
+            @Override
+            public void onChannelOpened(BluetoothL2capChannel channel) {
+                if (BuildConfig.DEBUG) {
+                    Log.d(LOG_TAG, "Writes without response use the L2CAP channel -- " + session.deviceId);
+                }
+            }
+
+            @Override
+            public void onChannelClosed(final BluetoothL2capChannel channel) {
+                _runOnBleThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (session.l2cap == channel) {
+                            // The writes still queued on the channel fail, new writes go over GATT after them
+                            session.l2cap = null;
+                            session.l2capCharacteristics.clear();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onWriteComplete(BluetoothL2capChannel channel, final String service, final String datatype, final byte[] data, final int status) {
+                _runOnBleThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        _onChannelWriteComplete(session, service, datatype, data, status);
+                    }
+                });
+            }
+        });
+        session.l2cap.open(session.gatt.getDevice(), psm);
     }
 
     /**
-     * Start characteristic notification/indication configuration process for the active connection.
+     * Handle the end of a write sent on the L2CAP channel.  A failed write is reported to the App and not sent again,
+     * the writes queued after it on the channel fail too so the device never gets the data out of order.  Once the
+     * channel has no writes left, the writes held back for it to drain are routed again in order.
+     * @param session The connection the write belongs to.
+     * @param service The UUID of the service that we are writing.
+     * @param datatype The UUID of the characteristic that we are writing.
+     * @param data The raw data bytes written.
+     * @param status The status of the write.
      */
-    private void _startNotificationSetup() {
-        if (_bleDevice != null) {
-            _bleDevice.deviceConnected = true;
-            if (_deviceGatt != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                final boolean priorityStatus = _deviceGatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
-                if (BuildConfig.DEBUG) {
-                    Log.d(LOG_TAG, "Request connection interval CONNECTION_PRIORITY_HIGH status = " + priorityStatus);
-                }
-            }
+    private void _onChannelWriteComplete(BluetoothDeviceSession session, String service, String datatype, byte[] data, int status) {
+        _gattMetrics.onChannelWrite(session.deviceId, datatype, data != null ? data.length : 0, status);
+        session.priority.onWorkDone(SystemClock.elapsedRealtime());
+        session.l2capPendingWrites = Math.max(0, session.l2capPendingWrites - 1);
+        if (session.device == null) {
+            return;
         }
-        _handler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                _setupBluetoothNotifications();
+        _notifyWriteStatus(session.device, datatype, status);
+        if (session.l2capPendingWrites == 0 && !session.l2capDeferredWrites.isEmpty()) {
+            ArrayList<Runnable> writes = new ArrayList<>(session.l2capDeferredWrites);
+            session.l2capDeferredWrites.clear();
+            for (Runnable write : writes) {
+                write.run();
             }
-        },750);
+        }
     }
 
     /**
      * Iterate through all the discovered services and characteristics and setup the CCCD for notifications/indications are required.  The discovered
      * services and characteristics are compared against the list of services configured in the BluetoothObviousDevice associated to the connection.
+     * @param session The connection to configure.
      */
-    private void _setupBluetoothNotifications() {
-        List<BluetoothGattService> serviceList = _deviceGatt.getServices();
+    private void _setupBluetoothNotifications(BluetoothDeviceSession session) {
+        if (session.gatt == null || session.device == null) { return; }
+        List<BluetoothGattService> serviceList = session.gatt.getServices();
+        session.pendingDescriptorWrites = 0;
 
-        HashMap<String,String[]> notifyList = _bleDevice.getServerInformation();
+        HashMap<String,String[]> notifyList = session.device.getServerInformation();
         for (BluetoothGattService srv : serviceList) {
             String serviceUUID = srv.getUuid().toString();
             if (BuildConfig.DEBUG) {
                 Log.d(LOG_TAG, "acquireService - " + serviceUUID);
             }
 
-            // Set the local _clearServiceCache flag so ensure that we clear the service cache if the service change characteristic is present and
+            // Set the session clearServiceCache flag so ensure that we clear the service cache if the service change characteristic is present and
             // the device is not bonded.  This is to work around an Android bug that the services are cached regardless when not bonded
             if (BluetoothServiceConstants.BLE_SERVICE_GENERIC_ATTR.equals(serviceUUID)) {
                 if (srv.getCharacteristic(UUID.fromString(BluetoothServiceConstants.BLE_CHARACTERISTIC_GATT_ATTR_SERVICE_CHANGED)) != null) {
-                    _clearServiceCache = (_deviceGatt.getDevice().getBondState() != BluetoothDevice.BOND_BONDED);
-                    Log.d(LOG_TAG, "Set clear service cache flag to " + _clearServiceCache);
+                    session.clearServiceCache = (session.gatt.getDevice().getBondState() != BluetoothDevice.BOND_BONDED);
+                    if (session.clearServiceCache && _serviceLayouts.isValidated(session.deviceId, session.layoutHash)) {
+                        // The layout is the one validated for the firmware of the device, the next discovery can be served from the cache
+                        session.clearServiceCache = false;
+                    }
+                    Log.d(LOG_TAG, "Set clear service cache flag to " + session.clearServiceCache);
                 }
             }
 
@@ -697,60 +2145,31 @@ class BluetoothInteractor
                     if (BuildConfig.DEBUG) {
                         Log.d(LOG_TAG, "\t\t+++++ Requesting notifications/indication -- " + tmpAttr.getUuid());
                     }
-                    boolean status = _deviceGatt.setCharacteristicNotification(tmpAttr, true);
+                    boolean status = session.gatt.setCharacteristicNotification(tmpAttr, true);
                     if (BuildConfig.DEBUG) {
                         Log.d(LOG_TAG, "\t\t+++++ " + (status ? "OK" : "FAILED"));
                     }
                     final BluetoothGattDescriptor gd = tmpAttr.getDescriptor(UUID.fromString(BluetoothServiceConstants.BLE_CLIENT_CONFIG_DESCRIPTOR));
                     if (gd != null && gd.getUuid().toString().equals(BluetoothServiceConstants.BLE_CLIENT_CONFIG_DESCRIPTOR)) {
-                        boolean cccdRequired = false;
+                        byte[] cccdValue = null;
                         if ((tmpAttr.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
                             if (BuildConfig.DEBUG) {
                                 Log.d(LOG_TAG, "\t\t\t+++++     send notification request");
                             }
-                            gd.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                            cccdRequired = true;
+                            cccdValue = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
                         } else if ((tmpAttr.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) {
                             if (BuildConfig.DEBUG) {
                                 Log.d(LOG_TAG, "\t\t\t+++++     send indication request");
                             }
-                            gd.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-                            cccdRequired = true;
+                            cccdValue = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
                         }
 
-                        if (cccdRequired) {
-                            synchronized (_descriptorLock) {
-                                _descriptorStatus = false;
-                                int retry = 0;
-                                while(!_descriptorStatus) {
-                                    if (_writeDescriptorProper(gd)) {
-                                        if (BuildConfig.DEBUG) {
-                                            Log.d(LOG_TAG, "\t\t\t+++++     write descriptor status = true");
-                                            Log.d(LOG_TAG, "\t\t\t+++++     WAITING...");
-                                        }
-                                        try {
-                                            _descriptorStatus = false;
-                                            _descriptorLock.wait(5000);
-                                            if (BuildConfig.DEBUG) {
-                                                Log.d(LOG_TAG, "\t\t\t+++++     WAITING..." + (_descriptorStatus ? "OK" : "FAILED"));
-                                            }
-                                        } catch(InterruptedException ex) {
-                                            if (BuildConfig.DEBUG) {
-                                                Log.d(LOG_TAG, "\t\t\t+++++     WAITING...FAILED Interrupted");
-                                            }
-                                        }
-                                    } else {
-                                        if (BuildConfig.DEBUG) {
-                                            Log.d(LOG_TAG, "\t\t\t+++++     write descriptor status = false");
-                                        }
-                                    }
-                                    if (!_descriptorStatus && ++retry > 3) {
-                                        if (BuildConfig.DEBUG) {
-                                            Log.d(LOG_TAG, "\t\t\t+++++     write descriptor ABORTING RETRY #" + retry);
-                                        }
-                                        break;
-                                    }
-                                }
+                        if (cccdValue != null) {
+                            if (BuildConfig.DEBUG) {
+                                Log.d(LOG_TAG, "\t\t\t+++++     queue descriptor write");
+                            }
+                            if (session.operationQueue.enqueue(BluetoothGattOperation.writeDescriptor(gd, cccdValue))) {
+                                session.pendingDescriptorWrites++;
                             }
                         }
                     }
@@ -760,42 +2179,61 @@ class BluetoothInteractor
                 }
             }
         }
-        if (_bleDevice != null) {
-            _bleDevice.deviceConnected = true;
-            _notifyConnectionStateChange(BluetoothGatt.GATT_SUCCESS,BluetoothProfile.STATE_CONNECTED);
+        if (session.pendingDescriptorWrites == 0) {
+            _notifyNotificationSetupComplete(session);
         }
     }
 
     /**
-     * This method is used to workaround a bug in the Android Bluetooth descriptor setup where the descriptor's
-     * descriptor write type is incorrectly inherited from the parent characteristic.  This causes descriptor write
-     * problems if the parent characteristic has not response enabled.
-     * @param gd The descriptor that is being written
-     * @return true if the descriptor write was performed, false otherwise.
+     * Called as each queued CCCD write finishes.  Once the last one is done the connection is reported to the App.
+     * @param session The connection being configured.
+     * @param operation The descriptor operation that finished.
+     * @param status The status of the descriptor write.
      */
-    private boolean _writeDescriptorProper(final BluetoothGattDescriptor gd) {
-        if (_deviceGatt == null || gd == null)
-            return false;
-
-        final BluetoothGattCharacteristic parentCharacteristic = gd.getCharacteristic();
-        if (parentCharacteristic == null) {
-            return false;
+    private void _onDescriptorWriteComplete(BluetoothDeviceSession session, BluetoothGattOperation operation, int status) {
+        if (BuildConfig.DEBUG) {
+            Log.d(LOG_TAG, "\t\t\t+++++     write descriptor " + operation.datatype + " " + (status == BluetoothGatt.GATT_SUCCESS ? "OK" : "FAILED"));
+        }
+        if (!session.ready && session.timeline != null) {
+            _connectionMetrics.onDescriptorWritten(session.timeline.onDescriptorWritten());
         }
+        if (session.pendingDescriptorWrites > 0 && --session.pendingDescriptorWrites == 0) {
+            _notifyNotificationSetupComplete(session);
+        }
+    }
 
-        int tmpWriteType = parentCharacteristic.getWriteType();
-        parentCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-        boolean result = _deviceGatt.writeDescriptor(gd);
-        parentCharacteristic.setWriteType(tmpWriteType);
-        return result;
+    /**
+     * All the notifications/indications have been configured, report the connection to the App.
+     * @param session The connection that is now ready.
+     */
+    private void _notifyNotificationSetupComplete(BluetoothDeviceSession session) {
+        if (session.device != null) {
+            _setStep(session, BluetoothDeviceSession.STEP_READY, 0);
+            session.ready = true;
+            session.device.deviceConnected = true;
+            if (session.timeline != null && session.timeline.mark(BluetoothConnectionTimeline.PHASE_READY)) {
+                _connectionMetrics.onReady(session.timeline);
+            }
+            _schedulePriorityDrop(session);
+            _requestFastPhy(session);
+            _readL2capPsm(session);
+            _knownDevices.onConnected(session.deviceId, session.gatt != null ? session.gatt.getDevice().getName() : null);
+            _notifyConnectionStateChange(session.device, BluetoothGatt.GATT_SUCCESS,BluetoothProfile.STATE_CONNECTED);
+        }
     }
 
     /**
      * Callback class used to handle the Bluetooth events generated by the OS Bluetooth Gatt connection.
      */
     private class BluetoothInteractorGattCallback extends BluetoothGattCallback {
+        /**
+         * The connection this callback receives the events for
+         */
+        private final BluetoothDeviceSession _session;
 
-        private BluetoothInteractorGattCallback() {
+        private BluetoothInteractorGattCallback(BluetoothDeviceSession session) {
             super();
+            _session = session;
         }
 
         /**
@@ -805,8 +2243,27 @@ class BluetoothInteractor
          * @param newState The state that device was trying to reach.
          */
         @Override
-        public void onConnectionStateChange(final BluetoothGatt gatt, int status, int newState) {
+        public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
             super.onConnectionStateChange(gatt, status, newState);
+            _runOnBleThread(new Runnable() {
+                @Override
+                public void run() {
+                    _handleConnectionStateChange(gatt, status, newState);
+                }
+            });
+        }
+
+        /**
+         * Process a connection state change on the Bluetooth thread.
+         * @param gatt The Gatt device that generated the state change.
+         * @param status The status of the state change.
+         * @param newState The state that device was trying to reach.
+         */
+        private void _handleConnectionStateChange(final BluetoothGatt gatt, int status, int newState) {
+            if (_sessions.get(_session.deviceId) != _session || (_session.gatt != null && gatt != _session.gatt)) {
+                // Event from a connection that has already been closed or replaced
+                return;
+            }
 
             if ((status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothProfile.STATE_DISCONNECTED) ||
                     (status == BluetoothServiceConstants.UNKNOWN_BLE_TIMEOUT_STATUS && newState == BluetoothProfile.STATE_DISCONNECTED) ||
@@ -816,55 +2273,44 @@ class BluetoothInteractor
                     (status == OcelotDeviceConnector.CONNECTION_STATUS_DISCONNECTED_BY_DEVICE)) {
 
                 if (BuildConfig.DEBUG) {
-                    Log.d(LOG_TAG,"onConnectionStateChange() -- status = " + status);
-                    Log.d(LOG_TAG,"onConnectionStateChange() --  state = " + newState);
+                    Log.d(LOG_TAG,"onConnectionStateChange() -- " + _session.deviceId + " status = " + status);
+                    Log.d(LOG_TAG,"onConnectionStateChange() -- " + _session.deviceId + "  state = " + newState);
                 }
-                _notifyConnectionStateChange(((status == BluetoothServiceConstants.UNKNOWN_BLE_TIMEOUT_STATUS || status == BluetoothServiceConstants.UNKNOWN_BLE_TERMINATED_STATUS) ? BluetoothGatt.GATT_SUCCESS : status), newState);
-
-                BluetoothGatt tmpGatt = _deviceGatt;
-                if (tmpGatt != null) {
-                    if (_clearServiceCache) {
-                        _refreshServiceCache(tmpGatt);
-                    }
-                    tmpGatt.disconnect();
-                    tmpGatt.close();
+                // Most failures during the connection setup go away on a new attempt
+                if (_retryConnection(_session, status)) {
+                    return;
                 }
-                _deviceGatt = null;
-
-                BluetoothObviousDevice tmpDev = _bleDevice;
-                if (tmpDev  != null) {
-                    tmpDev.deviceConnected = false;
+                if (_session.device != null) {
+                    _notifyConnectionStateChange(_session.device, ((status == BluetoothServiceConstants.UNKNOWN_BLE_TIMEOUT_STATUS || status == BluetoothServiceConstants.UNKNOWN_BLE_TERMINATED_STATUS) ? BluetoothGatt.GATT_SUCCESS : status), newState);
                 }
-                _bleDevice = null;
-                _gattCallback = null;
+                _closeSession(_session);
 
             } else if (status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothProfile.STATE_CONNECTED) {
-                _deviceGatt = gatt;
+                _session.gatt = gatt;
+                _session.operationQueue.setGatt(gatt);
 
-                // If possible request a low latency/high priority connection with the device so that file transfers will be faster and more reliable
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                    _deviceGatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+                if (_session.step != BluetoothDeviceSession.STEP_CONNECTING) {
+                    return;
                 }
-                // Delay the service discovery to give the device some time to setup after the connection
-                _handler.postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (!_deviceGatt.discoverServices()) {
-                            if (_bleDevice != null) {
-                                _bleDevice.deviceConnected = false;
-                            }
-                            _bleDevice = null;
-
-                            _deviceGatt.disconnect();
-                            _deviceGatt.close();
-                            _deviceGatt = null;
-
-                            _notifyConnectionStateChange(BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_DISCONNECTED);
-                        } else if (_bleDevice != null) {
-                            _bleDevice.deviceConnected = true;
+                _session.timeline.mark(BluetoothConnectionTimeline.PHASE_LINK_CONNECTED);
+                // The traffic counters of the device describe this connection from now on
+                _gattMetrics.reset(_session.deviceId);
+
+                // The connection setup is queued work, run it at the high priority
+                _raisePriority(_session);
+                // Discover the services straight away unless the phone is known to need some settling time
+                long discoveryDelay = BluetoothConnectionQuirks.getDiscoveryDelay();
+                _setStep(_session, BluetoothDeviceSession.STEP_DISCOVERING, DISCOVERY_STEP_TIMEOUT + discoveryDelay);
+                if (discoveryDelay > 0) {
+                    _bleHandler.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            _startServiceDiscovery(_session);
                         }
-                    }
-                },2000);
+                    }, discoveryDelay);
+                } else {
+                    _startServiceDiscovery(_session);
+                }
             }
             if (BuildConfig.DEBUG) {
                 Log.d(LOG_TAG, "onConnectionStateChange() --  DONE");
@@ -877,18 +2323,63 @@ class BluetoothInteractor
          * @param status The status of the service discovery process
          */
         @Override
-        public void onServicesDiscovered(final BluetoothGatt gatt, int status) {
+        public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
             super.onServicesDiscovered(gatt, status);
+            _runOnBleThread(new Runnable() {
+                @Override
+                public void run() {
+                    _handleServicesDiscovered(gatt, status);
+                }
+            });
+        }
+
+        /**
+         * Process the end of the service discovery on the Bluetooth thread.
+         * @param gatt The Gatt device that generated the event.
+         * @param status The status of the service discovery process
+         */
+        private void _handleServicesDiscovered(final BluetoothGatt gatt, int status) {
+            if (_sessions.get(_session.deviceId) != _session || gatt != _session.gatt) {
+                // Event from a connection that has already been closed or replaced
+                return;
+            }
+            if (_session.step != BluetoothDeviceSession.STEP_DISCOVERING) {
+                // Queued discovery after a Service Changed indication or a firmware change, only the index needs refreshing
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    _session.characteristics.build(gatt.getServices());
+                    _session.layoutHash = BluetoothServiceLayoutCache.computeHash(gatt.getServices());
+                    if (_session.pendingFirmwareVersion != null) {
+                        _serviceLayouts.validate(_session.deviceId, _session.pendingFirmwareVersion, _session.layoutHash);
+                        _session.pendingFirmwareVersion = null;
+                        // The refreshed OS cache now holds the layout of the new firmware
+                        _session.clearServiceCache = false;
+                    }
+                }
+                _session.operationQueue.completeOperation(BluetoothGattOperation.OPERATION_DISCOVER_SERVICES, null, status);
+                return;
+            }
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                _session.timeline.mark(BluetoothConnectionTimeline.PHASE_SERVICES_DISCOVERED);
+                _session.characteristics.build(gatt.getServices());
+                _session.layoutHash = BluetoothServiceLayoutCache.computeHash(gatt.getServices());
                 // if services have been successfully discovered, setup any notifications/indications for the characteristics
-                _handler.postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        _startNotificationSetup();
-                    }
-                }, 500);
+                long setupDelay = BluetoothConnectionQuirks.getSetupDelay();
+                _setStep(_session, BluetoothDeviceSession.STEP_CONFIGURING, CONFIGURE_STEP_TIMEOUT + setupDelay);
+                if (setupDelay > 0) {
+                    _bleHandler.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            _startNotificationSetup(_session);
+                        }
+                    }, setupDelay);
+                } else {
+                    _startNotificationSetup(_session);
+                }
+            } else if (BluetoothConnectionQuirks.waitsForReadiness(gatt.getDevice())) {
+                // The stack may still be setting up the link, ask again until the step times out
+                _retryServiceDiscovery(_session, BluetoothConnectionQuirks.READY_POLL_INTERVAL);
             } else {
-                onConnectionStateChange(gatt,BluetoothGatt.GATT_SUCCESS,BluetoothProfile.STATE_DISCONNECTED);
+                _handleConnectionStateChange(gatt,BluetoothGatt.GATT_SUCCESS,BluetoothProfile.STATE_DISCONNECTED);
             }
         }
 
@@ -901,11 +2392,21 @@ class BluetoothInteractor
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             super.onCharacteristicRead(gatt, characteristic, status);
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                _notifyDataChange(characteristic.getUuid().toString(), characteristic.getValue());
+            if (status == BluetoothGatt.GATT_SUCCESS && L2CAP_PSM_UUID.equals(characteristic.getUuid())) {
+                final byte[] value = characteristic.getValue();
+                _runOnBleThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        _openL2capChannel(_session, value);
+                    }
+                });
+            } else if (status == BluetoothGatt.GATT_SUCCESS) {
+                _markFirstData();
+                _notifyDataChange(_session.device, characteristic);
             } else {
-                _notifyReadErrorStatus(characteristic.getUuid().toString(),status);
+                _notifyReadErrorStatus(_session.device, _notificationRing.datatype(characteristic.getUuid()),status);
             }
+            _session.operationQueue.completeOperation(BluetoothGattOperation.OPERATION_READ, characteristic, status);
         }
 
         /**
@@ -917,7 +2418,7 @@ class BluetoothInteractor
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             super.onCharacteristicWrite(gatt, characteristic, status);
-            _notifyWriteStatus(characteristic.getUuid().toString(), status);
+            _session.operationQueue.completeOperation(BluetoothGattOperation.OPERATION_WRITE, characteristic, status);
         }
 
         /**
@@ -928,7 +2429,55 @@ class BluetoothInteractor
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
             super.onCharacteristicChanged(gatt, characteristic);
-            _notifyDataChange(characteristic.getUuid().toString(),characteristic.getValue());
+            if (SERVICE_CHANGED_UUID.equals(characteristic.getUuid())) {
+                _runOnBleThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        _handleServiceChanged();
+                    }
+                });
+            }
+            _markFirstData();
+            byte[] value = characteristic.getValue();
+            _gattMetrics.onNotification(_session.deviceId, _notificationRing.datatype(characteristic.getUuid()), value != null ? value.length : 0);
+            _notifyDataChange(_session.device, characteristic);
+        }
+
+        /**
+         * Record the first data received once the connection is ready.  Called on the thread of the GATT callback,
+         * the timeline is only changed on the Bluetooth thread so nothing is posted once the first data is marked.
+         */
+        private void _markFirstData() {
+            final BluetoothConnectionTimeline timeline = _session.timeline;
+            if (timeline == null || !timeline.isWaitingForData()) {
+                return;
+            }
+            _runOnBleThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (timeline.isWaitingForData() && timeline.mark(BluetoothConnectionTimeline.PHASE_FIRST_DATA)) {
+                        _connectionMetrics.onFirstData(timeline);
+                    }
+                }
+            });
+        }
+
+        /**
+         * The device reported that its services have changed, drop the characteristic index and discover the services again.
+         */
+        private void _handleServiceChanged() {
+            if (_sessions.get(_session.deviceId) != _session || _session.gatt == null) {
+                return;
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(LOG_TAG, "Service Changed -- " + _session.deviceId);
+            }
+            _serviceLayouts.invalidate(_session.deviceId);
+            _session.clearServiceCache = (_session.gatt.getDevice().getBondState() != BluetoothDevice.BOND_BONDED);
+            _session.characteristics.clear();
+            if (_session.step == BluetoothDeviceSession.STEP_READY) {
+                _queueServiceDiscovery(_session, 0);
+            }
         }
 
         /**
@@ -940,14 +2489,122 @@ class BluetoothInteractor
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
             super.onDescriptorWrite(gatt, descriptor, status);
-            synchronized (_descriptorLock) {
+            if (BuildConfig.DEBUG) {
+                Log.d(LOG_TAG, "onDescriptorWrite() -- status = " + status);
+            }
+            _session.operationQueue.completeOperation(BluetoothGattOperation.OPERATION_DESCRIPTOR_WRITE, descriptor, status);
+        }
+
+        /**
+         * Callback notification of the result of an MTU exchange.
+         * @param gatt The gatt device that generated the event.
+         * @param mtu The MTU in use for the connection.
+         * @param status The status of the MTU exchange.
+         */
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, final int mtu, final int status) {
+            super.onMtuChanged(gatt, mtu, status);
+            _runOnBleThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        if (BuildConfig.DEBUG) {
+                            Log.d(LOG_TAG, "onMtuChanged() -- " + _session.deviceId + " mtu = " + mtu);
+                        }
+                        _session.mtu = mtu;
+                        _session.timeline.mark(BluetoothConnectionTimeline.PHASE_MTU_CHANGED);
+                        if (_session.device != null) {
+                            _session.device.mtu = mtu;
+                        }
+                    }
+                    _session.operationQueue.completeOperation(BluetoothGattOperation.OPERATION_MTU, null, status);
+                }
+            });
+        }
+
+        /**
+         * Callback notification for a change of the PHY of the connection, either requested by the App or by the device.
+         * @param gatt The gatt device that generated the event.
+         * @param txPhy The transmitter PHY in use.
+         * @param rxPhy The receiver PHY in use.
+         * @param status The status of the PHY update.
+         */
+        @Override
+        @TargetApi(Build.VERSION_CODES.O)
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            super.onPhyUpdate(gatt, txPhy, rxPhy, status);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                // The device refused the new PHY, the previous one is still in use
                 if (BuildConfig.DEBUG) {
-                    Log.d(LOG_TAG, "onDescriptorWrite() -- status = " + status);
-                    Log.d(LOG_TAG, "onDescriptorWrite() --  Signal _descriptorLock");
+                    Log.d(LOG_TAG, "onPhyUpdate() -- " + _session.deviceId + " failed, status = " + status);
                 }
-                _descriptorStatus = (status == BluetoothGatt.GATT_SUCCESS);
-                _descriptorLock.notifyAll();
+                gatt.readPhy();
+                return;
+            }
+            _setPhy(txPhy, rxPhy);
+        }
+
+        /**
+         * Callback notification for the PHY read with readPhy().
+         * @param gatt The gatt device that generated the event.
+         * @param txPhy The transmitter PHY in use.
+         * @param rxPhy The receiver PHY in use.
+         * @param status The status of the read.
+         */
+        @Override
+        public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            super.onPhyRead(gatt, txPhy, rxPhy, status);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                _setPhy(txPhy, rxPhy);
             }
         }
+
+        /**
+         * Record the PHY in use on the session and the device.
+         * @param txPhy The transmitter PHY.
+         * @param rxPhy The receiver PHY.
+         */
+        private void _setPhy(final int txPhy, final int rxPhy) {
+            _runOnBleThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(LOG_TAG, "PHY -- " + _session.deviceId + " tx = " + txPhy + " rx = " + rxPhy);
+                    }
+                    _session.txPhy = txPhy;
+                    _session.rxPhy = rxPhy;
+                    if (_session.device != null) {
+                        _session.device.txPhy = txPhy;
+                        _session.device.rxPhy = rxPhy;
+                    }
+                }
+            });
+        }
+
+        /**
+         * Callback notification for a change of the connection parameters, used to confirm the connection priority
+         * requests.  The OS calls it from API 26 but it is hidden from the SDK, so it is declared without @Override
+         * and kept by the ProGuard rules.
+         * @param gatt The gatt device that generated the event.
+         * @param interval The connection interval in 1.25ms units.
+         * @param latency The peripheral latency in connection events.
+         * @param timeout The supervision timeout in 10ms units.
+         * @param status The status of the update.
+         */
+        public void onConnectionUpdated(BluetoothGatt gatt, final int interval, final int latency, final int timeout, final int status) {
+            _runOnBleThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (status != BluetoothGatt.GATT_SUCCESS) {
+                        return;
+                    }
+                    boolean confirmed = _session.priority.onConnectionUpdated(interval, latency, timeout);
+                    if (BuildConfig.DEBUG) {
+                        Log.d(LOG_TAG, "onConnectionUpdated() -- " + _session.deviceId + " interval = " + (interval * 1.25) + "ms latency = " + latency +
+                                (confirmed ? "" : ", priority " + _session.priority.getRequested() + " not applied"));
+                    }
+                }
+            });
+        }
     }
 }
@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothSocket;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An LE L2CAP connection-oriented channel to a device, used on API 29+ to send bulk data such as firmware images
+ * without the ATT header and write callback of every GATT packet.  Each write is sent as one SDU made of the
+ * 16 byte UUID of the characteristic it is meant for followed by the payload, the device firmware dispatches it
+ * as if it had been written to that characteristic.  The socket calls block so the channel runs on its own thread,
+ * the listener is called on that thread.  The thread is a plain single thread executor rather than a HandlerThread
+ * so that the channel also runs over a local socket in the unit tests.
+ *
+ * This SDU framing and the PSM characteristic are an App-defined protocol, not part of the Bluetooth or Obvious
+ * specifications.  The channel is selected automatically for the peripherals that publish a PSM in the
+ * BLE_CHARACTERISTIC_L2CAP_PSM characteristic, publishing it is how a peripheral says it implements the framing.
+ */
+@TargetApi(Build.VERSION_CODES.Q)
+class BluetoothL2capChannel {
+    /**
+     * A static string used to tag log messages that this class writes when in debug mode
+     */
+    private static String LOG_TAG = BluetoothL2capChannel.class.getSimpleName();
+    /**
+     * The size of the characteristic UUID that heads each SDU
+     */
+    static final int HEADER_SIZE = 16;
+
+    /**
+     * The write is sent with a GATT operation
+     */
+    static final int ROUTE_GATT = 0;
+    /**
+     * The write is sent on the channel
+     */
+    static final int ROUTE_CHANNEL = 1;
+    /**
+     * The characteristic leaves the channel, the write is sent with a GATT operation once the writes already queued
+     * on the channel are done
+     */
+    static final int ROUTE_DRAIN = 2;
+
+    /**
+     * Interface to implement to be told about the state of the channel and the end of the writes.
+     */
+    interface ChannelListener {
+        /**
+         * Notification that the channel is connected and can be written to.
+         * @param channel The channel.
+         */
+        void onChannelOpened(BluetoothL2capChannel channel);
+
+        /**
+         * Notification that the channel could not be connected or was lost.  No more writes are accepted.
+         * @param channel The channel.
+         */
+        void onChannelClosed(BluetoothL2capChannel channel);
+
+        /**
+         * Notification that a write has been handed to the stack, or failed.
+         * @param channel The channel.
+         * @param service The UUID of the service the data was written for.
+         * @param datatype The characteristic UUID the data was written for.
+         * @param data The data written.
+         * @param status GATT_SUCCESS if the SDU was sent, GATT_FAILURE otherwise.
+         */
+        void onWriteComplete(BluetoothL2capChannel channel, String service, String datatype, byte[] data, int status);
+    }
+
+    private final ChannelListener _listener;
+    private final ExecutorService _executor;
+    private volatile BluetoothSocket _socket = null;
+    private volatile OutputStream _output = null;
+    private volatile int _maxPacketSize = 0;
+    private volatile boolean _closed = false;
+
+    /**
+     * Create a channel, it is connected with open().
+     * @param deviceId The Bluetooth identifier of the device, used to name the thread.
+     * @param listener The listener notified of the channel events.
+     */
+    BluetoothL2capChannel(String deviceId, ChannelListener listener) {
+        _listener = listener;
+        final String name = LOG_TAG + " " + deviceId;
+        _executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                        runnable.run();
+                    }
+                }, name);
+            }
+        });
+    }
+
+    /**
+     * Connect the channel in the background.
+     * @param device The device to connect to, it must already be connected over GATT.
+     * @param psm The PSM the device listens on.
+     */
+    void open(final BluetoothDevice device, final int psm) {
+        _execute(new Runnable() {
+            @Override
+            public void run() {
+                if (_closed) { return; }
+                OutputStream output;
+                int maxPacketSize;
+                try {
+                    BluetoothSocket socket = device.createInsecureL2capChannel(psm);
+                    _socket = socket;
+                    socket.connect();
+                    output = socket.getOutputStream();
+                    maxPacketSize = socket.getMaxTransmitPacketSize();
+                } catch (IOException | SecurityException ex) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(LOG_TAG, "L2CAP channel to PSM " + psm + " could not be opened -- " + ex.getMessage());
+                    }
+                    _shutdown();
+                    return;
+                }
+                _onConnected(output, maxPacketSize);
+            }
+        });
+    }
+
+    /**
+     * Run the channel over a stream that is already connected, the way open() does once the socket is connected.
+     * Used by the unit tests to run the channel over a local socket.
+     * @param output The stream the SDUs are written to.
+     * @param maxPacketSize The largest SDU the stream accepts, header included.
+     */
+    void openStream(final OutputStream output, final int maxPacketSize) {
+        _execute(new Runnable() {
+            @Override
+            public void run() {
+                if (_closed) { return; }
+                _onConnected(output, maxPacketSize);
+            }
+        });
+    }
+
+    /**
+     * Start accepting writes once the channel is connected.  Called on the channel thread.
+     * @param output The stream the SDUs are written to.
+     * @param maxPacketSize The largest SDU the stream accepts, header included.
+     */
+    private void _onConnected(OutputStream output, int maxPacketSize) {
+        _output = output;
+        _maxPacketSize = maxPacketSize;
+        if (_closed) {
+            // close() was called while connecting
+            _shutdown();
+            return;
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(LOG_TAG, "L2CAP channel open, max SDU " + maxPacketSize);
+        }
+        _listener.onChannelOpened(this);
+    }
+
+    /**
+     * Whether the channel is connected.
+     * @return true if writes can be sent.
+     */
+    boolean isOpen() {
+        return _output != null && !_closed;
+    }
+
+    /**
+     * The largest payload that fits in a single SDU with its header.
+     * @return The size in bytes, 0 until the channel is open.
+     */
+    int getMaxPayload() {
+        return Math.max(0, _maxPacketSize - HEADER_SIZE);
+    }
+
+    /**
+     * Choose the transport of a write so that the data of each characteristic stays in order.  A characteristic
+     * is pinned to the channel by its first bulk write made while the channel is open and no GATT write to it is
+     * waiting, its following bulk writes go on the channel as well.  A write that asks for an ACK, that the user is
+     * waiting on or that does not fit in an SDU never goes on the channel: if its characteristic is pinned it is
+     * un-pinned and the write goes over GATT once the writes queued on the channel are done.
+     * @param pinned Whether the characteristic is already pinned to the channel.
+     * @param preferGatt Whether the write asks for an ACK from the device or the user is waiting on it.
+     * @param channelOpen Whether the channel is open.
+     * @param gattPending Whether a GATT write to the characteristic is in progress or waiting.
+     * @param length The payload size in bytes.
+     * @param maxPayload The largest payload that fits in an SDU.
+     * @return ROUTE_GATT, ROUTE_CHANNEL or ROUTE_DRAIN.
+     */
+    static int route(boolean pinned, boolean preferGatt, boolean channelOpen, boolean gattPending, int length, int maxPayload) {
+        boolean fits = (channelOpen && length <= maxPayload);
+        if (pinned) {
+            return (!preferGatt && fits ? ROUTE_CHANNEL : ROUTE_DRAIN);
+        }
+        if (preferGatt || !fits || gattPending) {
+            return ROUTE_GATT;
+        }
+        return ROUTE_CHANNEL;
+    }
+
+    /**
+     * Send one SDU on the output stream of the channel.
+     * @param output The output stream of the socket.
+     * @param uuid The UUID of the characteristic the data is meant for.
+     * @param data The payload, may be null.
+     * @throws IOException If the channel failed.
+     */
+    static void writeSdu(OutputStream output, UUID uuid, byte[] data) throws IOException {
+        ByteBuffer sdu = ByteBuffer.allocate(HEADER_SIZE + (data != null ? data.length : 0));
+        sdu.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+        if (data != null) {
+            sdu.put(data);
+        }
+        // A single write call so that the stack sends the whole buffer as one SDU
+        output.write(sdu.array());
+        output.flush();
+    }
+
+    /**
+     * Queue a write on the channel.  The writes are sent in order, the result is passed to the listener.
+     * @param service The UUID of the service of the characteristic, passed back to the listener.
+     * @param datatype The UUID of the characteristic the data is meant for.
+     * @param data The payload.
+     * @return true if the write was queued, false if the channel is not open or the payload does not fit in an SDU.
+     *         Once a write has failed the channel closes and the writes queued after it are failed as well, in order.
+     */
+    boolean write(final String service, final String datatype, final byte[] data) {
+        final UUID uuid;
+        try {
+            uuid = UUID.fromString(datatype);
+        } catch (IllegalArgumentException | NullPointerException ex) {
+            return false;
+        }
+        if (!isOpen() || (data != null ? data.length : 0) > getMaxPayload()) {
+            return false;
+        }
+        return _execute(new Runnable() {
+            @Override
+            public void run() {
+                int status = BluetoothGatt.GATT_FAILURE;
+                OutputStream output = _output;
+                if (output != null && !_closed) {
+                    try {
+                        writeSdu(output, uuid, data);
+                        status = BluetoothGatt.GATT_SUCCESS;
+                    } catch (IOException ex) {
+                        if (BuildConfig.DEBUG) {
+                            Log.d(LOG_TAG, "L2CAP write failed -- " + ex.getMessage());
+                        }
+                    }
+                }
+                _listener.onWriteComplete(BluetoothL2capChannel.this, service, datatype, data, status);
+                if (status != BluetoothGatt.GATT_SUCCESS && !_closed) {
+                    _shutdown();
+                }
+            }
+        });
+    }
+
+    /**
+     * Close the channel and stop its thread.  Writes that are still queued are failed, in order.
+     */
+    void close() {
+        _closed = true;
+        // Unblocks a connect() or write() in progress
+        _closeQuietly(_socket, _output);
+        _executor.shutdown();
+    }
+
+    /**
+     * Run a task on the channel thread.
+     * @param task The task.
+     * @return true if the task was queued, false if the thread has been stopped.
+     */
+    private boolean _execute(Runnable task) {
+        try {
+            _executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Close the socket after a failure and tell the listener that the channel is gone.
+     */
+    private void _shutdown() {
+        boolean wasClosed = _closed;
+        _closed = true;
+        BluetoothSocket socket = _socket;
+        OutputStream output = _output;
+        _socket = null;
+        _output = null;
+        _closeQuietly(socket, output);
+        if (!wasClosed) {
+            _listener.onChannelClosed(this);
+        }
+        _executor.shutdown();
+    }
+
+    /**
+     * Close the socket and the stream of the channel, ignoring the errors.
+     * @param socket The socket, may be null.
+     * @param output The stream, may be null.
+     */
+    private static void _closeQuietly(BluetoothSocket socket, OutputStream output) {
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException ex) {
+            // nothing more to do
+        }
+        try {
+            if (output != null) {
+                output.close();
+            }
+        } catch (IOException ex) {
+            // nothing more to do
+        }
+    }
+}
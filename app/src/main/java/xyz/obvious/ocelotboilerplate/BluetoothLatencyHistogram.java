@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram with logarithmic buckets, each power of two is split in eight sub-buckets so that every
+ * recorded value is known to within 12.5%.  Recording is lock-free so it can be done on the Bluetooth thread or
+ * the binder threads without contention, reading the percentiles walks the buckets and may see a recording that
+ * is in progress, which is fine for monitoring.
+ */
+class BluetoothLatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Values up to 2^40 are recorded, larger values go in the last bucket
+     */
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _sum = new AtomicLong();
+    private final AtomicLong _min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong _max = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Record a value.
+     * @param value The value, negative values are recorded as 0.
+     */
+    void record(long value) {
+        value = Math.max(0, value);
+        _counts.incrementAndGet(_bucketOf(value));
+        _count.incrementAndGet();
+        _sum.addAndGet(value);
+        long current;
+        while (value < (current = _min.get()) && !_min.compareAndSet(current, value)) {
+            // another thread changed the minimum, check again
+        }
+        while (value > (current = _max.get()) && !_max.compareAndSet(current, value)) {
+            // another thread changed the maximum, check again
+        }
+    }
+
+    /**
+     * The number of values recorded.
+     * @return The count.
+     */
+    long getCount() {
+        return _count.get();
+    }
+
+    /**
+     * The mean of the values recorded.
+     * @return The mean, 0 if nothing was recorded.
+     */
+    double getMean() {
+        long count = _count.get();
+        return (count == 0 ? 0 : (double) _sum.get() / count);
+    }
+
+    /**
+     * The smallest value recorded.
+     * @return The value, 0 if nothing was recorded.
+     */
+    long getMin() {
+        return (_count.get() == 0 ? 0 : _min.get());
+    }
+
+    /**
+     * The largest value recorded.
+     * @return The value, 0 if nothing was recorded.
+     */
+    long getMax() {
+        return (_count.get() == 0 ? 0 : _max.get());
+    }
+
+    /**
+     * The value below which a share of the recorded values fall.
+     * @param percentile The share, from 0 to 100.
+     * @return The lower bound of the bucket the percentile falls in, 0 if nothing was recorded.
+     */
+    long getPercentile(double percentile) {
+        long count = _count.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += _counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(Math.max(_lowerBound(bucket), getMin()), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Forget all the values recorded.
+     */
+    void reset() {
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            _counts.set(bucket, 0);
+        }
+        _count.set(0);
+        _sum.set(0);
+        _min.set(Long.MAX_VALUE);
+        _max.set(Long.MIN_VALUE);
+    }
+
+    /**
+     * The bucket a value is counted in.
+     * @param value The value, at least 0.
+     * @return The bucket index.
+     */
+    private static int _bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(value));
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKET_COUNT - 1, (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket);
+    }
+
+    /**
+     * The smallest value counted in a bucket.
+     * @param bucket The bucket index.
+     * @return The value.
+     */
+    private static long _lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import android.os.Handler;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * This class passes the characteristic data and write statuses received by the GATT callbacks on to the
+ * BluetoothObviousDevice objects on the main thread without allocating memory for each event.  The characteristic
+ * UUIDs are converted to strings once and kept, the events are stored in a ring that grows only when it is full,
+ * the values are copied into buffers taken from a pool keyed by length and a single Runnable drains the ring.  Once
+ * the ring, the pool and the UUID strings have warmed up the ring itself creates no objects per event.
+ *
+ * By default each event is delivered with its own call as soon as possible.  When batching is enabled, events are
+ * held for up to the maximum latency or until a full batch is waiting, consecutive events of a device are then
+ * delivered together through BluetoothObviousDevice.onDataBatch().  Events are always delivered in the order they
+ * were received.
+ *
+ * The buffers passed to the devices are returned to the pool as soon as the delivery call returns, the receiver
+ * must copy the data if it needs to keep it.  BluetoothObviousDevice hands the Obvious SDK its own copy since the SDK
+ * may keep the array, so each data event still costs one array of the value's length on the way to the SDK.  Only the
+ * App's batch listener sees the pooled buffers.
+ */
+class BluetoothNotificationRing {
+    private static final int INITIAL_CAPACITY = 64;
+    /**
+     * The most buffers of one length kept in the pool
+     */
+    private static final int MAX_POOLED_BUFFERS = 64;
+    /**
+     * The longest buffer kept in the pool, the largest characteristic value allowed by the ATT protocol
+     */
+    private static final int MAX_POOLED_LENGTH = 512;
+
+    private final Handler _handler;
+    private final HashMap<UUID,String> _datatypes = new HashMap<>();
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<byte[]>[] _bufferPool = new ArrayDeque[MAX_POOLED_LENGTH + 1];
+    private final BluetoothEventBatch _batch = new BluetoothEventBatch(INITIAL_CAPACITY);
+
+    private BluetoothObviousDevice[] _devices = new BluetoothObviousDevice[INITIAL_CAPACITY];
+    private int[] _kinds = new int[INITIAL_CAPACITY];
+    private String[] _types = new String[INITIAL_CAPACITY];
+    private byte[][] _values = new byte[INITIAL_CAPACITY][];
+    private int[] _statuses = new int[INITIAL_CAPACITY];
+    private int _head = 0;
+    private int _count = 0;
+    private boolean _drainPosted = false;
+    private boolean _drainImmediate = false;
+    private int _maxBatchSize = 1;
+    private long _maxLatency = 0;
+
+    private final Runnable _drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Create a ring that delivers the events on the thread of a handler.
+     * @param handler The handler of the thread the BluetoothObviousDevice objects are notified on.
+     */
+    BluetoothNotificationRing(Handler handler) {
+        _handler = handler;
+    }
+
+    /**
+     * Configure the batched delivery of the events.
+     * @param maxBatchSize The most events delivered in one batch, 1 or less to deliver each event on its own.
+     * @param maxLatency The longest time in milliseconds an event is held back waiting for a batch to fill.
+     */
+    synchronized void setBatching(int maxBatchSize, long maxLatency) {
+        _maxBatchSize = Math.max(1, maxBatchSize);
+        _maxLatency = Math.max(0, maxLatency);
+    }
+
+    /**
+     * Retrieve the string form of a characteristic UUID.  The string is created the first time a UUID is seen
+     * and the same instance is returned afterwards.
+     * @param uuid The characteristic UUID.
+     * @return The UUID string.
+     */
+    synchronized String datatype(UUID uuid) {
+        String type = _datatypes.get(uuid);
+        if (type == null) {
+            type = uuid.toString();
+            _datatypes.put(uuid, type);
+        }
+        return type;
+    }
+
+    /**
+     * Queue a characteristic value for delivery to a device.  This method can be called from any thread, the
+     * value is copied so the caller can reuse its array straight away.
+     * @param device The device the data was received from.
+     * @param uuid The UUID of the characteristic.
+     * @param value The raw data bytes of the characteristic value.
+     */
+    synchronized void publish(BluetoothObviousDevice device, UUID uuid, byte[] value) {
+        if (device == null) { return; }
+        byte[] buffer = null;
+        if (value != null) {
+            buffer = _obtainBuffer(value.length);
+            System.arraycopy(value, 0, buffer, 0, value.length);
+        }
+        _add(device, BluetoothEventBatch.EVENT_DATA, datatype(uuid), buffer, 0);
+    }
+
+    /**
+     * Queue a characteristic write status for delivery to a device.  This method can be called from any thread.
+     * @param device The device that was written.
+     * @param datatype The characteristic UUID string.
+     * @param status The Bluetooth status of the write.
+     */
+    synchronized void publishWriteStatus(BluetoothObviousDevice device, String datatype, int status) {
+        if (device == null) { return; }
+        _add(device, BluetoothEventBatch.EVENT_WRITE_STATUS, datatype, null, status);
+    }
+
+    /**
+     * Store an event at the tail of the ring and make sure a drain is scheduled.  Must be called with the lock held.
+     * @param device The device the event is for.
+     * @param kind BluetoothEventBatch.EVENT_DATA or EVENT_WRITE_STATUS.
+     * @param datatype The characteristic UUID string.
+     * @param buffer The pooled copy of the value, null for write status events.
+     * @param status The write status, 0 for data events.
+     */
+    private void _add(BluetoothObviousDevice device, int kind, String datatype, byte[] buffer, int status) {
+        if (_count == _devices.length) {
+            _grow();
+        }
+        int tail = (_head + _count) % _devices.length;
+        _devices[tail] = device;
+        _kinds[tail] = kind;
+        _types[tail] = datatype;
+        _values[tail] = buffer;
+        _statuses[tail] = status;
+        _count++;
+
+        if (_maxBatchSize <= 1 || _count >= _maxBatchSize) {
+            if (!_drainImmediate) {
+                _handler.removeCallbacks(_drainRunnable);
+                _handler.post(_drainRunnable);
+                _drainImmediate = true;
+                _drainPosted = true;
+            }
+        } else if (!_drainPosted) {
+            _handler.postDelayed(_drainRunnable, _maxLatency);
+            _drainPosted = true;
+        }
+    }
+
+    /**
+     * Deliver the events that were queued when the drain started.  Events that arrive during the drain schedule
+     * the next run so that a fast device cannot hold the thread.  Called by the posted Runnable, and directly by
+     * the unit tests.
+     */
+    void drain() {
+        int remaining;
+        synchronized (this) {
+            remaining = _count;
+            _drainPosted = false;
+            _drainImmediate = false;
+        }
+        while (remaining > 0) {
+            BluetoothObviousDevice device;
+            boolean batched;
+            synchronized (this) {
+                batched = (_maxBatchSize > 1);
+                device = _devices[_head];
+                do {
+                    _batch.add(_kinds[_head], _types[_head], _values[_head], _statuses[_head]);
+                    _devices[_head] = null;
+                    _types[_head] = null;
+                    _values[_head] = null;
+                    _head = (_head + 1) % _devices.length;
+                    _count--;
+                    remaining--;
+                } while (batched && remaining > 0 && _batch.size() < _maxBatchSize && _devices[_head] == device);
+            }
+
+            if (batched) {
+                device.onDataBatch(_batch);
+            } else if (_batch.getKind(0) == BluetoothEventBatch.EVENT_DATA) {
+                device.onDataNotification(_batch.getDatatype(0), _batch.getValue(0));
+            } else {
+                device.onDataWriteNotification(_batch.getDatatype(0), _batch.getStatus(0));
+            }
+
+            synchronized (this) {
+                for (int i = 0; i < _batch.size(); i++) {
+                    if (_batch.getValue(i) != null) {
+                        _releaseBuffer(_batch.getValue(i));
+                    }
+                }
+            }
+            _batch.clear();
+        }
+    }
+
+    /**
+     * Take a buffer of an exact length from the pool, creating one if the pool is empty.
+     * @param length The length of the buffer.
+     * @return The buffer.
+     */
+    private byte[] _obtainBuffer(int length) {
+        ArrayDeque<byte[]> pool = (length <= MAX_POOLED_LENGTH ? _bufferPool[length] : null);
+        byte[] buffer = (pool != null ? pool.poll() : null);
+        return (buffer != null ? buffer : new byte[length]);
+    }
+
+    /**
+     * Return a buffer to the pool.
+     * @param buffer The buffer that is no longer used.
+     */
+    private void _releaseBuffer(byte[] buffer) {
+        if (buffer.length > MAX_POOLED_LENGTH) {
+            return;
+        }
+        ArrayDeque<byte[]> pool = _bufferPool[buffer.length];
+        if (pool == null) {
+            pool = new ArrayDeque<>(MAX_POOLED_BUFFERS);
+            _bufferPool[buffer.length] = pool;
+        }
+        if (pool.size() < MAX_POOLED_BUFFERS) {
+            pool.add(buffer);
+        }
+    }
+
+    /**
+     * Double the size of the ring, keeping the queued events in order.
+     */
+    private void _grow() {
+        int capacity = _devices.length * 2;
+        BluetoothObviousDevice[] devices = new BluetoothObviousDevice[capacity];
+        int[] kinds = new int[capacity];
+        String[] types = new String[capacity];
+        byte[][] values = new byte[capacity][];
+        int[] statuses = new int[capacity];
+        for (int i = 0; i < _count; i++) {
+            int index = (_head + i) % _devices.length;
+            devices[i] = _devices[index];
+            kinds[i] = _kinds[index];
+            types[i] = _types[index];
+            values[i] = _values[index];
+            statuses[i] = _statuses[index];
+        }
+        _devices = devices;
+        _kinds = kinds;
+        _types = types;
+        _values = values;
+        _statuses = statuses;
+        _head = 0;
+    }
+}
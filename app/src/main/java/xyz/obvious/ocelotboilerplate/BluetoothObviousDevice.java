@@ -30,6 +30,7 @@ import com.obvious.mobileapi.OcelotDeviceConnector;
 import com.obvious.mobileapi.OcelotDeviceConnectorCallback;
 
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import xyz.obvious.manufacturer.ObviousProductIdentifier;
 
@@ -47,10 +48,19 @@ class BluetoothObviousDevice implements
     private OcelotDeviceConnector obviousConnector;
     private BluetoothInteractor bleConnection;
     private BluetoothConnectionStateListener stateListener = null;
+    private BluetoothWriteProgressListener progressListener = null;
+    private BluetoothDataBatchListener batchListener = null;
     private String deviceId;
     private HashMap<String,String[]> _serviceInfo;
     private Context connectContext = null;
-    boolean deviceConnected = false;
+    volatile boolean deviceConnected = false;
+    volatile int mtu = BluetoothDeviceSession.DEFAULT_MTU;
+    volatile int txPhy = BluetoothDeviceSession.DEFAULT_PHY;
+    volatile int rxPhy = BluetoothDeviceSession.DEFAULT_PHY;
+    /**
+     * Whether the next write requested by the Obvious SDK is the one the user is waiting on
+     */
+    private final AtomicBoolean interactiveWrite = new AtomicBoolean(false);
 
     /**
      * Create a BluetoothObviousDevice object for communicating with the underlying Bluetooth device.
@@ -91,6 +101,16 @@ class BluetoothObviousDevice implements
      * @param listener The BluetoothConnectionStateListener that will handle the connection/disconnection events
      */
     void connect(Context context, BluetoothConnectionStateListener listener) {
+        connect(context, listener, false);
+    }
+
+    /**
+     * Initiate a Bluetooth connection with the Bluetooth device associated with this object.
+     * @param context Application context to use when interacting with the OS Bluetooth layer.
+     * @param listener The BluetoothConnectionStateListener that will handle the connection/disconnection events
+     * @param autoConnect true to let the OS wait for the device to come in range instead of failing after the connection timeout.
+     */
+    void connect(Context context, BluetoothConnectionStateListener listener, boolean autoConnect) {
         if (bleConnection == null) {
             deviceConnected = false;
             return;
@@ -98,7 +118,7 @@ class BluetoothObviousDevice implements
 
         stateListener = listener;
         connectContext = context;
-        bleConnection.connectToDevice(context,this);
+        bleConnection.connectToDevice(context, this, autoConnect);
     }
 
     /**
@@ -121,6 +141,77 @@ class BluetoothObviousDevice implements
         return deviceConnected;
     }
 
+    /**
+     * Return the ATT MTU negotiated with the device for the current connection
+     * @return the MTU in bytes, 23 until a larger MTU has been negotiated.
+     */
+    int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * Mark the next characteristic write requested by the Obvious SDK as user-visible, e.g. the write of a feature
+     * toggle, so that it is started ahead of any bulk transfer in progress.  Only that one write is affected.
+     * @param interactive true before the call to the SDK that makes the write, false once it has returned so that
+     *                    a later write does not pick up the mark if the SDK did not write.
+     */
+    void setNextWriteInteractive(boolean interactive) {
+        interactiveWrite.set(interactive);
+    }
+
+    /**
+     * Return the PHY the phone transmits on for the current connection
+     * @return one of the BluetoothDevice.PHY_LE_* values, PHY_LE_2M once the faster PHY has been negotiated.
+     */
+    int getTxPhy() {
+        return txPhy;
+    }
+
+    /**
+     * Return the PHY the phone receives on for the current connection
+     * @return one of the BluetoothDevice.PHY_LE_* values, PHY_LE_2M once the faster PHY has been negotiated.
+     */
+    int getRxPhy() {
+        return rxPhy;
+    }
+
+    /**
+     * Return the largest payload that can be written to a characteristic in a single Bluetooth packet.  Larger
+     * writes are split into several packets by the BluetoothInteractor.
+     * @return the maximum payload size in bytes.
+     */
+    int getMaxWritePayload() {
+        return mtu - BluetoothDeviceSession.ATT_HEADER_SIZE;
+    }
+
+    /**
+     * Keep the connection at the high priority, e.g. for the duration of a firmware update.  Otherwise the priority
+     * follows the reads and writes queued and drops once the connection is idle.
+     * @param held true to hold the high priority, false to release it.
+     */
+    void setHighThroughput(boolean held) {
+        if (bleConnection != null) {
+            bleConnection.setHighThroughput(this, held);
+        }
+    }
+
+    /**
+     * Set the listener that receives the progress of large writes that are split into several packets.
+     * @param listener The BluetoothWriteProgressListener that will handle the progress events, or null.
+     */
+    void setWriteProgressListener(BluetoothWriteProgressListener listener) {
+        progressListener = listener;
+    }
+
+    /**
+     * Set the listener that receives the data and write status events a batch at a time when batched delivery
+     * is enabled in the BluetoothInteractor.
+     * @param listener The BluetoothDataBatchListener that will handle the batches, or null.
+     */
+    void setDataBatchListener(BluetoothDataBatchListener listener) {
+        batchListener = listener;
+    }
+
     /**
      * This method is used for retrieving the Bluetooth services and characteristics that this device
      * is interested in getting notifications/indications from.
@@ -157,7 +248,7 @@ class BluetoothObviousDevice implements
         if (BuildConfig.DEBUG) {
             Log.d(this.getClass().getSimpleName(), "Send data to device with response");
         }
-        return bleConnection.sendDataToDevice(this, rawdata, serviceid, characteristicid);
+        return bleConnection.sendDataToDevice(this, rawdata, serviceid, characteristicid, interactiveWrite.getAndSet(false));
     }
 
     /**
@@ -173,7 +264,7 @@ class BluetoothObviousDevice implements
         if (BuildConfig.DEBUG) {
             Log.d(this.getClass().getSimpleName(), "Send data to device without response");
         }
-        return bleConnection.sendDataToDeviceWithoutResponse(this, rawdata, serviceid, characteristicid);
+        return bleConnection.sendDataToDeviceWithoutResponse(this, rawdata, serviceid, characteristicid, interactiveWrite.getAndSet(false));
     }
 
     /**
@@ -252,9 +343,49 @@ class BluetoothObviousDevice implements
         }
     }
 
+    /**
+     * A batch of data and write status events from the Bluetooth device, in the order they were received.  The
+     * events are passed on to the Obvious connector one at a time, each value as a copy the connector can keep, and
+     * the whole batch is then given to the batch listener if one is set.
+     * @param batch The events, only valid during this call
+     */
+    void onDataBatch(BluetoothEventBatch batch) {
+        if (BuildConfig.DEBUG) {
+            Log.d(this.getClass().getSimpleName(), "Data batch size = " + batch.size());
+        }
+        if (obviousConnector != null) {
+            for (int i = 0; i < batch.size(); i++) {
+                if (batch.getKind(i) == BluetoothEventBatch.EVENT_DATA) {
+                    obviousConnector.onUpdateDeviceData(batch.getDatatype(i), _copy(batch.getValue(i)));
+                } else {
+                    obviousConnector.onWriteStatus(batch.getDatatype(i), batch.getStatus(i));
+                }
+            }
+        }
+        if (batchListener != null) {
+            batchListener.onDataBatch(deviceId, batch);
+        }
+    }
+
+    /**
+     * This method is used to pass the progress of a large characteristic write on to the App
+     * @param datatype The characteristic that is being written
+     * @param bytesWritten The number of bytes sent so far
+     * @param totalBytes The total number of bytes of the write
+     */
+    void onDataWriteProgress(String datatype, int bytesWritten, int totalBytes) {
+        if (BuildConfig.DEBUG) {
+            Log.d(this.getClass().getSimpleName(), "Write progress " + bytesWritten + "/" + totalBytes);
+        }
+        if (progressListener != null) {
+            progressListener.onWriteProgress(datatype, bytesWritten, totalBytes);
+        }
+    }
+
     /**
      * The data notification from the Bluetooth device containing the raw bytes of the characteristic
-     * vlaue.
+     * vlaue.  The rawdata buffer is reused by the BluetoothInteractor once this method returns, the Obvious
+     * connector is given a copy since it may keep the array.
      * @param datatype The characteristic that has been notified/indicated/read.
      * @param rawdata Thee raw bytes of the value of the characteristic
      */
@@ -263,7 +394,16 @@ class BluetoothObviousDevice implements
             Log.d(this.getClass().getSimpleName(), "Data notification datatype = " + datatype);
         }
         if (obviousConnector != null) {
-            obviousConnector.onUpdateDeviceData(datatype, rawdata);
+            obviousConnector.onUpdateDeviceData(datatype, _copy(rawdata));
         }
     }
+
+    /**
+     * Copy a pooled buffer before it is handed to code outside the App.
+     * @param rawdata The pooled buffer.
+     * @return A copy of the data, null if rawdata is null.
+     */
+    private static byte[] _copy(byte[] rawdata) {
+        return (rawdata != null ? rawdata.clone() : null);
+    }
 }
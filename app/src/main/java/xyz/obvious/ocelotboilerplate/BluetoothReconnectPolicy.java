@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.Random;
+
+/**
+ * This class decides whether a connection that failed during its setup is tried again and after how long.  The
+ * Android stack often fails a connection with a generic error that goes away on the next attempt, as long as the
+ * GATT object is closed and a new one is created.  Each connection request gets its own policy and a small retry
+ * budget, the delays grow exponentially with a random jitter so that several devices do not retry in lockstep.
+ */
+class BluetoothReconnectPolicy {
+    /**
+     * The most times a connection request is tried again before the failure is passed on to the App
+     */
+    static final int MAX_RETRIES = 3;
+    /**
+     * The first retry delay for errors of the local stack, e.g. status 133
+     */
+    static final long STACK_ERROR_DELAY = 100;
+    /**
+     * The first retry delay when the link could not be established or was lost, the device may be moving back in range
+     */
+    static final long LINK_LOSS_DELAY = 500;
+    /**
+     * The longest retry delay
+     */
+    static final long MAX_DELAY = 4000;
+
+    private static final Random _random = new Random();
+
+    private int _retries = 0;
+
+    /**
+     * The first retry delay for a failure status.
+     * @param status The status of the failed connection, or of the connection that dropped during its setup.
+     * @return The delay in milliseconds, or -1 if the failure is not worth trying again.
+     */
+    static long getBaseDelay(int status) {
+        switch (status) {
+            case BluetoothServiceConstants.UNKNOWN_BLE_ERROR_STATUS:
+            case BluetoothGatt.GATT_FAILURE:
+            case BluetoothGatt.GATT_SUCCESS:
+                return STACK_ERROR_DELAY;
+            case BluetoothServiceConstants.UNKNOWN_BLE_TIMEOUT_STATUS:
+            case BluetoothServiceConstants.UNKNOWN_BLE_TERMINATED_STATUS:
+            case BluetoothServiceConstants.UNKNOWN_BLE_ESTABLISH_FAILED_STATUS:
+                return LINK_LOSS_DELAY;
+            default:
+                // e.g. the device ended the connection on purpose
+                return -1;
+        }
+    }
+
+    /**
+     * Use up one retry for a failure.
+     * @param status The status of the failure.
+     * @return The time to wait before the next attempt in milliseconds, or -1 if the connection should not be tried again.
+     */
+    synchronized long nextRetryDelay(int status) {
+        long base = getBaseDelay(status);
+        if (base < 0 || _retries >= MAX_RETRIES) {
+            return -1;
+        }
+        long delay = Math.min(MAX_DELAY, base << _retries);
+        _retries++;
+        // Half of the delay is fixed, the other half is random
+        return delay / 2 + (long) (_random.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * The number of retries used so far.
+     * @return The number of retries.
+     */
+    synchronized int getRetries() {
+        return _retries;
+    }
+}
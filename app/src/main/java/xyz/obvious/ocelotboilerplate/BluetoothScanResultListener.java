@@ -24,21 +24,31 @@
 package xyz.obvious.ocelotboilerplate;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * This interface is implemented by the object interested in getting the scan results from the
- * Bluetooth low energy scanner
+ * Bluetooth low energy scanner.  Only the changes since the previous callback are passed on so that
+ * the work done by the listener grows with the number of new devices and not the size of the list.
  */
 interface BluetoothScanResultListener {
     /**
-     * Class representing the data associated with a scanned device.
+     * Class representing the data associated with a scanned device.  The records are immutable, a
+     * changed device is reported with a new record.
      */
     class DeviceRecord {
-        private String name;
-        private String mac;
-        DeviceRecord(String name, String mac) {
+        private final String name;
+        private final String mac;
+        private final int rssi;
+        private final long lastSeen;
+        private final BluetoothAdvertisement advertisement;
+        DeviceRecord(String name, String mac, int rssi, long lastSeen, BluetoothAdvertisement advertisement) {
             this.name = name;
             this.mac = mac;
+            this.rssi = rssi;
+            this.lastSeen = lastSeen;
+            this.advertisement = advertisement;
         }
 
         /**
@@ -55,11 +65,116 @@ interface BluetoothScanResultListener {
         String getAddress() {
             return mac;
         }
+        /**
+         * Get the signal strength of the device, smoothed over the advertisements received.
+         * @return The RSSI in dBm.
+         */
+        int getRssi() {
+            return rssi;
+        }
+        /**
+         * Get the time the device was last heard when this record was created.
+         * @return The SystemClock.elapsedRealtime() of the advertisement.
+         */
+        long getLastSeen() {
+            return lastSeen;
+        }
+        /**
+         * Get the advertised TX power level.
+         * @return The TX power in dBm or BluetoothAdvertisement.TX_POWER_UNKNOWN.
+         */
+        int getTxPower() {
+            return advertisement.getTxPower();
+        }
+        /**
+         * Get the advertised service UUIDs.
+         * @return The UUID strings, this list cannot be modified.
+         */
+        List<String> getServiceUuids() {
+            return advertisement.getServiceUuids();
+        }
+        /**
+         * Get the company identifier of the advertised manufacturer data.
+         * @return The Bluetooth SIG company identifier or BluetoothAdvertisement.MANUFACTURER_UNKNOWN.
+         */
+        int getManufacturerId() {
+            return advertisement.getManufacturerId();
+        }
+        /**
+         * Get the advertised manufacturer data that follows the company identifier.
+         * @return A copy of the data, null if none was advertised.
+         */
+        byte[] getManufacturerData() {
+            return advertisement.getManufacturerData();
+        }
+        /**
+         * Get the parsed advertisement the record was built from.
+         * @return The advertisement.
+         */
+        BluetoothAdvertisement getAdvertisement() {
+            return advertisement;
+        }
+    }
+
+    /**
+     * Interface to implement to end a scan as soon as the device being looked for is found.
+     */
+    interface TargetMatcher {
+        /**
+         * Check whether a scanned device is the one being looked for.
+         * @param record The latest record of the device.
+         * @return true to stop the scan.
+         */
+        boolean isTarget(DeviceRecord record);
+    }
+
+    /**
+     * Class representing the devices that were added, updated or removed since the previous callback.
+     * The lists cannot be modified and are not changed by the scanner after the callback.
+     */
+    class ScanResultDelta {
+        private final List<DeviceRecord> added;
+        private final List<DeviceRecord> updated;
+        private final List<DeviceRecord> removed;
+        ScanResultDelta(ArrayList<DeviceRecord> added, ArrayList<DeviceRecord> updated, ArrayList<DeviceRecord> removed) {
+            this.added = Collections.unmodifiableList(added);
+            this.updated = Collections.unmodifiableList(updated);
+            this.removed = Collections.unmodifiableList(removed);
+        }
+
+        /**
+         * Get the devices found for the first time.
+         * @return The new device records, in the order they were found.
+         */
+        List<DeviceRecord> getAdded() {
+            return added;
+        }
+        /**
+         * Get the devices whose data has changed.
+         * @return The new records of the changed devices.
+         */
+        List<DeviceRecord> getUpdated() {
+            return updated;
+        }
+        /**
+         * Get the devices that are no longer part of the results, e.g. because they have not advertised for a while.
+         * @return The last records of the removed devices.
+         */
+        List<DeviceRecord> getRemoved() {
+            return removed;
+        }
+        /**
+         * Whether the delta has no changes.
+         * @return true if no device was added, updated or removed.
+         */
+        boolean isEmpty() {
+            return added.isEmpty() && updated.isEmpty() && removed.isEmpty();
+        }
     }
 
     /**
-     * Callback notification with the list of devices found during the scan process
-     * @param results The array of devices found.
+     * Callback notification with the changes to the list of devices found during the scan process
+     * @param delta The devices added, updated and removed since the previous notification.
      */
-    void onScanResults(ArrayList<DeviceRecord> results);
+    void onScanResults(ScanResultDelta delta);
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import android.bluetooth.le.ScanSettings;
+
+/**
+ * This class decides the scan mode used over the length of a scan and when the OS scanner may be started.  A scan
+ * starts with a short low latency burst, where most nearby devices are found, and then steps down to the balanced
+ * and low power duty cycles for the rest of the scan period.  Android blocks an App that starts more than five scans
+ * in thirty seconds, the start times are tracked so that the scan is never started more often than that.
+ */
+class BluetoothScanScheduler {
+    /**
+     * The most scans Android lets an App start in SCAN_START_WINDOW
+     */
+    static final int MAX_SCAN_STARTS = 5;
+    static final long SCAN_START_WINDOW = 30000;
+
+    /**
+     * The scan mode of each phase of an adaptive scan
+     */
+    private static final int[] PHASE_MODES = {ScanSettings.SCAN_MODE_LOW_LATENCY, ScanSettings.SCAN_MODE_BALANCED, ScanSettings.SCAN_MODE_LOW_POWER};
+    /**
+     * The length of each phase of an adaptive scan, the last phase runs until the scan is stopped
+     */
+    private static final long[] PHASE_DURATIONS = {5000, 10000};
+
+    private final long[] _startTimes = new long[MAX_SCAN_STARTS];
+    private int _startCount = 0;
+    private int _nextStart = 0;
+    private int _phase = 0;
+
+    /**
+     * Go back to the first phase, called when a new scan operation begins.
+     */
+    void reset() {
+        _phase = 0;
+    }
+
+    /**
+     * The scan mode of the current phase.
+     * @return One of the ScanSettings.SCAN_MODE_* constants.
+     */
+    int getScanMode() {
+        return PHASE_MODES[_phase];
+    }
+
+    /**
+     * The length of the current phase.
+     * @return The time in milliseconds before the next phase, or 0 if this is the last phase.
+     */
+    long getPhaseDuration() {
+        return (_phase < PHASE_DURATIONS.length ? PHASE_DURATIONS[_phase] : 0);
+    }
+
+    /**
+     * Move to the next phase.
+     */
+    void advance() {
+        if (_phase < PHASE_MODES.length - 1) {
+            _phase++;
+        }
+    }
+
+    /**
+     * The time to wait before the OS scanner can be started without going over the Android limit.
+     * @param now The current SystemClock.elapsedRealtime().
+     * @return The delay in milliseconds, 0 if the scan can be started now.
+     */
+    long getStartDelay(long now) {
+        if (_startCount < MAX_SCAN_STARTS) {
+            return 0;
+        }
+        // _nextStart is the oldest of the recorded starts once the array is full
+        return Math.max(0, _startTimes[_nextStart] + SCAN_START_WINDOW - now);
+    }
+
+    /**
+     * Record that the OS scanner was started.
+     * @param now The current SystemClock.elapsedRealtime().
+     */
+    void onScanStarted(long now) {
+        _startTimes[_nextStart] = now;
+        _nextStart = (_nextStart + 1) % MAX_SCAN_STARTS;
+        if (_startCount < MAX_SCAN_STARTS) {
+            _startCount++;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+/**
+ * One consumer of the shared Bluetooth scan.  The BluetoothInteractor runs a single OS scan whose filters are the
+ * union of the filters of all the subscriptions, each subscription checks the results against its own filters and
+ * collects the changes that are passed on to its listener.
+ */
+class BluetoothScanSubscription {
+    /**
+     * The App listener the results are passed on to
+     */
+    final BluetoothScanResultListener listener;
+    /**
+     * Ends the subscription as soon as the device being looked for is found, may be null
+     */
+    final BluetoothScanResultListener.TargetMatcher matcher;
+    /**
+     * Ends the subscription at the end of its scan period
+     */
+    Runnable stopRunnable = null;
+
+    /**
+     * The lower case service UUIDs a device must advertise one of, empty to accept all devices
+     */
+    private final ArrayList<String> _services = new ArrayList<>();
+    private final ArrayList<ParcelUuid> _serviceFilter = new ArrayList<>();
+    private final int _manufacturerId;
+    private final byte[] _manufacturerData;
+    private final byte[] _manufacturerMask;
+
+    /**
+     * The devices that were passed on to the listener, used to tell additions from updates
+     */
+    private final HashSet<String> _reported = new HashSet<>();
+    /**
+     * The changes that have not been passed on to the listener yet
+     */
+    private final LinkedHashMap<String,BluetoothScanResultListener.DeviceRecord> _added = new LinkedHashMap<>();
+    private final LinkedHashMap<String,BluetoothScanResultListener.DeviceRecord> _updated = new LinkedHashMap<>();
+    private final LinkedHashMap<String,BluetoothScanResultListener.DeviceRecord> _removed = new LinkedHashMap<>();
+
+    /**
+     * Create a subscription.
+     * @param listener The App listener the results are passed on to.
+     * @param matcher Ends the subscription when it accepts a device, or null.
+     * @param services The services a device must advertise one of, null or empty to accept all devices.
+     * @param manufacturerId The company identifier a device must advertise, or BluetoothAdvertisement.MANUFACTURER_UNKNOWN.
+     * @param manufacturerData The bytes that must follow the company identifier, may be null.
+     * @param manufacturerMask The bits of manufacturerData that must match, or null to match all of them.
+     */
+    BluetoothScanSubscription(BluetoothScanResultListener listener, BluetoothScanResultListener.TargetMatcher matcher, ArrayList<ParcelUuid> services,
+                              int manufacturerId, byte[] manufacturerData, byte[] manufacturerMask) {
+        this.listener = listener;
+        this.matcher = matcher;
+        if (services != null) {
+            for (ParcelUuid service : services) {
+                _serviceFilter.add(service);
+                _services.add(service.getUuid().toString().toLowerCase(Locale.US));
+            }
+        }
+        _manufacturerId = manufacturerId;
+        _manufacturerData = (manufacturerData != null ? manufacturerData : new byte[0]);
+        _manufacturerMask = manufacturerMask;
+    }
+
+    /**
+     * The services of the filter.
+     * @return The service UUIDs, empty when the subscription accepts all services.
+     */
+    ArrayList<ParcelUuid> getServiceFilter() {
+        return _serviceFilter;
+    }
+
+    /**
+     * Whether the subscription filters on manufacturer data.
+     * @return true if getManufacturerId() is set.
+     */
+    boolean hasManufacturerFilter() {
+        return _manufacturerId != BluetoothAdvertisement.MANUFACTURER_UNKNOWN;
+    }
+
+    /**
+     * The company identifier of the manufacturer filter.
+     * @return The identifier, or BluetoothAdvertisement.MANUFACTURER_UNKNOWN.
+     */
+    int getManufacturerId() {
+        return _manufacturerId;
+    }
+
+    /**
+     * The bytes that must follow the company identifier.
+     * @return The data, empty to match on the identifier only.
+     */
+    byte[] getManufacturerData() {
+        return _manufacturerData;
+    }
+
+    /**
+     * The bits of the manufacturer data that must match.
+     * @return The mask, or null to match all of them.
+     */
+    byte[] getManufacturerMask() {
+        return _manufacturerMask;
+    }
+
+    /**
+     * Whether the subscription accepts every device.
+     * @return true if there is no service and no manufacturer filter.
+     */
+    boolean isUnfiltered() {
+        return _services.isEmpty() && !hasManufacturerFilter();
+    }
+
+    /**
+     * Whether every device accepted by another subscription is also reported by an OS scan using the filters
+     * of this one, in which case the other subscription can join the scan without restarting it.
+     * @param other The subscription that wants to join the scan.
+     * @return true if the filters of this subscription cover the other one.
+     */
+    boolean covers(BluetoothScanSubscription other) {
+        if (isUnfiltered()) {
+            return true;
+        }
+        if (hasManufacturerFilter() && (_manufacturerId != other._manufacturerId
+                || !Arrays.equals(_manufacturerData, other._manufacturerData)
+                || !Arrays.equals(_manufacturerMask, other._manufacturerMask))) {
+            return false;
+        }
+        if (_services.isEmpty()) {
+            return true;
+        }
+        return !other._services.isEmpty() && _services.containsAll(other._services);
+    }
+
+    /**
+     * Check an advertisement against the filters of the subscription.
+     * @param advertisement The parsed advertisement.
+     * @return true if the device is accepted.
+     */
+    boolean matches(BluetoothAdvertisement advertisement) {
+        if (!_services.isEmpty()) {
+            boolean found = false;
+            for (String service : advertisement.getServiceUuids()) {
+                if (_services.contains(service.toLowerCase(Locale.US))) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return _matchesManufacturer(advertisement);
+    }
+
+    /**
+     * Check an advertisement against the manufacturer filter.
+     * @param advertisement The parsed advertisement.
+     * @return true if there is no manufacturer filter or the advertisement matches it.
+     */
+    private boolean _matchesManufacturer(BluetoothAdvertisement advertisement) {
+        if (!hasManufacturerFilter()) {
+            return true;
+        }
+        if (advertisement.getManufacturerId() != _manufacturerId) {
+            return false;
+        }
+        byte[] data = advertisement.getManufacturerData();
+        int length = _manufacturerData.length;
+        if (data == null || data.length < length) {
+            return length == 0;
+        }
+        for (int i = 0; i < length; i++) {
+            int mask = (_manufacturerMask != null && i < _manufacturerMask.length ? _manufacturerMask[i] : 0xFF);
+            if (((data[i] ^ _manufacturerData[i]) & mask) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record a new or changed device for the listener.
+     * @param record The latest record of the device.
+     */
+    void onRecord(BluetoothScanResultListener.DeviceRecord record) {
+        String deviceId = record.getAddress();
+        _removed.remove(deviceId);
+        if (_reported.add(deviceId) || _added.containsKey(deviceId)) {
+            _added.put(deviceId, record);
+        } else {
+            _updated.put(deviceId, record);
+        }
+    }
+
+    /**
+     * Record a device that is no longer listed.
+     * @param record The last record of the device.
+     */
+    void onRemoved(BluetoothScanResultListener.DeviceRecord record) {
+        String deviceId = record.getAddress();
+        if (!_reported.remove(deviceId)) {
+            return;
+        }
+        _updated.remove(deviceId);
+        if (_added.remove(deviceId) == null) {
+            _removed.put(deviceId, record);
+        }
+    }
+
+    /**
+     * Pass the collected changes on to the listener.
+     * @param force true to notify the listener even if nothing has changed, used to signal the end of a scan.
+     */
+    void deliver(boolean force) {
+        if (listener == null) { return; }
+        if (!force && _added.isEmpty() && _updated.isEmpty() && _removed.isEmpty()) { return; }
+        BluetoothScanResultListener.ScanResultDelta delta = new BluetoothScanResultListener.ScanResultDelta(
+                new ArrayList<>(_added.values()), new ArrayList<>(_updated.values()), new ArrayList<>(_removed.values()));
+        _added.clear();
+        _updated.clear();
+        _removed.clear();
+        listener.onScanResults(delta);
+    }
+}
@@ -0,0 +1,610 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * This class holds the devices found during a scan in primitive arrays so that long survey scans with thousands
+ * of advertisers do not create several objects per device.  The MAC of a device is packed in a long and looked up
+ * in an open addressing table that points to the index of the device in the arrays.  The name is resolved once
+ * when the advertisement arrives and kept, the parsed advertisement is rebuilt from the raw scan record when a
+ * DeviceRecord is needed.
+ *
+ * The devices are also kept ranked by signal strength in an indexed binary heap, so adding, removing or updating
+ * the RSSI of a device costs O(log n) however far its signal moves, and a top-K query walks only the top of the
+ * heap in O(K log K).
+ *
+ * Each device costs 42 bytes in the arrays, 8 bytes in the lookup table, its name and its raw scan record (at most
+ * 62 bytes plus the array header).  10 000 devices with 12 character names and full scan records take about 2.2 MB
+ * once the arrays have grown to 16 384 entries, getMemoryFootprint() reports the estimate for the current content.
+ */
+class BluetoothScanTable {
+    /**
+     * Returned by packAddress() for a string that is not a MAC
+     */
+    static final long INVALID_ADDRESS = -1;
+
+    /**
+     * The weight of a new RSSI reading in the moving average
+     */
+    private static final float RSSI_SMOOTHING = 0.25f;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] _addresses = new long[INITIAL_CAPACITY];
+    private float[] _rssi = new float[INITIAL_CAPACITY];
+    private int[] _reportedRssi = new int[INITIAL_CAPACITY];
+    private long[] _lastSeen = new long[INITIAL_CAPACITY];
+    private String[] _names = new String[INITIAL_CAPACITY];
+    private boolean[] _advertisedNames = new boolean[INITIAL_CAPACITY];
+    private boolean[] _excluded = new boolean[INITIAL_CAPACITY];
+    private byte[][] _scanRecords = new byte[INITIAL_CAPACITY][];
+    private int _size = 0;
+    /**
+     * The heap of device indexes, strongest signal at the root, and the position of each device index in the heap
+     */
+    private int[] _ranking = new int[INITIAL_CAPACITY];
+    private int[] _rankOf = new int[INITIAL_CAPACITY];
+    /**
+     * The number of comparisons made to keep the ranking, read by the unit tests to check its cost
+     */
+    private long _rankingSteps = 0;
+
+    /**
+     * The lookup table, each slot holds the index of a device plus one, 0 for an empty slot.  The table is kept at
+     * most half full and collisions are resolved by linear probing.
+     */
+    private int[] _slots = new int[INITIAL_CAPACITY * 2];
+
+    /**
+     * Pack a MAC of the form "AA:BB:CC:DD:EE:FF" in the low 48 bits of a long.
+     * @param mac The MAC.
+     * @return The packed MAC, or INVALID_ADDRESS.
+     */
+    static long packAddress(String mac) {
+        if (mac == null || mac.length() != 17) {
+            return INVALID_ADDRESS;
+        }
+        long address = 0;
+        for (int i = 0; i < 17; i += 3) {
+            int high = Character.digit(mac.charAt(i), 16);
+            int low = Character.digit(mac.charAt(i + 1), 16);
+            if (high < 0 || low < 0 || (i < 15 && mac.charAt(i + 2) != ':')) {
+                return INVALID_ADDRESS;
+            }
+            address = (address << 8) | (high << 4) | low;
+        }
+        return address;
+    }
+
+    /**
+     * Format a packed MAC the way Android reports it.
+     * @param address The packed MAC.
+     * @return The MAC in upper case with colon separators.
+     */
+    static String formatAddress(long address) {
+        return String.format(Locale.US, "%02X:%02X:%02X:%02X:%02X:%02X",
+                (address >> 40) & 0xFF, (address >> 32) & 0xFF, (address >> 24) & 0xFF,
+                (address >> 16) & 0xFF, (address >> 8) & 0xFF, address & 0xFF);
+    }
+
+    /**
+     * Spread the bits of a packed MAC over the lookup table.
+     * @param address The packed MAC.
+     * @return The first slot to probe.
+     */
+    private int _slotOf(long address) {
+        long hash = address * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & (_slots.length - 1);
+    }
+
+    /**
+     * Find a device.
+     * @param address The packed MAC of the device.
+     * @return The index of the device, or -1 if it is not in the table.
+     */
+    int indexOf(long address) {
+        int mask = _slots.length - 1;
+        for (int slot = _slotOf(address); _slots[slot] != 0; slot = (slot + 1) & mask) {
+            int index = _slots[slot] - 1;
+            if (_addresses[index] == address) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add a device that is not in the table yet.
+     * @param address The packed MAC of the device.
+     * @return The index of the device.
+     */
+    int add(long address) {
+        if (_size == _addresses.length) {
+            _grow();
+        }
+        int index = _size++;
+        _addresses[index] = address;
+        _rssi[index] = Float.NaN;
+        _reportedRssi[index] = 0;
+        _lastSeen[index] = 0;
+        _names[index] = null;
+        _advertisedNames[index] = false;
+        _excluded[index] = false;
+        _scanRecords[index] = null;
+        _insertSlot(address, index);
+        _ranking[index] = index;
+        _rankOf[index] = index;
+        _siftUp(index);
+        return index;
+    }
+
+    /**
+     * Remove a device.  The last device of the table takes the index of the removed one.
+     * @param index The index of the device.
+     */
+    void remove(int index) {
+        _removeSlot(_addresses[index]);
+        int last = --_size;
+        _removeRank(index);
+        if (index != last) {
+            _addresses[index] = _addresses[last];
+            _rssi[index] = _rssi[last];
+            _reportedRssi[index] = _reportedRssi[last];
+            _lastSeen[index] = _lastSeen[last];
+            _names[index] = _names[last];
+            _advertisedNames[index] = _advertisedNames[last];
+            _excluded[index] = _excluded[last];
+            _scanRecords[index] = _scanRecords[last];
+            _slots[_findSlot(_addresses[index])] = index + 1;
+            _rankOf[index] = _rankOf[last];
+            _ranking[_rankOf[index]] = index;
+        }
+        _names[last] = null;
+        _scanRecords[last] = null;
+    }
+
+    /**
+     * Remove all the devices.
+     */
+    void clear() {
+        Arrays.fill(_scanRecords, 0, _size, null);
+        Arrays.fill(_names, 0, _size, null);
+        Arrays.fill(_slots, 0);
+        _size = 0;
+    }
+
+    /**
+     * The number of devices in the table.
+     * @return The number of devices.
+     */
+    int size() {
+        return _size;
+    }
+
+    /**
+     * The packed MAC of a device.
+     * @param index The index of the device.
+     * @return The packed MAC.
+     */
+    long getAddress(int index) {
+        return _addresses[index];
+    }
+
+    /**
+     * Add a new RSSI reading to the moving average of a device.
+     * @param index The index of the device.
+     * @param rssi The RSSI of the advertisement in dBm.
+     * @return The smoothed RSSI of the device.
+     */
+    float updateRssi(int index, int rssi) {
+        float current = _rssi[index];
+        _rssi[index] = (Float.isNaN(current) ? rssi : current + (rssi - current) * RSSI_SMOOTHING);
+        _reposition(index);
+        return _rssi[index];
+    }
+
+    /**
+     * The smoothed RSSI of a device.
+     * @param index The index of the device.
+     * @return The RSSI in dBm, NaN if no advertisement was received.
+     */
+    float getRssi(int index) {
+        return _rssi[index];
+    }
+
+    /**
+     * The RSSI last passed on to the App listeners.
+     * @param index The index of the device.
+     * @return The RSSI in dBm.
+     */
+    int getReportedRssi(int index) {
+        return _reportedRssi[index];
+    }
+
+    /**
+     * Record the RSSI passed on to the App listeners.
+     * @param index The index of the device.
+     * @param rssi The RSSI in dBm.
+     */
+    void setReportedRssi(int index, int rssi) {
+        _reportedRssi[index] = rssi;
+    }
+
+    /**
+     * The time the last advertisement of a device was received.
+     * @param index The index of the device.
+     * @return The SystemClock.elapsedRealtime() of the advertisement.
+     */
+    long getLastSeen(int index) {
+        return _lastSeen[index];
+    }
+
+    /**
+     * Record the time an advertisement of a device was received.
+     * @param index The index of the device.
+     * @param lastSeen The SystemClock.elapsedRealtime() of the advertisement.
+     */
+    void setLastSeen(int index, long lastSeen) {
+        _lastSeen[index] = lastSeen;
+    }
+
+    /**
+     * The name of a device, resolved when its advertisements were received.
+     * @param index The index of the device.
+     * @return The name, an empty string if neither the device nor the OS know one, null if it was not resolved yet.
+     */
+    String getName(int index) {
+        return _names[index];
+    }
+
+    /**
+     * Whether the name of a device was taken from its advertisement rather than from the OS.
+     * @param index The index of the device.
+     * @return true if the device advertised its name.
+     */
+    boolean isNameAdvertised(int index) {
+        return _advertisedNames[index];
+    }
+
+    /**
+     * Keep the name of a device.
+     * @param index The index of the device.
+     * @param name The name.
+     * @param advertised true if the name was found in the advertisement of the device.
+     */
+    void setName(int index, String name, boolean advertised) {
+        _names[index] = name;
+        _advertisedNames[index] = advertised;
+    }
+
+    /**
+     * The raw advertisement and scan response bytes of a device.
+     * @param index The index of the device.
+     * @return The bytes, or null.
+     */
+    byte[] getScanRecord(int index) {
+        return _scanRecords[index];
+    }
+
+    /**
+     * Keep the raw scan record of a device.
+     * @param index The index of the device.
+     * @param scanRecord The raw advertisement and scan response bytes.
+     */
+    void setScanRecord(int index, byte[] scanRecord) {
+        _scanRecords[index] = scanRecord;
+    }
+
+    /**
+     * Whether a device is left out of the scan results, e.g. because it was already connected when the scan started.
+     * @param index The index of the device.
+     * @return true if the device is not reported.
+     */
+    boolean isExcluded(int index) {
+        return _excluded[index];
+    }
+
+    /**
+     * Leave a device out of the scan results or add it back.
+     * @param index The index of the device.
+     * @param excluded true if the device should not be reported.
+     */
+    void setExcluded(int index, boolean excluded) {
+        _excluded[index] = excluded;
+    }
+
+    /**
+     * Find the device that has gone the longest without an advertisement, used to make room when the table is full.
+     * @return The index of the device, or -1 if there are only excluded devices.
+     */
+    int oldest() {
+        int result = -1;
+        for (int index = 0; index < _size; index++) {
+            if (!_excluded[index] && (result < 0 || _lastSeen[index] < _lastSeen[result])) {
+                result = index;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the devices with the strongest signal.  The heap is walked best first from its root, only the entries taken
+     * and their children are visited, the excluded devices are skipped.
+     * @param maxCount The most devices to return.
+     * @return The indexes of the devices, strongest first.
+     */
+    int[] top(int maxCount) {
+        int[] result = new int[Math.max(0, Math.min(maxCount, _size))];
+        int count = 0;
+        // The heap positions whose parent has been taken, kept in a small heap of their own
+        int[] candidates = new int[2 * result.length + 1];
+        int candidateCount = 0;
+        if (result.length > 0) {
+            candidateCount = _pushCandidate(candidates, candidateCount, 0);
+        }
+        while (count < result.length && candidateCount > 0) {
+            int rank = candidates[0];
+            candidateCount = _popCandidate(candidates, candidateCount);
+            int index = _ranking[rank];
+            if (Float.isNaN(_rssi[index])) { break; }
+            if (!_excluded[index]) {
+                result[count++] = index;
+            }
+            if (candidateCount + 2 > candidates.length) {
+                candidates = Arrays.copyOf(candidates, candidates.length * 2);
+            }
+            for (int child = 2 * rank + 1; child <= 2 * rank + 2 && child < _size; child++) {
+                candidateCount = _pushCandidate(candidates, candidateCount, child);
+            }
+        }
+        return (count == result.length ? result : Arrays.copyOf(result, count));
+    }
+
+    /**
+     * The number of comparisons made so far to keep the ranking up to date.
+     * @return The number of comparisons.
+     */
+    long getRankingSteps() {
+        return _rankingSteps;
+    }
+
+    /**
+     * An estimate of the memory used by the table.
+     * @return The size in bytes of the arrays and the scan records.
+     */
+    long getMemoryFootprint() {
+        long bytes = (long) _addresses.length * (8 + 4 + 4 + 8 + 4 + 1 + 1 + 4 + 4 + 4) + (long) _slots.length * 4;
+        for (int index = 0; index < _size; index++) {
+            if (_scanRecords[index] != null) {
+                bytes += 16 + _scanRecords[index].length;
+            }
+            if (_names[index] != null) {
+                bytes += 40 + 2 * _names[index].length();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Order of the ranking, by RSSI then by MAC so that equal signals always rank the same way.  Devices without
+     * an RSSI reading rank last.
+     * @param lhs The index of a device.
+     * @param rhs The index of another device.
+     * @return true if lhs ranks before rhs.
+     */
+    private boolean _stronger(int lhs, int rhs) {
+        boolean lhsUnknown = Float.isNaN(_rssi[lhs]);
+        boolean rhsUnknown = Float.isNaN(_rssi[rhs]);
+        if (lhsUnknown != rhsUnknown) {
+            return rhsUnknown;
+        }
+        int result = (lhsUnknown ? 0 : Float.compare(_rssi[lhs], _rssi[rhs]));
+        return (result != 0 ? result > 0 : _addresses[lhs] < _addresses[rhs]);
+    }
+
+    /**
+     * Move a device to its place in the ranking after its RSSI changed.
+     * @param index The index of the device.
+     */
+    private void _reposition(int index) {
+        int rank = _rankOf[index];
+        if (_siftUp(rank) == rank) {
+            _siftDown(rank);
+        }
+    }
+
+    /**
+     * Take a device out of the ranking, the last entry of the heap takes its place.  Must be called once _size no
+     * longer counts the device, while its data is still at its index.
+     * @param index The index of the device.
+     */
+    private void _removeRank(int index) {
+        int rank = _rankOf[index];
+        if (rank != _size) {
+            _place(rank, _ranking[_size]);
+            _reposition(_ranking[rank]);
+        }
+    }
+
+    /**
+     * Move the heap entry at a position up while it ranks before its parent.
+     * @param rank The position in the heap.
+     * @return The position the entry ended at.
+     */
+    private int _siftUp(int rank) {
+        int index = _ranking[rank];
+        while (rank > 0) {
+            int parent = (rank - 1) / 2;
+            _rankingSteps++;
+            if (!_stronger(index, _ranking[parent])) { break; }
+            _place(rank, _ranking[parent]);
+            rank = parent;
+        }
+        _place(rank, index);
+        return rank;
+    }
+
+    /**
+     * Move the heap entry at a position down while one of its children ranks before it.
+     * @param rank The position in the heap.
+     */
+    private void _siftDown(int rank) {
+        int index = _ranking[rank];
+        while (2 * rank + 1 < _size) {
+            int child = 2 * rank + 1;
+            if (child + 1 < _size) {
+                _rankingSteps++;
+                if (_stronger(_ranking[child + 1], _ranking[child])) {
+                    child++;
+                }
+            }
+            _rankingSteps++;
+            if (!_stronger(_ranking[child], index)) { break; }
+            _place(rank, _ranking[child]);
+            rank = child;
+        }
+        _place(rank, index);
+    }
+
+    /**
+     * Put a device at a position of the heap.
+     * @param rank The position in the heap.
+     * @param index The index of the device.
+     */
+    private void _place(int rank, int index) {
+        _ranking[rank] = index;
+        _rankOf[index] = rank;
+    }
+
+    /**
+     * Add a heap position to the candidates of a top() walk.  The array must have room for it.
+     * @param candidates The heap of candidate positions, the strongest device first.
+     * @param count The number of candidates.
+     * @param rank The heap position to add.
+     * @return The new number of candidates.
+     */
+    private int _pushCandidate(int[] candidates, int count, int rank) {
+        int slot = count;
+        while (slot > 0 && _stronger(_ranking[rank], _ranking[candidates[(slot - 1) / 2]])) {
+            candidates[slot] = candidates[(slot - 1) / 2];
+            slot = (slot - 1) / 2;
+        }
+        candidates[slot] = rank;
+        return count + 1;
+    }
+
+    /**
+     * Remove the strongest candidate of a top() walk, the caller reads it from candidates[0] first.
+     * @param candidates The heap of candidate positions, the strongest device first.
+     * @param count The number of candidates.
+     * @return The new number of candidates.
+     */
+    private int _popCandidate(int[] candidates, int count) {
+        int last = candidates[--count];
+        int slot = 0;
+        while (2 * slot + 1 < count) {
+            int child = 2 * slot + 1;
+            if (child + 1 < count && _stronger(_ranking[candidates[child + 1]], _ranking[candidates[child]])) {
+                child++;
+            }
+            if (!_stronger(_ranking[candidates[child]], _ranking[last])) { break; }
+            candidates[slot] = candidates[child];
+            slot = child;
+        }
+        candidates[slot] = last;
+        return count;
+    }
+
+    /**
+     * Double the size of the arrays and rebuild the lookup table.
+     */
+    private void _grow() {
+        int capacity = _addresses.length * 2;
+        _addresses = Arrays.copyOf(_addresses, capacity);
+        _rssi = Arrays.copyOf(_rssi, capacity);
+        _reportedRssi = Arrays.copyOf(_reportedRssi, capacity);
+        _lastSeen = Arrays.copyOf(_lastSeen, capacity);
+        _names = Arrays.copyOf(_names, capacity);
+        _advertisedNames = Arrays.copyOf(_advertisedNames, capacity);
+        _ranking = Arrays.copyOf(_ranking, capacity);
+        _rankOf = Arrays.copyOf(_rankOf, capacity);
+        _excluded = Arrays.copyOf(_excluded, capacity);
+        _scanRecords = Arrays.copyOf(_scanRecords, capacity);
+        _slots = new int[capacity * 2];
+        for (int index = 0; index < _size; index++) {
+            _insertSlot(_addresses[index], index);
+        }
+    }
+
+    /**
+     * Point the first free slot of the probe run of a device to its index.
+     * @param address The packed MAC of the device.
+     * @param index The index of the device.
+     */
+    private void _insertSlot(long address, int index) {
+        int mask = _slots.length - 1;
+        int slot = _slotOf(address);
+        while (_slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        _slots[slot] = index + 1;
+    }
+
+    /**
+     * Find the slot of a device that is in the table.
+     * @param address The packed MAC of the device.
+     * @return The slot.
+     */
+    private int _findSlot(long address) {
+        int mask = _slots.length - 1;
+        int slot = _slotOf(address);
+        while (_addresses[_slots[slot] - 1] != address) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Empty the slot of a device and move the following entries of its probe run back so that no lookup stops
+     * early at the hole.
+     * @param address The packed MAC of the device.
+     */
+    private void _removeSlot(long address) {
+        int mask = _slots.length - 1;
+        int hole = _findSlot(address);
+        int slot = (hole + 1) & mask;
+        while (_slots[slot] != 0) {
+            int home = _slotOf(_addresses[_slots[slot] - 1]);
+            // The entry can fill the hole if its home slot is not between the hole and its current slot
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                _slots[hole] = _slots[slot];
+                hole = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        _slots[hole] = 0;
+    }
+}
@@ -87,6 +87,12 @@ class BluetoothServiceConstants {
      * Bluetooth GATT generic attribute service changed characteristic
      */
     public static final String BLE_CHARACTERISTIC_GATT_ATTR_SERVICE_CHANGED = "00002a05-0000-1000-8000-00805f9b34fb";
+    /**
+     * Characteristic holding the PSM of the L2CAP channel a device listens on, as a little endian 16 bit value.
+     * This is defined by the App, a device that publishes it receives its bulk writes on the channel framed as
+     * described in BluetoothL2capChannel.
+     */
+    public static final String BLE_CHARACTERISTIC_L2CAP_PSM = "abdd3056-28fa-441d-a470-55a75a52553a";
 
     /**
      * Bluetooth GATT device info manufacturer string characteristic
@@ -180,4 +186,5 @@ class BluetoothServiceConstants {
     public static final int UNKNOWN_BLE_ERROR_STATUS = 133;
     public static final int UNKNOWN_BLE_TIMEOUT_STATUS = 8;
     public static final int UNKNOWN_BLE_TERMINATED_STATUS = 22;
+    public static final int UNKNOWN_BLE_ESTABLISH_FAILED_STATUS = 62;
 }
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * This class remembers the GATT layout of each device for the firmware version it runs.  Android keeps the
+ * services of a device that is not bonded cached even when they change, so the interactor clears the OS cache
+ * after every connection to such a device, which makes the next connection run a full discovery over the air.
+ * Once a layout has been seen with a known firmware version the cache can be kept: the layout is only expected to
+ * change with the firmware or when the device sends a Service Changed indication, both of which invalidate it.
+ */
+class BluetoothServiceLayoutCache {
+    /**
+     * The most devices remembered, the device used the longest ago is forgotten first
+     */
+    static final int MAX_LAYOUTS = 32;
+
+    private static final String PREFERENCES_NAME = "xyz.obvious.ocelotboilerplate.service_layouts";
+    private static final String FIELD_SEPARATOR = "\t";
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * The layout recorded for one device
+     */
+    private static class Layout {
+        final String firmwareVersion;
+        final long hash;
+        final long lastUsed;
+
+        Layout(String firmwareVersion, long hash, long lastUsed) {
+            this.firmwareVersion = firmwareVersion;
+            this.hash = hash;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final Context _context;
+    private HashMap<String,Layout> _layouts = null;
+
+    /**
+     * Create the cache.
+     * @param context The context used to access the shared preferences.
+     */
+    BluetoothServiceLayoutCache(Context context) {
+        _context = context.getApplicationContext();
+    }
+
+    /**
+     * Compute the hash of a GATT layout from the services, characteristics, properties and descriptors in the
+     * order they were discovered.
+     * @param services The discovered services.
+     * @return The 64 bit FNV-1a hash of the layout.
+     */
+    static long computeHash(List<BluetoothGattService> services) {
+        long hash = FNV_OFFSET_BASIS;
+        for (BluetoothGattService service : services) {
+            hash = _hash(hash, service.getUuid());
+            hash = _hash(hash, service.getType());
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                hash = _hash(hash, characteristic.getUuid());
+                hash = _hash(hash, characteristic.getProperties());
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    hash = _hash(hash, descriptor.getUuid());
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Whether a discovered layout is the one validated for the device, in which case the OS cache can be kept.
+     * @param mac The MAC of the device.
+     * @param hash The hash of the discovered layout.
+     * @return true if the layout was seen before with a known firmware version.
+     */
+    synchronized boolean isValidated(String mac, long hash) {
+        Layout layout = _load().get(mac);
+        return layout != null && layout.firmwareVersion != null && layout.hash == hash;
+    }
+
+    /**
+     * Record the layout of a device for the firmware version it reported.  When the firmware has changed the new
+     * version is recorded without a layout, the caller validates the layout again once the services have been
+     * discovered with the new firmware.
+     * @param mac The MAC of the device.
+     * @param firmwareVersion The firmware version of the device.
+     * @param hash The hash of the discovered layout.
+     * @return false if a different firmware version was recorded before, i.e. the layout may have changed.
+     */
+    synchronized boolean validate(String mac, String firmwareVersion, long hash) {
+        Layout current = _load().get(mac);
+        if (current != null && current.firmwareVersion != null && !current.firmwareVersion.equals(firmwareVersion)) {
+            // A hash of 0 never matches a discovered layout, so isValidated() is false until the layout is recorded
+            _store(mac, new Layout(firmwareVersion, 0, System.currentTimeMillis()));
+            return false;
+        }
+        _store(mac, new Layout(firmwareVersion, hash, System.currentTimeMillis()));
+        return true;
+    }
+
+    /**
+     * Forget the layout of a device, e.g. after a Service Changed indication.
+     * @param mac The MAC of the device.
+     */
+    synchronized void invalidate(String mac) {
+        if (_load().remove(mac) != null) {
+            _preferences().edit().remove(mac).apply();
+        }
+    }
+
+    /**
+     * Save a layout, forgetting the oldest layout when the cache is full.
+     * @param mac The MAC of the device.
+     * @param layout The layout to save.
+     */
+    private void _store(String mac, Layout layout) {
+        HashMap<String,Layout> layouts = _load();
+        SharedPreferences.Editor editor = _preferences().edit();
+        if (!layouts.containsKey(mac) && layouts.size() >= MAX_LAYOUTS) {
+            String oldest = null;
+            for (Map.Entry<String,Layout> entry : layouts.entrySet()) {
+                if (oldest == null || entry.getValue().lastUsed < layouts.get(oldest).lastUsed) {
+                    oldest = entry.getKey();
+                }
+            }
+            layouts.remove(oldest);
+            editor.remove(oldest);
+        }
+        layouts.put(mac, layout);
+        editor.putString(mac, (layout.firmwareVersion == null ? "" : layout.firmwareVersion.replace(FIELD_SEPARATOR, " "))
+                + FIELD_SEPARATOR + layout.hash + FIELD_SEPARATOR + layout.lastUsed);
+        editor.apply();
+    }
+
+    /**
+     * Load the layouts from the shared preferences the first time they are needed.
+     * @return The layouts by MAC.
+     */
+    private HashMap<String,Layout> _load() {
+        if (_layouts != null) {
+            return _layouts;
+        }
+        _layouts = new HashMap<>();
+        for (Map.Entry<String,?> entry : _preferences().getAll().entrySet()) {
+            if (!(entry.getValue() instanceof String)) { continue; }
+            String[] fields = ((String) entry.getValue()).split(FIELD_SEPARATOR, -1);
+            if (fields.length != 3) { continue; }
+            try {
+                _layouts.put(entry.getKey(), new Layout(fields[0].length() == 0 ? null : fields[0],
+                        Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+            } catch (NumberFormatException ex) {
+                // skip entries that were not written by this version
+            }
+        }
+        return _layouts;
+    }
+
+    /**
+     * The shared preferences the layouts are kept in.
+     * @return The shared preferences.
+     */
+    private SharedPreferences _preferences() {
+        return _context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Add a UUID to a hash.
+     * @param hash The hash so far.
+     * @param uuid The UUID.
+     * @return The new hash.
+     */
+    private static long _hash(long hash, UUID uuid) {
+        hash = _hash(hash, uuid.getMostSignificantBits());
+        return _hash(hash, uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Add a value to a hash, one byte at a time.
+     * @param hash The hash so far.
+     * @param value The value.
+     * @return The new hash.
+     */
+    private static long _hash(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (i * 8)) & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
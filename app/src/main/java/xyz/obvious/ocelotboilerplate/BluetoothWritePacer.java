@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+/**
+ * Back off for the write without response traffic of a connection.  The queue keeps a single operation in
+ * progress and the OS only accepts a new write once the previous one has been taken by the stack, so the stack
+ * itself limits the rate.  When the controller buffers are full it refuses the write, the packet is then tried
+ * again after a short back off that doubles with each refusal in a row instead of being dropped or retried in a
+ * busy loop.
+ */
+class BluetoothWritePacer {
+    /**
+     * The first and largest back off after the stack rejected a packet
+     */
+    private static final long MIN_BACKOFF = 2;
+    private static final long MAX_BACKOFF = 64;
+    /**
+     * The number of times in a row a packet can be rejected before it is treated as failed
+     */
+    private static final int MAX_REJECTIONS = 40;
+
+    private int _rejections = 0;
+    private long _backoff = MIN_BACKOFF;
+
+    /**
+     * Record a packet that the stack took, the next rejection starts from the smallest back off again.
+     */
+    void onAccepted() {
+        _rejections = 0;
+        _backoff = MIN_BACKOFF;
+    }
+
+    /**
+     * Record a packet that the stack refused to take.
+     * @return true if the packet should be tried again after nextBackoff(), false if it was rejected too many times.
+     */
+    boolean onRejected() {
+        return ++_rejections <= MAX_REJECTIONS;
+    }
+
+    /**
+     * The time to wait before a rejected packet is tried again.  The delay doubles with each rejection in a row.
+     * @return the delay in milliseconds.
+     */
+    long nextBackoff() {
+        long delay = _backoff;
+        _backoff = Math.min(MAX_BACKOFF, _backoff * 2);
+        return delay;
+    }
+
+    /**
+     * Go back to the initial state, used when the connection changes.
+     */
+    void reset() {
+        _rejections = 0;
+        _backoff = MIN_BACKOFF;
+    }
+}
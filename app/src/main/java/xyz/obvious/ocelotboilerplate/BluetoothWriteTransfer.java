@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * This class tracks a characteristic write that was too large for the negotiated MTU and was split into several
+ * GATT writes.  The segments are queued as separate operations that share this object, it counts the bytes that
+ * have reached the OS stack and holds the status that is reported to the App once all the segments are done.
+ * The transfer state is only touched on the Bluetooth thread.
+ */
+class BluetoothWriteTransfer {
+    /**
+     * The minimum time between two progress notifications passed to the App
+     */
+    private static final long PROGRESS_INTERVAL = 80;
+
+    /**
+     * The characteristic UUID reported back to the App for this transfer
+     */
+    final String datatype;
+    /**
+     * The total number of bytes of the payload
+     */
+    final int totalBytes;
+    /**
+     * The number of segments the payload was split into
+     */
+    final int segmentCount;
+    /**
+     * The number of bytes written so far
+     */
+    int bytesWritten = 0;
+    /**
+     * The number of segments that have finished
+     */
+    int segmentsDone = 0;
+    /**
+     * The status of the transfer, the status of the first segment that failed or GATT_SUCCESS
+     */
+    int status = BluetoothGatt.GATT_SUCCESS;
+    private long _lastProgress = 0;
+
+    /**
+     * Create a transfer for a segmented payload.
+     * @param datatype The characteristic UUID reported back to the App.
+     * @param totalBytes The total number of bytes of the payload.
+     * @param segmentCount The number of segments the payload was split into.
+     */
+    BluetoothWriteTransfer(String datatype, int totalBytes, int segmentCount) {
+        this.datatype = datatype;
+        this.totalBytes = totalBytes;
+        this.segmentCount = segmentCount;
+    }
+
+    /**
+     * Record the end of one segment.
+     * @param length The number of bytes of the segment.
+     * @param segmentStatus The status of the segment write.
+     * @return true if the transfer has just finished, either because all the segments are done or because this is
+     * the first segment that failed.
+     */
+    boolean onSegmentDone(int length, int segmentStatus) {
+        if (isAborted()) {
+            return false;
+        }
+        segmentsDone++;
+        if (segmentStatus != BluetoothGatt.GATT_SUCCESS) {
+            status = segmentStatus;
+            return true;
+        }
+        bytesWritten += length;
+        return segmentsDone == segmentCount;
+    }
+
+    /**
+     * Whether a segment failed, the remaining segments are then dropped.
+     * @return true if the transfer was aborted.
+     */
+    boolean isAborted() {
+        return status != BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * Whether a progress notification should be passed to the App now.  Progress is rate limited so that fast
+     * transfers do not flood the main thread.
+     * @return true if the progress should be reported.
+     */
+    boolean shouldReportProgress() {
+        long curTime = System.currentTimeMillis();
+        if (segmentsDone == segmentCount || curTime - _lastProgress > PROGRESS_INTERVAL) {
+            _lastProgress = curTime;
+            return true;
+        }
+        return false;
+    }
+}
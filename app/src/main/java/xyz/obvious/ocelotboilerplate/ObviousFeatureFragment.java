@@ -95,6 +95,28 @@ public class ObviousFeatureFragment extends Fragment implements
 
     private final static int SCAN_PAGE = 0;
     private final static int FEATURE_PAGE = 1;
+    private final static int MAX_SCAN_LIST_SIZE = 25;
+
+    /**
+     * A row of the device list.  The row of a device keeps its place while the device is in range, its text is
+     * updated in place so that a click always goes to the device the user sees.
+     */
+    private static class DeviceRow {
+        final String address;
+        String name;
+        String detail;
+
+        DeviceRow(String address, String name, String detail) {
+            this.address = address;
+            this.name = name;
+            this.detail = detail;
+        }
+
+        @Override
+        public String toString() {
+            return name + "\t(" + address + ")  " + detail;
+        }
+    }
 
     private View rootView = null;
 
@@ -116,12 +138,12 @@ public class ObviousFeatureFragment extends Fragment implements
     private String _fwbootver = null;;
     private String _fwsoftver = null;;
 
-    private ArrayAdapter<String> scanListAdapter = null;
+    private ArrayAdapter<DeviceRow> scanListAdapter = null;
     private FeatureListAdapter featureListAdapter = null;
-    private ArrayList<String> deviceMap = null;
     private String selectedName = null;
     private String selectedMAC = null;
     private BluetoothObviousDevice _bleDev;
+    private BluetoothScanResultListener _scanListener = null;
 
     private String _devSN = null;
 
@@ -150,17 +172,16 @@ public class ObviousFeatureFragment extends Fragment implements
         ListView tmpList = tmpView.findViewById(R.id.scanlist);
         if (tmpList != null) {
             if (scanListAdapter == null && getContext() != null) {
-                scanListAdapter = new ArrayAdapter<>(getContext(), android.R.layout.simple_list_item_1,new ArrayList<String>());
+                scanListAdapter = new ArrayAdapter<>(getContext(), android.R.layout.simple_list_item_1,new ArrayList<DeviceRow>());
             }
             tmpList.setAdapter(scanListAdapter);
             tmpList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
                 @Override
                 public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                    selectedName = scanListAdapter.getItem(position);
-                    if (selectedName != null) {
-                        selectedName = selectedName.split("\t")[0];
-                    }
-                    selectedMAC = deviceMap.get(position);
+                    DeviceRow row = scanListAdapter.getItem(position);
+                    if (row == null) { return; }
+                    selectedName = row.name;
+                    selectedMAC = row.address;
                     _updateDataDisplay(selectedName);
                     _connectClicked();
                 }
@@ -194,7 +215,7 @@ public class ObviousFeatureFragment extends Fragment implements
         super.onStart();
         if (getActivity() != null && _serviceClient == null) {
             _serviceClient = BluetoothInteractor.getServiceClient(getActivity().getApplication());
-
+            _showKnownDevices();
         }
     }
 
@@ -223,12 +244,29 @@ public class ObviousFeatureFragment extends Fragment implements
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (_serviceClient != null && _scanListener != null) {
+            _serviceClient.stopScanForDevices(_scanListener);
+        }
         if (_bleDev != null && _bleDev.isConnected()) {
             _bleDev.disconnect();
             _bleDev = null;
         }
     }
 
+    /**
+     * List the devices connected to before so that they can be connected again without a scan.  The list is
+     * replaced by the scan results as soon as a scan is started.
+     */
+    private void _showKnownDevices() {
+        if (scanListAdapter == null || _bleDev != null || scanListAdapter.getCount() > 0) { return; }
+        scanListAdapter.setNotifyOnChange(false);
+        for (BluetoothDeviceRegistry.KnownDevice item : _serviceClient.getKnownDevices()) {
+            String name = (item.getName() != null ? item.getName() : item.getAddress());
+            scanListAdapter.add(new DeviceRow(item.getAddress(), name, getString(R.string.obvious_device_known)));
+        }
+        scanListAdapter.notifyDataSetChanged();
+    }
+
     private void _clearProgressDialog() {
         if (_progressDlg != null) {
             _progressDlg.dismiss();
@@ -289,30 +327,78 @@ public class ObviousFeatureFragment extends Fragment implements
             _updateDataDisplay(null);
         }
 
-        deviceMap = new ArrayList<>();
         selectedMAC = null;
 
         scanListAdapter.clear();
         scanListAdapter.notifyDataSetChanged();
 
-        // TODO: Add the appropriate service filter for your device.
+        // TODO: Add the appropriate service filter for your device.  A service or manufacturer filter (see
+        // setScanManufacturerFilter) lets the Bluetooth controller drop the advertisements of other devices.
         _serviceClient.setScanServiceFilter(new String[]{});
-        _serviceClient.startScanForDevices(getActivity(), new BluetoothScanResultListener() {
-            @Override
-            public void onScanResults(ArrayList<DeviceRecord> results) {
-                boolean hasChange = false;
-                for (DeviceRecord item : results) {
-                    if (!deviceMap.contains(item.getAddress())) {
-                        scanListAdapter.add(item.getName() + "\t(" + item.getAddress() + ")");
-                        deviceMap.add(item.getAddress());
-                        hasChange = true;
+        if (_scanListener == null) {
+            // The same listener is used for every scan so that starting a new scan replaces the previous one
+            _scanListener = new BluetoothScanResultListener() {
+                @Override
+                public void onScanResults(ScanResultDelta delta) {
+                    if (delta.isEmpty()) { return; }
+                    // The rows keep their place, only the changed devices are touched so the cost of an update
+                    // does not grow with the number of devices in range
+                    scanListAdapter.setNotifyOnChange(false);
+                    for (DeviceRecord item : delta.getRemoved()) {
+                        int position = _findScanRow(item.getAddress());
+                        if (position >= 0) {
+                            scanListAdapter.remove(scanListAdapter.getItem(position));
+                        }
+                    }
+                    boolean full = _updateScanRows(delta.getAdded());
+                    full = _updateScanRows(delta.getUpdated()) || full;
+                    if (!full && !delta.getRemoved().isEmpty()) {
+                        // Fill the freed rows with the strongest devices not listed yet
+                        _updateScanRows(_serviceClient.getRankedScanResults(MAX_SCAN_LIST_SIZE));
                     }
-                }
-                if (hasChange) {
                     scanListAdapter.notifyDataSetChanged();
                 }
+            };
+        }
+        _serviceClient.startScanForDevices(getActivity(), _scanListener);
+    }
+
+    /**
+     * Find the row of a device in the scan list.
+     * @param address The MAC of the device.
+     * @return The position of the row, or -1 if the device is not listed.
+     */
+    private int _findScanRow(String address) {
+        for (int position = 0; position < scanListAdapter.getCount(); position++) {
+            DeviceRow row = scanListAdapter.getItem(position);
+            if (row != null && row.address.equals(address)) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Update the rows of listed devices in place and add the others at the end while there is room.
+     * @param records The latest records of the devices.
+     * @return true if a device could not be added because the list is full.
+     */
+    private boolean _updateScanRows(List<BluetoothScanResultListener.DeviceRecord> records) {
+        boolean full = false;
+        for (BluetoothScanResultListener.DeviceRecord item : records) {
+            String detail = item.getRssi() + " dBm";
+            int position = _findScanRow(item.getAddress());
+            if (position >= 0) {
+                DeviceRow row = scanListAdapter.getItem(position);
+                row.name = item.getName();
+                row.detail = detail;
+            } else if (scanListAdapter.getCount() < MAX_SCAN_LIST_SIZE) {
+                scanListAdapter.add(new DeviceRow(item.getAddress(), item.getName(), detail));
+            } else {
+                full = true;
             }
-        });
+        }
+        return full;
     }
 
     /**
@@ -366,6 +452,7 @@ public class ObviousFeatureFragment extends Fragment implements
                             (status == BluetoothServiceConstants.UNKNOWN_BLE_ERROR_STATUS) || (status == BluetoothServiceConstants.UNKNOWN_BLE_TIMEOUT_STATUS)) {
                         if (BuildConfig.DEBUG) {
                             Log.d(LOG_TAG, "\t---- Disconnected");
+                            Log.d(LOG_TAG, _serviceClient.getGattMetrics().export());
                         }
                         // The firmware update process may restart the device so we will ignore this event if there is a firmware update in progress
                         if (_firmwareInprogress || _pendingToggle) {
@@ -380,6 +467,7 @@ public class ObviousFeatureFragment extends Fragment implements
                     if (status == BluetoothServiceConstants.CONNECTION_STATUS_SUCCESS && newState == BluetoothServiceConstants.CONNECTION_STATE_CONNECTED) {
                         if (BuildConfig.DEBUG) {
                             Log.d(LOG_TAG, "\t++++ Connected");
+                            Log.d(LOG_TAG, _serviceClient.getConnectionMetrics().export());
                         }
                         // The firmware update process may restart the device so we will ignore this event if there is a firmware update in progress
                         if (_firmwareInprogress || _pendingToggle) {
@@ -589,6 +677,7 @@ public class ObviousFeatureFragment extends Fragment implements
         _setupFirmwareManager();
         if (_obviousFirmwareMgr != null && _bleDev != null) {
             _bleDev.setupObvious(_obviousFirmwareMgr.getDeviceConnector());
+            _bleDev.setHighThroughput(true);
             _obviousFirmwareMgr.startFirmwareUpgrade(_getAppVersion());
         }
     }
@@ -825,6 +914,9 @@ public class ObviousFeatureFragment extends Fragment implements
      */
     @Override
     public void onFirmwareUpgradeSuccessful() {
+        if (_bleDev != null) {
+            _bleDev.setHighThroughput(false);
+        }
         _clearProgressDialog();
         AlertDialog.Builder alert = new AlertDialog.Builder(getContext());
         alert.setTitle(R.string.obvious_firmware_otastatus)
@@ -845,6 +937,9 @@ public class ObviousFeatureFragment extends Fragment implements
     @Override
     public void onFirmwareUpgradeFailed() {
         _firmwareInprogress = false;
+        if (_bleDev != null) {
+            _bleDev.setHighThroughput(false);
+        }
         _clearProgressDialog();
         AlertDialog.Builder alert = new AlertDialog.Builder(getContext());
         alert.setTitle(R.string.obvious_firmware_otastatus)
@@ -866,6 +961,10 @@ public class ObviousFeatureFragment extends Fragment implements
         if (_prodId == null || _prodId.equals("") || _prodId.equals("-1")) {
             _prodId = ObviousProductIdentifier.MANUFACTURER_PRODUCT_ID1;
         }
+        if (_serviceClient != null && _bleDev != null) {
+            _serviceClient.updateKnownDevice(_bleDev.getDeviceId(), _prodId, _devSN);
+            _serviceClient.updateDeviceFirmware(_bleDev.getDeviceId(), ocelotDeviceInfo.getFirmwareVersion());
+        }
         _currentFwver = ocelotDeviceInfo.getFirmwareVersion();
         _fwbootver = ocelotDeviceInfo.getBootLoaderVersion();
         _fwsoftver = ocelotDeviceInfo.getSoftDeviceVersion();
@@ -968,7 +1067,14 @@ public class ObviousFeatureFragment extends Fragment implements
             _progressDlg.show();
 
             _pendingToggle = true;
+            if (_bleDev != null) {
+                // The toggle write jumps ahead of any transfer in progress
+                _bleDev.setNextWriteInteractive(true);
+            }
             _obviousMgr.toggleFeature(featureId);
+            if (_bleDev != null) {
+                _bleDev.setNextWriteInteractive(false);
+            }
         }
     }
 
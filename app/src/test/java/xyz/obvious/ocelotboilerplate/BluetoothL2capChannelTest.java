@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the SDU framing of the L2CAP channel against a fake peripheral on the other end of a local socket pair,
+ * the order in which a channel reports its writes when it is closed or fails, and the rule that keeps the writes of
+ * a characteristic on one transport at a time.
+ */
+public class BluetoothL2capChannelTest {
+    private static final UUID CONTROL_UUID = UUID.fromString(BluetoothServiceConstants.BLE_CHARACTERISTIC_CYCLEPOWER_CONTROLPOINT);
+    private static final UUID DATA_UUID = UUID.fromString(BluetoothServiceConstants.BLE_CHARACTERISTIC_CYCLEPOWER_DATA);
+    private static final String SERVICE = BluetoothServiceConstants.BLE_SERVICE_CYCLEPOWER;
+    /**
+     * The SDU size the channels of the tests are opened with, room for a 64 byte payload
+     */
+    private static final int MAX_SDU = BluetoothL2capChannel.HEADER_SIZE + 64;
+
+    /**
+     * A listener that records the channel events as strings, "write <first payload byte> <status>" for the writes.
+     */
+    private static class RecordingListener implements BluetoothL2capChannel.ChannelListener {
+        final LinkedBlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onChannelOpened(BluetoothL2capChannel channel) {
+            events.add("opened");
+        }
+
+        @Override
+        public void onChannelClosed(BluetoothL2capChannel channel) {
+            events.add("closed");
+        }
+
+        @Override
+        public void onWriteComplete(BluetoothL2capChannel channel, String service, String datatype, byte[] data, int status) {
+            events.add("write " + data[0] + " " + status);
+        }
+
+        /**
+         * Wait for the next event and check it.
+         * @param expected The expected event.
+         * @throws InterruptedException If the test was interrupted.
+         */
+        void expect(String expected) throws InterruptedException {
+            assertEquals(expected, events.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * A stream that holds its writes until the gate opens, then fails them once it is closed or from a given write.
+     */
+    private static class GateStream extends OutputStream {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final int failAt;
+        volatile boolean closed = false;
+        int writes = 0;
+
+        GateStream(int failAt) {
+            this.failAt = failAt;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            entered.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+            if (closed || writes++ == failAt) {
+                throw new IOException("channel lost");
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            gate.countDown();
+        }
+    }
+
+    /**
+     * Open a channel over a stream and wait until it accepts writes.
+     * @param output The stream.
+     * @param listener The listener of the channel.
+     * @return The open channel.
+     * @throws InterruptedException If the test was interrupted.
+     */
+    private static BluetoothL2capChannel _open(OutputStream output, RecordingListener listener) throws InterruptedException {
+        BluetoothL2capChannel channel = new BluetoothL2capChannel("00:11:22:33:44:55", listener);
+        channel.openStream(output, MAX_SDU);
+        listener.expect("opened");
+        assertTrue(channel.isOpen());
+        assertEquals(64, channel.getMaxPayload());
+        return channel;
+    }
+
+    /**
+     * A payload whose first byte identifies it in the recorded events.
+     * @param id The identifier.
+     * @return The payload.
+     */
+    private static byte[] _payload(int id) {
+        return new byte[] { (byte) id, 2, 3 };
+    }
+
+    /**
+     * Read one SDU of a known payload length as the peripheral would and check its header and payload.
+     * @param input The peripheral end of the socket pair.
+     * @param uuid The expected characteristic UUID.
+     * @param payload The expected payload.
+     * @throws IOException If the socket failed.
+     */
+    private static void _expectSdu(DataInputStream input, UUID uuid, byte[] payload) throws IOException {
+        assertEquals(uuid, new UUID(input.readLong(), input.readLong()));
+        byte[] received = new byte[payload.length];
+        input.readFully(received);
+        assertArrayEquals(payload, received);
+    }
+
+    @Test
+    public void peripheralReceivesFramedSdusInOrder() throws IOException {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket central = new Socket(server.getInetAddress(), server.getLocalPort());
+             Socket peripheral = server.accept()) {
+            OutputStream output = central.getOutputStream();
+            byte[][] payloads = new byte[20][];
+            for (int i = 0; i < payloads.length; i++) {
+                payloads[i] = new byte[1 + i * 13];
+                for (int j = 0; j < payloads[i].length; j++) {
+                    payloads[i][j] = (byte) (i + j);
+                }
+                BluetoothL2capChannel.writeSdu(output, (i % 3 == 0 ? CONTROL_UUID : DATA_UUID), payloads[i]);
+            }
+            BluetoothL2capChannel.writeSdu(output, DATA_UUID, null);
+
+            DataInputStream input = new DataInputStream(peripheral.getInputStream());
+            for (int i = 0; i < payloads.length; i++) {
+                _expectSdu(input, (i % 3 == 0 ? CONTROL_UUID : DATA_UUID), payloads[i]);
+            }
+            _expectSdu(input, DATA_UUID, new byte[0]);
+        }
+    }
+
+    @Test
+    public void channelSendsQueuedWritesInOrder() throws IOException, InterruptedException {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket central = new Socket(server.getInetAddress(), server.getLocalPort());
+             Socket peripheral = server.accept()) {
+            RecordingListener listener = new RecordingListener();
+            BluetoothL2capChannel channel = _open(central.getOutputStream(), listener);
+            for (int i = 0; i < 10; i++) {
+                assertTrue(channel.write(SERVICE, DATA_UUID.toString(), _payload(i)));
+            }
+            // A payload that does not fit in an SDU is refused, the caller sends it over GATT
+            assertFalse(channel.write(SERVICE, DATA_UUID.toString(), new byte[65]));
+
+            DataInputStream input = new DataInputStream(peripheral.getInputStream());
+            for (int i = 0; i < 10; i++) {
+                _expectSdu(input, DATA_UUID, _payload(i));
+                listener.expect("write " + i + " " + BluetoothGatt.GATT_SUCCESS);
+            }
+            channel.close();
+            assertFalse(channel.isOpen());
+            assertNull(listener.events.poll(100, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void closeFailsQueuedWritesInOrder() throws InterruptedException {
+        RecordingListener listener = new RecordingListener();
+        GateStream output = new GateStream(-1);
+        BluetoothL2capChannel channel = _open(output, listener);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(channel.write(SERVICE, DATA_UUID.toString(), _payload(i)));
+        }
+        assertTrue(output.entered.await(5, TimeUnit.SECONDS));
+
+        // Closing unblocks the write in progress, it and the writes queued after it fail in order
+        channel.close();
+        assertFalse(channel.isOpen());
+        assertFalse(channel.write(SERVICE, DATA_UUID.toString(), _payload(3)));
+        for (int i = 0; i < 3; i++) {
+            listener.expect("write " + i + " " + BluetoothGatt.GATT_FAILURE);
+        }
+        // The owner closed the channel, it is not told again
+        assertNull(listener.events.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void failedWriteClosesTheChannelBeforeTheLaterWritesFail() throws InterruptedException {
+        RecordingListener listener = new RecordingListener();
+        GateStream output = new GateStream(1);
+        BluetoothL2capChannel channel = _open(output, listener);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(channel.write(SERVICE, DATA_UUID.toString(), _payload(i)));
+        }
+        output.gate.countDown();
+
+        listener.expect("write 0 " + BluetoothGatt.GATT_SUCCESS);
+        listener.expect("write 1 " + BluetoothGatt.GATT_FAILURE);
+        listener.expect("closed");
+        listener.expect("write 2 " + BluetoothGatt.GATT_FAILURE);
+        assertFalse(channel.isOpen());
+        assertFalse(channel.write(SERVICE, DATA_UUID.toString(), _payload(3)));
+        assertNull(listener.events.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void failedStreamThrows() {
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("channel lost");
+            }
+        };
+        try {
+            BluetoothL2capChannel.writeSdu(broken, DATA_UUID, new byte[] { 1, 2, 3 });
+            fail("write on a lost channel must fail");
+        } catch (IOException ex) {
+            // expected, the write is reported as failed and not sent again over GATT
+        }
+    }
+
+    @Test
+    public void firstBulkWriteOnOpenChannelPinsIt() {
+        assertEquals(BluetoothL2capChannel.ROUTE_CHANNEL, BluetoothL2capChannel.route(false, false, true, false, 100, 200));
+        assertEquals(BluetoothL2capChannel.ROUTE_GATT, BluetoothL2capChannel.route(false, false, false, false, 100, 200));
+        assertEquals(BluetoothL2capChannel.ROUTE_GATT, BluetoothL2capChannel.route(false, true, true, false, 100, 200));
+        assertEquals(BluetoothL2capChannel.ROUTE_GATT, BluetoothL2capChannel.route(false, false, true, false, 300, 200));
+    }
+
+    @Test
+    public void pendingGattWriteKeepsCharacteristicOnGatt() {
+        assertEquals(BluetoothL2capChannel.ROUTE_GATT, BluetoothL2capChannel.route(false, false, true, true, 100, 200));
+    }
+
+    @Test
+    public void pinnedCharacteristicDrainsTheChannelBeforeGatt() {
+        assertEquals(BluetoothL2capChannel.ROUTE_CHANNEL, BluetoothL2capChannel.route(true, false, true, false, 100, 200));
+        // A write with response or an interactive write keeps its ACK on GATT
+        assertEquals(BluetoothL2capChannel.ROUTE_DRAIN, BluetoothL2capChannel.route(true, true, true, false, 100, 200));
+        assertEquals(BluetoothL2capChannel.ROUTE_DRAIN, BluetoothL2capChannel.route(true, false, true, false, 300, 200));
+        assertEquals(BluetoothL2capChannel.ROUTE_DRAIN, BluetoothL2capChannel.route(true, false, false, false, 100, 200));
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import android.os.Handler;
+
+import com.obvious.mobileapi.OcelotDeviceConnector;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the notification ring delivers the events in order through the real BluetoothObviousDevice, that the
+ * Obvious connector is given its own copy of each value, and that once warmed up the ring adds no allocations on top
+ * of that copy.  The ring is drained directly, the handler does nothing in the local unit tests.
+ */
+public class BluetoothNotificationRingTest {
+    private static final UUID DATA_UUID = UUID.fromString(BluetoothServiceConstants.BLE_CHARACTERISTIC_CYCLEPOWER_DATA);
+    private static final String DEVICE_ID = "00:11:22:33:44:55";
+
+    /**
+     * A connector standing in for the Obvious SDK that keeps the arrays it is given, as the SDK may.
+     */
+    private static class StubConnector extends OcelotDeviceConnector {
+        final ArrayList<byte[]> kept = new ArrayList<>();
+        boolean keep = true;
+        int events = 0;
+        byte[] last = null;
+
+        @Override
+        public HashMap<String, String[]> getServerInformation() {
+            return new HashMap<>();
+        }
+
+        @Override
+        public void onUpdateDeviceData(String datatype, byte[] rawdata) {
+            assertEquals(DATA_UUID.toString(), datatype);
+            events++;
+            last = rawdata;
+            if (keep) {
+                kept.add(rawdata);
+            }
+        }
+    }
+
+    @Test
+    public void deliversEventsInOrderAsCopies() {
+        BluetoothNotificationRing ring = new BluetoothNotificationRing(new Handler());
+        StubConnector connector = new StubConnector();
+        _publishThree(ring, connector);
+    }
+
+    @Test
+    public void deliversBatchedEventsInOrderAsCopies() {
+        BluetoothNotificationRing ring = new BluetoothNotificationRing(new Handler());
+        ring.setBatching(8, 1000);
+        StubConnector connector = new StubConnector();
+        _publishThree(ring, connector);
+    }
+
+    @Test
+    public void reusesTheDatatypeString() {
+        BluetoothNotificationRing ring = new BluetoothNotificationRing(new Handler());
+        assertSame(ring.datatype(DATA_UUID), ring.datatype(UUID.fromString(DATA_UUID.toString())));
+    }
+
+    @Test
+    public void ringAddsNoAllocationsInSteadyState() {
+        BluetoothNotificationRing ring = new BluetoothNotificationRing(new Handler());
+        StubConnector connector = new StubConnector();
+        connector.keep = false;
+        BluetoothObviousDevice device = _device(connector);
+        String datatype = ring.datatype(DATA_UUID);
+        byte[] value = new byte[20];
+        int events = 100000;
+
+        // Warm up the ring, the buffer pool, the datatype strings and both paths of the device
+        _publishAndDrain(ring, device, value, 10000);
+        _callDirectly(device, datatype, value, 10000);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        _callDirectly(device, datatype, value, events);
+        long direct = threads.getThreadAllocatedBytes(thread) - before;
+
+        before = threads.getThreadAllocatedBytes(thread);
+        _publishAndDrain(ring, device, value, events);
+        long ringed = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertEquals(20000 + 2 * events, connector.events);
+        // The device copies every value for the connector, the ring itself must not add an allocation per event
+        assertTrue("direct " + direct + " bytes, through the ring " + ringed + " bytes for " + events + " events",
+                ringed - direct < events);
+    }
+
+    /**
+     * Create a real device connected to a stub connector.
+     * @param connector The connector the device passes the data on to.
+     * @return The device.
+     */
+    private static BluetoothObviousDevice _device(StubConnector connector) {
+        BluetoothObviousDevice device = new BluetoothObviousDevice(null, DEVICE_ID);
+        device.setupObvious(connector);
+        return device;
+    }
+
+    /**
+     * Publish three values from the same array, drain the ring and check the connector kept three distinct copies
+     * with the values in order.
+     * @param ring The ring under test.
+     * @param connector The connector the values end up in.
+     */
+    private static void _publishThree(BluetoothNotificationRing ring, StubConnector connector) {
+        BluetoothObviousDevice device = _device(connector);
+        byte[] value = {1, 2, 3};
+        for (int i = 0; i < 3; i++) {
+            value[0] = (byte) i;
+            ring.publish(device, DATA_UUID, value);
+        }
+        ring.drain();
+
+        // Reuse the pooled buffers so that a value the connector was not given a copy of would change
+        for (int i = 0; i < 3; i++) {
+            value[0] = (byte) 9;
+            ring.publish(device, DATA_UUID, value);
+        }
+        ring.drain();
+
+        assertEquals(6, connector.kept.size());
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(new byte[]{(byte) i, 2, 3}, connector.kept.get(i));
+            assertNotSame(connector.kept.get(i), connector.kept.get(i + 3));
+        }
+    }
+
+    /**
+     * Publish events in bursts of 16 and drain the ring after each burst, as the main thread would.
+     * @param ring The ring under test.
+     * @param device The device the events are for.
+     * @param value The value published.
+     * @param events The number of events.
+     */
+    private static void _publishAndDrain(BluetoothNotificationRing ring, BluetoothObviousDevice device, byte[] value, int events) {
+        for (int i = 0; i < events; i++) {
+            value[0] = (byte) i;
+            ring.publish(device, DATA_UUID, value);
+            if ((i & 15) == 15) {
+                ring.drain();
+            }
+        }
+        ring.drain();
+    }
+
+    /**
+     * Give the events to the device without the ring, the cost the ring is compared against.
+     * @param device The device the events are for.
+     * @param datatype The characteristic UUID string.
+     * @param value The value passed.
+     * @param events The number of events.
+     */
+    private static void _callDirectly(BluetoothObviousDevice device, String datatype, byte[] value, int events) {
+        for (int i = 0; i < events; i++) {
+            value[0] = (byte) i;
+            device.onDataNotification(datatype, value);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2019 4iiii Innovations Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use,copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package xyz.obvious.ocelotboilerplate;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the ranking the scan table keeps up to date as readings arrive gives the same top devices as sorting
+ * the whole table, through additions, removals and exclusions, and that keeping it costs O(log n) per update.  Also
+ * checks the memory used by a survey scan of 10 000 devices stays bounded.
+ */
+public class BluetoothScanTableTest {
+    /**
+     * The most memory 10 000 devices with names and full scan records may take
+     */
+    private static final long MAX_FOOTPRINT_10K = 2560L * 1024;
+
+    /**
+     * Rank the devices of the table by sorting all of them.
+     * @param table The scan table.
+     * @param maxCount The most devices to return.
+     * @return The indexes of the strongest devices, strongest first.
+     */
+    private static int[] _sortedTop(final BluetoothScanTable table, int maxCount) {
+        ArrayList<Integer> indexes = new ArrayList<>();
+        for (int index = 0; index < table.size(); index++) {
+            if (!table.isExcluded(index) && !Float.isNaN(table.getRssi(index))) {
+                indexes.add(index);
+            }
+        }
+        Collections.sort(indexes, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int result = Float.compare(table.getRssi(b), table.getRssi(a));
+                return (result != 0 ? result : Long.compare(table.getAddress(a), table.getAddress(b)));
+            }
+        });
+        int[] result = new int[Math.min(maxCount, indexes.size())];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = indexes.get(i);
+        }
+        return result;
+    }
+
+    @Test
+    public void rankingMatchesFullSort() {
+        BluetoothScanTable table = new BluetoothScanTable();
+        Random random = new Random(42);
+        for (int step = 0; step < 20000; step++) {
+            int action = random.nextInt(10);
+            if (action == 0 && table.size() > 0) {
+                table.remove(random.nextInt(table.size()));
+            } else if (action == 1 && table.size() > 0) {
+                table.setExcluded(random.nextInt(table.size()), random.nextBoolean());
+            } else if (action < 4 || table.size() == 0) {
+                long address = random.nextLong() & 0xFFFFFFFFFFFFL;
+                if (table.indexOf(address) < 0) {
+                    int index = table.add(address);
+                    if (random.nextBoolean()) {
+                        table.updateRssi(index, -30 - random.nextInt(70));
+                    }
+                }
+            } else {
+                table.updateRssi(random.nextInt(table.size()), -30 - random.nextInt(70));
+            }
+            if (step % 100 == 0) {
+                assertArrayEquals(_sortedTop(table, 25), table.top(25));
+            }
+        }
+        assertArrayEquals(_sortedTop(table, table.size()), table.top(table.size()));
+    }
+
+    @Test
+    public void rankingCostStaysLogarithmic() {
+        BluetoothScanTable table = new BluetoothScanTable();
+        Random random = new Random(7);
+        int devices = 10000;
+        for (int i = 0; i < devices; i++) {
+            table.add(0x001122000000L + i);
+        }
+        // Every device enters without a reading at the bottom and jumps to the top or the bottom of the ranking
+        long before = table.getRankingSteps();
+        for (int update = 0; update < 10000; update++) {
+            int index = random.nextInt(table.size());
+            table.updateRssi(index, (update & 1) == 0 ? -20 : -100);
+            table.updateRssi(index, (update & 1) == 0 ? -100 : -20);
+        }
+        // Evict the devices in their table order, the way stale devices leave a survey scan
+        while (table.size() > devices / 2) {
+            table.remove(0);
+        }
+        long steps = table.getRankingSteps() - before;
+        int operations = 2 * 10000 + devices / 2;
+
+        // A binary heap of 10k entries takes at most 2 comparisons per level over 14 levels
+        assertTrue(steps + " comparisons for " + operations + " operations", steps <= operations * 2L * 14);
+        assertArrayEquals(_sortedTop(table, table.size()), table.top(table.size()));
+    }
+
+    @Test
+    public void tenThousandDevicesStayWithinTheMemoryBound() {
+        BluetoothScanTable table = new BluetoothScanTable();
+        for (int i = 0; i < 10000; i++) {
+            table.add(BluetoothScanTable.packAddress(String.format(Locale.US, "C0:FF:EE:%02X:%02X:%02X",
+                    (i >> 16) & 0xFF, (i >> 8) & 0xFF, i & 0xFF)));
+        }
+        long arrays = table.getMemoryFootprint();
+        for (int index = 0; index < table.size(); index++) {
+            table.setName(index, String.format(Locale.US, "Sensor %05d", index), true);
+            table.setScanRecord(index, new byte[62]);
+            table.updateRssi(index, -40 - (index % 60));
+        }
+        long footprint = table.getMemoryFootprint();
+
+        assertEquals(10000, table.size());
+        // The names and scan records are measured, 12 characters and 62 bytes per device at the least
+        assertTrue(footprint - arrays >= 10000L * (2 * 12 + 62));
+        assertTrue(footprint + " bytes for 10 000 devices", footprint <= MAX_FOOTPRINT_10K);
+    }
+
+    @Test
+    public void removalKeepsLookupAndNames() {
+        BluetoothScanTable table = new BluetoothScanTable();
+        long first = BluetoothScanTable.packAddress("00:11:22:33:44:55");
+        long second = BluetoothScanTable.packAddress("66:77:88:99:AA:BB");
+        table.setName(table.add(first), "first", true);
+        int index = table.add(second);
+        table.setName(index, "second", false);
+        table.updateRssi(index, -40);
+
+        table.remove(table.indexOf(first));
+        index = table.indexOf(second);
+        assertEquals(0, index);
+        assertEquals("second", table.getName(index));
+        assertFalse(table.isNameAdvertised(index));
+        assertArrayEquals(new int[] { index }, table.top(5));
+    }
+}